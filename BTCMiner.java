@@ -18,7 +18,12 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.security.*;
 import java.text.*;
 import java.util.zip.*;
@@ -107,11 +112,13 @@ class BTCMinerHTTPD extends NanoHTTPD {
 		} else {
 			sb.append(", \"state\":\"running\"");
 			sb.append(", \"refresh\":\"" + refreshTmo + "\"");
-			if (BTCMiner.longPollURL != null) {
-				sb.append(", \"longpoll\":\"" + BTCMiner.longPollURL + "\"");
-			} else {
-				sb.append(", \"longpoll\":\"\"");
+			String lp = BTCMiner.longPollURL;
+			for (int i = 0; lp == null && i < BTCMiner.rpcCount; i++) {
+				if (BTCMiner.rpc[i].mine) {
+					lp = BTCMiner.rpc[i].longPollURL;
+				}
 			}
+			sb.append(", \"longpoll\":\"" + (lp == null ? "" : lp) + "\"");
 
 			int server = BTCMiner.rpcCount;
 			int backup1 = BTCMiner.rpcFirstBackup;
@@ -139,7 +146,7 @@ class BTCMinerHTTPD extends NanoHTTPD {
 					} else {
 						mining = "disabled";
 					}
-					sb.append("{\"index\":\"" + i + "\", \"state\":\"" + state + "\", \"mining\":\"" + mining +"\", \"name\":\"" + rpc.name +"\", \"url\":\"" + rpc.url + "\", \"host\":\"" + rpc.host + "\", \"user\":\"" + rpc.usr + "\", \"pass\":\"" + rpc.pwd + "\", \"ioerr_monitor_time\":\"" + rpc.ioDisableMonitorTime + "\", \"getwork\":\"" + rpc.sharesGetwork +  "\", \"accept\":\"" + rpc.sharesAccepted + "\", \"reject\":\"" + rpc.sharesRejected + "\", \"disable\":\"" + rpc.poolDisabled + "\", \"difficulty\":\"" + String.format("%.1f", rpc.difficulty) + "\"}");
+					sb.append("{\"index\":\"" + i + "\", \"state\":\"" + state + "\", \"mining\":\"" + mining +"\", \"name\":\"" + rpc.name +"\", \"url\":\"" + rpc.url + "\", \"host\":\"" + rpc.host + "\", \"user\":\"" + rpc.usr + "\", \"pass\":\"" + rpc.pwd + "\", \"ioerr_monitor_time\":\"" + rpc.ioDisableMonitorTime + "\", \"getwork\":\"" + rpc.sharesGetwork +  "\", \"accept\":\"" + rpc.sharesAccepted + "\", \"reject\":\"" + rpc.sharesRejected + "\", \"stale\":\"" + rpc.noncesStale + "\", \"dropped\":\"" + rpc.noncesDropped + "\", \"misattributed\":\"" + rpc.noncesRecovered + "\", \"disable\":\"" + rpc.poolDisabled + "\", \"difficulty\":\"" + String.format("%.1f", rpc.difficulty) + "\", " + rpc.workSource.json() + BTCMiner.newBlockMonitor.json(rpc) + "}");
 				}
 			}
 			sb.append("]");
@@ -158,7 +165,7 @@ class BTCMinerHTTPD extends NanoHTTPD {
 					} else {
 						state = "enabled";
 					}
-					sb.append("{\"index\":\"" + i + "\", \"state\":\"" + state + "\", \"mining\":\"enabled\", \"name\":\"" + rpc.name +"\", \"url\":\"" + rpc.url + "\", \"host\":\"" + rpc.host + "\", \"user\":\"" + rpc.usr + "\", \"pass\":\"" + rpc.pwd + "\", \"ioerr_monitor_time\":\"" + rpc.ioDisableMonitorTime + "\", \"getwork\":\"" + rpc.sharesGetwork +  "\", \"accept\":\"" + rpc.sharesAccepted + "\", \"reject\":\"" + rpc.sharesRejected + "\", \"disable\":\"" + rpc.poolDisabled + "\", \"difficulty\":\"" + String.format("%.1f", rpc.difficulty) + "\"}");
+					sb.append("{\"index\":\"" + i + "\", \"state\":\"" + state + "\", \"mining\":\"enabled\", \"name\":\"" + rpc.name +"\", \"url\":\"" + rpc.url + "\", \"host\":\"" + rpc.host + "\", \"user\":\"" + rpc.usr + "\", \"pass\":\"" + rpc.pwd + "\", \"ioerr_monitor_time\":\"" + rpc.ioDisableMonitorTime + "\", \"getwork\":\"" + rpc.sharesGetwork +  "\", \"accept\":\"" + rpc.sharesAccepted + "\", \"reject\":\"" + rpc.sharesRejected + "\", \"stale\":\"" + rpc.noncesStale + "\", \"dropped\":\"" + rpc.noncesDropped + "\", \"misattributed\":\"" + rpc.noncesRecovered + "\", \"disable\":\"" + rpc.poolDisabled + "\", \"difficulty\":\"" + String.format("%.1f", rpc.difficulty) + "\", " + rpc.workSource.json() + BTCMiner.newBlockMonitor.json(rpc) + "}");
 				}
 			}
 			sb.append("]");
@@ -191,11 +198,13 @@ class BTCMinerHTTPD extends NanoHTTPD {
 				double hs = m.submittedHashRate();
 				hashrate_submitted += hs;
 				double lk = hs / hr + 0.0049;
-				sb.append("{\"index\":\"" + i + "\", \"name\":\"" + m.name + "\", \"state\":\"" + state + "\", \"frequency\":\"" + String.format("%.2f", fr) + "\", \"hashrate\":\"" + String.format("%.2f", hr) + "\", \"errorrate\":\"" + String.format("%.2f", er * 100.0) + "\", \"maxerrorrate\":\"" + String.format("%.2f", m.maxErrorRate[m.freqM] * 100.0) + "\", \"shares\":\"" + m.submittedCount + "\", \"luck\":\"" + String.format("%.2f", lk) + "\"}");
+				sb.append("{\"index\":\"" + i + "\", \"name\":\"" + m.name + "\", \"state\":\"" + state + "\", \"frequency\":\"" + String.format("%.2f", fr) + "\", \"hashrate\":\"" + String.format("%.2f", hr) + "\", \"errorrate\":\"" + String.format("%.2f", er * 100.0) + "\", \"maxerrorrate\":\"" + String.format("%.2f", m.maxErrorRate[m.freqM] * 100.0) + "\", \"shares\":\"" + m.submittedCount + "\", \"luck\":\"" + String.format("%.2f", lk) + "\", \"max_poll_gap\":\"" + m.maxPollGap + "\", \"exhaustion_time\":\"" + (m.exhaustion == Long.MAX_VALUE ? "" : m.exhaustion) + "\", \"work_replaced\":\"" + m.replacedCount + "\", \"wasted_nonces\":\"" + m.wastedNonces + "\", \"idle_time\":\"" + m.idleTime + "\"}");
 			}
 			sb.append("]");
 			sb.append(", \"total_hashrate\":\"" + String.format("%.1f", hashrate_total) + "\"");
 			sb.append(", \"submitted_hashrate\":\"" + String.format("%.1f", hashrate_submitted) + "\"");
+			sb.append(", " + PollLoop.json());
+			sb.append(", " + BTCMiner.cluster.json());
 			if (remoteSwitching) {
 				sb.append(", \"remote_switch\":\"1\"");
 			} else {
@@ -241,14 +250,6 @@ class BTCMinerHTTPD extends NanoHTTPD {
 								BTCMiner.rpc[i].mine = false;
 							}
 						}
-						if (BTCMiner.newBlockMonitor != null) {
-							synchronized (BTCMiner.newBlockMonitor) {
-								BTCMiner.disableLPTime = new Date().getTime() + 20000;
-								BTCMiner.longPollURL = null;
-								BTCMiner.longPollUser = "";
-								BTCMiner.longPollPassw = "";
-							}
-						}
 					}
 				} catch (NumberFormatException e) {
 				}
@@ -345,14 +346,7 @@ class BTCMinerHTTPD extends NanoHTTPD {
 					rpc.usr = parms.getProperty("rpcusr");
 					rpc.pwd = parms.getProperty("rpcpwd");
 					rpc.ioDisableMonitorTime = iomon;
-					if (BTCMiner.newBlockMonitor != null) {
-						synchronized (BTCMiner.newBlockMonitor) {
-							BTCMiner.disableLPTime = new Date().getTime() + 20000;
-							BTCMiner.longPollURL = null;
-							BTCMiner.longPollUser = "";
-							BTCMiner.longPollPassw = "";
-						}
-					}
+					rpc.longPollURL = null;		// determined again by the block monitor
 				}
 			} catch (NumberFormatException e) {
 			}
@@ -370,20 +364,24 @@ class ParameterException extends Exception {
 		"Parameters:\n" +
 		"    -o <name> <web> <url> <user name> <password> <disable timeout>\n" +
 		"                      Name, website, URL, user name and password of a server. Can be specified multiple times\n" +
+		"                      Stratum servers are specified by stratum+tcp://<host>:<port> URLs\n" +
+		"                      Solo mining using getblocktemplate is enabled by gbt+http://<host>:<port> URLs, see -coinbase\n" +
 		"    -b <name> <web> <url> <user name> <password> <disable timeout>\n" +
 		"                      Name, website, URL, user name and password of a backup server. Can be specified multiple times\n" +
 		"    -lp <url> <user name> <password> \n" +
-		"                      URL, user name and password of a long polling server (determined automatically by default)\n" +
+		"                      URL, user name and password of an additional long polling server\n" +
+		"                      (by default all pools with long polling support are polled at the same time)\n" +
 		"    -l <log file>     Log file (default: BTCMiner.log)\n" +
 		"    -l2 <log file>    Secondary log file, logs everything but statistics\n" +
 		"    -bl <log file>    Log of submitted blocks file\n" +
 		"    -nolog            do not log to file\n" +
 		"    -c <file name>    Secondary command input file, can be a named pipe\n" +
-		"    -m s|t|p|c|h      Set single mode, test mode, programming mode, cluster mode or http-cluster mode\n" +
+		"    -m s|t|p|c|h|b    Set single mode, test mode, programming mode, cluster mode, http-cluster mode or benchmark mode\n" +
 		"                      Single mode: runs BTCMiner on a single board (default mode)\n" +
 		"                      Test mode: tests a board using some test data\n" +
 		"                      Programming mode: programs device with the given firmware\n" +
 		"                      (HTTP-)Cluster mode: runs BTCMiner on all programmed boards\n" +
+		"                      Benchmark mode: runs CPU benchmarks, no hardware required\n" +
 		"    -ep0              Always use slow EP0 for Bitstream transfer\n" +
 		"    -oh <number>      Overheat threshold: if the hash rate drops by that factor (but at least two frequency steps)\n" +
 		"                      the overheat shutdown is triggered (default: 0.04, recommended: 0 to 0.08)\n" +
@@ -391,9 +389,40 @@ class ParameterException extends Exception {
 		"    -ps <string>      Select devices with the given serial number,\n" +
 		"                      in cluster mode: select devices which serial number starts with the given string\n" +
 		"    -e <number>       Maximum error rate\n" +
+		"    -cpu <number>     Mine on the CPU using the given number of threads (0: one per core, at most 256)\n" +
+		"                      In single mode and test mode the CPU is used instead of a board\n" +
+		"    -sim <boards> <fpgas>\n" +
+		"                      Use simulated boards with the given number of FPGAs each\n" +
+		"                      In single mode and test mode the first simulated board is used instead of a board\n" +
+		"    -simopt <name>=<value>\n" +
+		"                      Simulator option, can be specified multiple times: nonces, freqm1 (MHz), freqm, freqmaxm,\n" +
+		"                      extrasolutions, hpc (hashes per clock), timescale, search (golden nonce search hashes per poll, default: 1024),\n" +
+		"                      latency (USB latency in ms), errorrate, errorslope, temp (temperature increase per MHz)\n" +
+		"    -nousb            Do not scan the USB bus in cluster mode (use with -cpu or -sim)\n" +
 		"    -tc               Enable target check (disabled by default)\n" +
 		"    -ac <seconds>     automatically reset performance and error counters every given seconds\n" +
 		"    -iomon <seconds>  Time used to detect successive IO-errors of dead/lagging pools (default: 20)\n" +
+		"    -sub <number> <retries>\n" +
+		"                      Concurrent share submissions per pool and retries of submissions that could not be sent\n" +
+		"                      (default: 2 3). Submissions without response, e.g. after a timeout, are not repeated\n" +
+		"    -wq <number> <seconds>\n" +
+		"                      Work units prefetched per pool (0: no prefetching) and their maximum age (default: 2 20)\n" +
+		"    -gw <number>      Concurrent getwork requests per pool, e.g. after a new block (default: 4)\n" +
+		"    -hedge <percentile>\n" +
+		"                      Hedged getwork: if a miner has not received work from its pool within the given\n" +
+		"                      percentile of the pool's getwork latency (e.g. 95, estimated from mean and deviation),\n" +
+		"                      work is also requested from the next enabled pool and the first work unit is used.\n" +
+		"                      Pools that are not mined on only receive these requests, they do not start prefetching.\n" +
+		"                      Requires prefetching, see -wq (default: 0, i.e. disabled)\n" +
+		"    -batch <number>   Maximum number of getwork requests or share submissions combined into one JSON-RPC\n" +
+		"                      batch request (default: 1, i.e. disabled). Single requests are used if a pool rejects batches\n" +
+		"    -hc <number> <seconds>\n" +
+		"                      Persistent HTTP connections kept per pool (0: none) and their idle timeout (default: 4 30)\n" +
+		"    -hcmax <number>   Maximum number of concurrent HTTP connections per pool, further requests wait (default: 8)\n" +
+		"                      HTTP connections use the proxy of the Java system properties http.proxyHost, http.proxyPort\n" +
+		"                      or socksProxyHost, socksProxyPort. Proxy authentication is not supported\n" +
+		"    -coinbase <address>\n" +
+		"                      Payout address of blocks found by solo mining (required for gbt+http URLs)\n" +
 		"    -v                Be verbose\n" +
 		"    -h                This help\n" +
 		"Parameters in single mode, test mode and programming mode\n" +
@@ -402,6 +431,11 @@ class ParameterException extends Exception {
 		"    -i                Print bus info\n" +
 		"Parameters in cluster mode\n" +
 		"    -n <number>       Maximum amount of devices per thread (default: 10)\n" +
+		"    -rb <seconds>     Interval in which boards are moved between the threads of a bus to keep the\n" +
+		"                      polling load of every thread below 50% (0: disabled, default: 60)\n" +
+		"    -hp <seconds>     Interval of the background bus scans that add new and remove disconnected boards\n" +
+		"                      (0: disabled, default: 60). Mining continues during the scan\n" +
+		"    -tpd              One thread per FPGA, network I/O of a miner does not delay the others (overwrites -n)\n" +
 		"Parameters in httpd cluster mode\n" +
 		"    -id <string>      Mining cluster ID shown on status page (default default)\n" +
 		"    -p <number>       httpd port number (default: 8080)\n" +
@@ -425,6 +459,21 @@ class ParserException extends Exception {
 	}
 }
 
+// *****************************************************************************
+// ******* UnsentException *****************************************************
+// *****************************************************************************
+// I/O error of a request that has definitely not been delivered (connect failure,
+// write error, no free connection), i.e. the request can be repeated safely
+class UnsentException extends IOException {
+	public UnsentException(String msg) {
+		super(msg);
+	}
+
+	public UnsentException(IOException e) {
+		super(e.getLocalizedMessage(), e);
+	}
+}
+
 // *****************************************************************************
 // ******* FirmwareException ***************************************************
 // *****************************************************************************
@@ -452,14 +501,28 @@ class NewBlockMonitor extends Thread implements MsgObj {
 	public boolean running;
 
 	private static final int minLongPollInterval = 250; // in ms
+	public static int longPollTimeout = 1000000;	// in ms, the request is repeated if no new block is reported within that time
+	public static final long maxBackoff = 60000;	// in ms
+	public static final long addressTTL = 300000;	// in ms, resolved addresses are reused for that time
 
 	private byte[] prevBlock = new byte[32];
 	private byte[] dataBuf = new byte[128];
+	private JsonRpcResponse response = new JsonRpcResponse();
+	private HashEngine hashEngine = new HashEngine();
+	private Selector selector;
+	private ByteBuffer readBuf = ByteBuffer.allocate(16384);
+	private Vector<LongPoll> polls = new Vector<LongPoll>();	// modified by the monitor thread only, guarded by this
 
 	private Vector<LogString> logBuf = new Vector<LogString>();
 
 	public static boolean submitOld;
 
+	// time from the detection of a new block until the last miner got work of it, guarded by this
+	private long newTime = 0;		// time of the last detection
+	private long latency = 0;		// of the current block
+	private long latencySum = 0;		// of the previous blocks
+	private int latencyCount = 0;
+
 	// ******* Constructor
 	// *************************************************************************
 	public NewBlockMonitor() {
@@ -479,7 +542,7 @@ class NewBlockMonitor extends Thread implements MsgObj {
 			prevBlock[i] = data[i + 4];
 		}
 		if (n) {
-			newCount += 1;
+			newBlock();
 			submitOld = true;
 			if (newCount > 0) {
 				msg("New block detected by block monitor");
@@ -489,67 +552,562 @@ class NewBlockMonitor extends Thread implements MsgObj {
 		return n;
 	}
 
+	// ******* newBlock
+	// *************************************************************************
+	// requires lock on this
+	private void newBlock() {
+		if (newCount > 0 && latency > 0) {
+			latencySum += latency;
+			latencyCount += 1;
+		}
+		newCount += 1;
+		newTime = new Date().getTime();
+		latency = 0;
+		PollLoop.wakeup();
+	}
+
+	// ******* newWork
+	// *************************************************************************
+	// called by the miners if they start working on a block
+	public synchronized void newWork(int nc) {
+		if (nc == newCount && nc > 0) {
+			latency = Math.max(latency, new Date().getTime() - newTime);
+		}
+	}
+
+	// ******* stats
+	// *************************************************************************
+	public synchronized String stats() {
+		return "all miners on new work " + latency + "ms after the last block change (average: " + (latencyCount > 0 ? latencySum / latencyCount + "ms" : "-") + ")";
+	}
+
+	// ******* longPolling
+	// *************************************************************************
+	// returns true if new blocks of the pool are reported by long polling
+	public synchronized boolean longPolling(RPC rpc) {
+		LongPoll lp = find(rpc);
+		return lp != null && lp.channel != null && !lp.discover;
+	}
+
+	// long polling statistics of a pool, null if it is not polled
+	public synchronized String stats(RPC rpc) {
+		LongPoll lp = find(rpc);
+		if (lp == null || (lp.url == null && lp.first + lp.late + lp.errors == 0)) {
+			return null;
+		}
+		return "long polling: " + (lp.channel != null && !lp.discover ? "active" : "inactive") + ",  new blocks: " + lp.first + " reported first, " + lp.late + " late" + (lp.late > 0 ? " (" + lp.lateSum / lp.late + "ms)" : "") + ",  " + lp.errors + " errors";
+	}
+
+	// ******* json
+	// *************************************************************************
+	public synchronized String json(RPC rpc) {
+		LongPoll lp = find(rpc);
+		if (lp == null) {
+			return "";
+		}
+		return ", \"longpoll_url\":\"" + (lp.url == null ? "" : lp.url) + "\", \"longpoll_first\":\"" + lp.first + "\", \"longpoll_late\":\"" + lp.late + "\", \"longpoll_late_ms\":\"" + (lp.late > 0 ? lp.lateSum / lp.late : 0) + "\", \"longpoll_errors\":\"" + lp.errors + "\"";
+	}
+
+	// ******* longPollWork
+	// *************************************************************************
+	// work unit from the long polling response, null if it cannot be assigned to a getwork pool
+	private Work longPollWork(RPC rpc, long t) {
+		if (rpc == null || rpc.workSource.submits()) {
+			return null;
+		}
+		Work w = new Work(rpc);
+		try {
+			WorkSource.parse(w, response);
+			if (!w.targetValid) {
+				return null;
+			}
+			w.midstate = new byte[32];
+			hashEngine.midstate(w.data, w.midstate);
+		} catch (Exception e) {
+			return null;
+		}
+		w.time = t;
+		return w;
+	}
+
+	// ******* LongPoll
+	// *************************************************************************
+	// Long polling state of a pool or of the -lp server. If the long polling URL
+	// of a pool is unknown, it is determined by a getwork request.
+	private class LongPoll {
+		final RPC rpc;			// null: -lp server
+		final String host, usr, pwd;	// to detect changes
+		String url;			// null: unknown, a getwork request is sent to host
+		boolean discover;		// the current request is a getwork request to host
+
+		SocketChannel channel = null;
+		Resolver resolver = null;	// address of the server or of the HTTP proxy
+		ByteBuffer out;
+		byte[] in = new byte[4096];
+		int inLength;
+		long requestTime;
+		long deadline;
+		long nextTime = 0;		// time of the next request
+		int failures = 0;
+		JsonRpcRequest request = new JsonRpcRequest();
+
+		// statistics, guarded by NewBlockMonitor.this
+		int first = 0;			// new blocks reported first
+		int late = 0;			// new blocks reported after another server
+		long lateSum = 0;
+		int errors = 0;
+
+		LongPoll(RPC rpc, String host, String usr, String pwd, String url) {
+			this.rpc = rpc;
+			this.host = host;
+			this.usr = usr;
+			this.pwd = pwd;
+			this.url = url;
+		}
+
+		String name() {
+			return rpc == null ? "long polling server" : rpc.name;
+		}
+	}
+
+	// ******* Resolver
+	// *************************************************************************
+	// Resolves a host name in the background. A slow or unreachable name server
+	// must not block the selector thread, i.e. the long polling of the other servers.
+	private class Resolver extends Thread {
+		final String host;
+		final int port;
+		final long time;
+		volatile InetSocketAddress address = null;
+		volatile IOException error = null;
+		volatile boolean done = false;
+		boolean waiting = false;	// a request waits for the address, used by the monitor thread only
+
+		Resolver(String host, int port, long time) {
+			super("Resolver " + host);
+			this.host = host;
+			this.port = port;
+			this.time = time;
+			setDaemon(true);
+		}
+
+		public void run() {
+			try {
+				address = new InetSocketAddress(InetAddress.getByName(host), port);
+			} catch (Exception e) {
+				error = new UnknownHostException("Unknown host " + host);
+			}
+			done = true;
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	// ******* longPolls
+	// *************************************************************************
+	// updates the list of long polling servers: every enabled getwork pool and the -lp server
+	private synchronized void longPolls(long t) {
+		for (int i = polls.size() - 1; i >= 0; i--) {
+			LongPoll lp = polls.elementAt(i);
+			boolean keep;
+			if (lp.rpc == null) {
+				keep = lp.host == BTCMiner.longPollURL && lp.usr == BTCMiner.longPollUser && lp.pwd == BTCMiner.longPollPassw;
+			} else {
+				keep = lp.host == lp.rpc.host && lp.usr == lp.rpc.usr && lp.pwd == lp.rpc.pwd && !lp.rpc.disabled();
+			}
+			if (!keep) {
+				close(lp);
+				polls.removeElementAt(i);
+			}
+		}
+
+		if (BTCMiner.longPollURL != null && find(null) == null) {
+			polls.add(new LongPoll(null, BTCMiner.longPollURL, BTCMiner.longPollUser, BTCMiner.longPollPassw, BTCMiner.longPollURL));
+		}
+		for (int i = 0; i < BTCMiner.rpcCount; i++) {
+			RPC rpc = BTCMiner.rpc[i];
+			if (!rpc.workSource.submits() && !rpc.disabled() && find(rpc) == null) {
+				polls.add(new LongPoll(rpc, rpc.host, rpc.usr, rpc.pwd, rpc.longPollURL));
+			}
+		}
+	}
+
+	private LongPoll find(RPC rpc) {
+		for (int i = 0; i < polls.size(); i++) {
+			if (polls.elementAt(i).rpc == rpc) {
+				return polls.elementAt(i);
+			}
+		}
+		return null;
+	}
+
+	// ******* address
+	// *************************************************************************
+	// resolved address of host:port or null if the background resolution is still running.
+	// An expired address is used until the new resolution has finished.
+	private InetSocketAddress address(LongPoll lp, String host, int port, long t) throws IOException {
+		Resolver r = lp.resolver;
+		boolean same = r != null && r.host.equals(host) && r.port == port;
+		if (same && r.done && r.error != null) {
+			lp.resolver = null;
+			throw r.error;
+		}
+		if (same && r.done && t - r.time >= addressTTL) {
+			InetSocketAddress a = r.address;
+			lp.resolver = new Resolver(host, port, t);
+			lp.resolver.start();
+			return a;
+		}
+		if (!same) {
+			r = new Resolver(host, port, t);
+			lp.resolver = r;
+			r.start();
+		}
+		if (!r.done) {
+			long timeout = Math.round(2000.0 * BTCMiner.connectionEffort);
+			if (t - r.time >= timeout) {
+				lp.resolver = null;
+				throw new UnknownHostException(host + ": no response from the name server within " + timeout + "ms");
+			}
+			lp.nextTime = r.time + timeout;
+			r.waiting = true;	// see run
+			return null;
+		}
+		r.waiting = false;
+		return r.address;
+	}
+
+	// ******* open
+	// *************************************************************************
+	// starts a long polling request or a getwork request if the long polling URL is unknown.
+	// Does nothing if the host name is still being resolved. Like HttpConnection it uses
+	// the HTTP proxy of the Java system properties, SOCKS proxies are not supported.
+	private void open(LongPoll lp, long t) throws IOException {
+		lp.discover = lp.url == null;
+		String url = lp.discover ? lp.host : lp.url;
+		URL u = new URL(url);
+		if (!u.getProtocol().equalsIgnoreCase("http")) {
+			throw new MalformedURLException("Unsupported protocol: " + u.getProtocol());
+		}
+		int port = u.getPort() < 0 ? 80 : u.getPort();
+		String path = u.getFile().equals("") ? "/" : u.getFile();
+
+		Proxy proxy = HttpConnection.proxy(url);
+		InetSocketAddress address;
+		if (proxy.type() == Proxy.Type.HTTP) {
+			InetSocketAddress a = (InetSocketAddress) proxy.address();
+			address = address(lp, a.getHostString(), a.getPort(), t);
+			path = "http://" + u.getHost() + ":" + port + path;
+		} else if (proxy.type() == Proxy.Type.SOCKS) {
+			throw new IOException("SOCKS proxies are not supported by long polling");
+		} else {
+			address = address(lp, u.getHost(), port, t);
+		}
+		if (address == null) {
+			return;
+		}
+
+		BTCMiner.bcid += 1;
+		lp.request.encode(BTCMiner.bcid, "getwork", (byte[]) null);
+		String auth = "Basic " + BTCMiner.encodeBase64(lp.usr + ":" + lp.pwd);
+		byte[] head = ("POST " + path + " HTTP/1.1\r\nHost: " + u.getHost() + ":" + port + "\r\nAuthorization: " + auth + "\r\nAccept-Encoding: gzip,deflate\r\nContent-Type: application/json\r\nCache-Control: no-cache\r\nUser-Agent: ztexBTCMiner\r\nX-Mining-Extensions: longpoll midstate rollntime submitold\r\nConnection: close\r\nContent-Length: " + lp.request.length + "\r\n\r\n").getBytes();
+		lp.out = ByteBuffer.allocate(head.length + lp.request.length);
+		lp.out.put(head);
+		lp.out.put(lp.request.buf, 0, lp.request.length);
+		lp.out.flip();
+		lp.inLength = 0;
+
+		lp.channel = SocketChannel.open();
+		lp.channel.configureBlocking(false);
+		lp.channel.socket().setTcpNoDelay(true);
+		lp.requestTime = t;
+		lp.deadline = t + Math.round(2000.0 * BTCMiner.connectionEffort);
+		if (lp.channel.connect(address)) {
+			lp.channel.register(selector, SelectionKey.OP_WRITE, lp);
+		} else {
+			lp.channel.register(selector, SelectionKey.OP_CONNECT, lp);
+		}
+	}
+
+	// ******* close
+	// *************************************************************************
+	private void close(LongPoll lp) {
+		if (lp.channel != null) {
+			try {
+				lp.channel.close();
+			} catch (IOException e) {
+			}
+			lp.channel = null;
+		}
+	}
+
+	// ******* failed
+	// *************************************************************************
+	// closes the connection and schedules a retry with exponential backoff
+	private void failed(LongPoll lp, String s, long t) {
+		close(lp);
+		if (lp.resolver != null && lp.resolver.done) {
+			lp.resolver = null;	// the address may have changed
+		}
+		lp.failures += 1;
+		long d = Math.min(1000L << Math.min(lp.failures - 1, 10), maxBackoff);
+		lp.nextTime = t + d;
+		synchronized (this) {
+			lp.errors += 1;
+		}
+		msg("Warning: " + lp.name() + ": long polling: " + s + ", retrying in " + (d / 1000) + "s");
+	}
+
+	// ******* ready
+	// *************************************************************************
+	// handles I/O readiness of a connection, returns true if the response is complete
+	private boolean ready(SelectionKey key, LongPoll lp, long t) throws IOException {
+		if (key.isConnectable()) {
+			lp.channel.finishConnect();
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		if (key.isValid() && key.isWritable()) {
+			lp.channel.write(lp.out);
+			if (!lp.out.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ);
+				lp.deadline = t + (lp.discover ? Math.round(2000.0 * BTCMiner.connectionEffort) : longPollTimeout);
+			}
+		}
+		if (key.isValid() && key.isReadable()) {
+			readBuf.clear();
+			int l = lp.channel.read(readBuf);
+			if (l < 0) {
+				return true;
+			}
+			if (lp.inLength + l > lp.in.length) {
+				lp.in = Arrays.copyOf(lp.in, Math.max(lp.in.length * 2, lp.inLength + l));
+			}
+			readBuf.flip();
+			readBuf.get(lp.in, lp.inLength, l);
+			lp.inLength += l;
+			return complete(lp);
+		}
+		return false;
+	}
+
+	// ******* complete
+	// *************************************************************************
+	// true if the response has a Content-Length and all bytes have been received
+	private boolean complete(LongPoll lp) {
+		int h = headerLength(lp);
+		if (h < 0) {
+			return false;
+		}
+		String cl = header(lp, h, "content-length");
+		try {
+			return cl != null && lp.inLength - h >= Integer.parseInt(cl);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	// length of the response header incl. the empty line, -1 if incomplete
+	private static int headerLength(LongPoll lp) {
+		for (int i = 3; i < lp.inLength; i++) {
+			if (lp.in[i] == '\n' && lp.in[i - 1] == '\r' && lp.in[i - 2] == '\n' && lp.in[i - 3] == '\r') {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	// value of a response header, name in lower case, null if not present
+	private static String header(LongPoll lp, int h, String name) {
+		String[] lines = new String(lp.in, 0, h).split("\r\n");
+		for (int i = 1; i < lines.length; i++) {
+			int j = lines[i].indexOf(':');
+			if (j > 0 && lines[i].substring(0, j).trim().equalsIgnoreCase(name)) {
+				return lines[i].substring(j + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	// ******* response
+	// *************************************************************************
+	// evaluates a complete response
+	private void response(LongPoll lp, long t) throws IOException, ParserException {
+		close(lp);
+		int h = headerLength(lp);
+		if (h < 12 || lp.in[0] != 'H' || lp.in[9] < '0' || lp.in[9] > '9') {
+			throw new IOException("Invalid response");
+		}
+		int status = Integer.parseInt(new String(lp.in, 9, 3));
+		if (status != 200) {
+			throw new IOException("Server returned HTTP response code: " + status);
+		}
+
+		// body
+		byte[] body = Arrays.copyOfRange(lp.in, h, lp.inLength);
+		String te = header(lp, h, "transfer-encoding");
+		if (te != null && te.toLowerCase().contains("chunked")) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream(body.length);
+			int i = 0;
+			while (true) {
+				int j = i;
+				while (j + 1 < body.length && !(body[j] == '\r' && body[j + 1] == '\n')) {
+					j++;
+				}
+				if (j + 1 >= body.length) {
+					throw new EOFException("Incomplete chunked response");
+				}
+				String s = new String(body, i, j - i);
+				int l = Integer.parseInt(s.indexOf(';') < 0 ? s.trim() : s.substring(0, s.indexOf(';')).trim(), 16);
+				if (l == 0) {
+					break;
+				}
+				if (j + 2 + l > body.length) {
+					throw new EOFException("Incomplete chunked response");
+				}
+				os.write(body, j + 2, l);
+				i = j + 4 + l;
+			}
+			body = os.toByteArray();
+		}
+		String ce = header(lp, h, "content-encoding");
+		if (ce != null && !ce.equalsIgnoreCase("identity")) {
+			InputStream is;
+			if (ce.equalsIgnoreCase("gzip")) {
+				is = new GZIPInputStream(new ByteArrayInputStream(body));
+			} else if (ce.equalsIgnoreCase("deflate")) {
+				is = new InflaterInputStream(new ByteArrayInputStream(body));
+			} else {
+				throw new IOException("Unknown encoding: " + ce);
+			}
+			response.read(is);
+		} else {
+			response.set(body, body.length);
+		}
+		response.rollNTime = header(lp, h, "x-roll-ntime");
+
+		if (lp.discover) {
+			String s = header(lp, h, "x-long-polling");
+			if (s == null || s.equals("")) {
+				lp.nextTime = t + 600000;
+				msg(lp.name() + ": no long polling support, checking again in 10 minutes");
+				return;
+			}
+			lp.url = (s.length() > 7 && s.substring(0, 4).equalsIgnoreCase("http")) ? s : lp.host + s;
+			lp.rpc.longPollURL = lp.url;
+			msg(lp.name() + ": Using LongPolling URL " + lp.url);
+			lp.nextTime = t;
+			return;
+		}
+
+		response.parse();
+		if (response.has(JsonRpcResponse.ERROR) && !response.valueEquals(JsonRpcResponse.ERROR, "null")) {
+			throw new IOException("Error: " + response.value(JsonRpcResponse.ERROR));
+		}
+		response.hexToData(JsonRpcResponse.DATA, dataBuf);
+		String so = response.value(JsonRpcResponse.SUBMITOLD);
+		Work w = longPollWork(lp.rpc, t);
+
+		boolean n = false;
+		synchronized (this) {
+			for (int i = 0; i < 32; i++) {
+				n = n | (dataBuf[i + 4] != prevBlock[i]);
+				prevBlock[i] = dataBuf[i + 4];
+			}
+			if (n) {
+				submitOld = !response.valueEquals(JsonRpcResponse.SUBMITOLD, "false");
+				lp.first += 1;
+				if (w != null) {
+					w.newCount = newCount + 1;	// dispatched before the miners notice the new block
+				}
+			} else {
+				lp.late += 1;
+				lp.lateSum += t - newTime;
+				if (w != null) {
+					w.newCount = newCount;
+				}
+			}
+			if (w != null) {
+				w.rpc.workSource.offer(w);
+			}
+			if (n) {
+				newBlock();
+			}
+		}
+		if (n) {
+			msg("New block detected by long polling from " + lp.name() + (so == null ? "" : " (submitold = " + so + ")"));
+		}
+		lp.failures = 0;
+		lp.nextTime = Math.max(t, lp.requestTime + minLongPollInterval);
+	}
+
 	// ******* run
 	// *************************************************************************
+	// Keeps one long polling request open for every enabled getwork pool and
+	// the -lp server using non-blocking I/O. The first server that reports a
+	// new block triggers newCount, the others are counted as late.
 	public void run() {
 		running = true;
-
-		boolean enableLP = true;
-		boolean warnings = true;
-		long enableLPTime = 0;
-
 		submitOld = true;
 
+		try {
+			selector = Selector.open();
+		} catch (IOException e) {
+			msg("Error: " + e.getLocalizedMessage() + ": long polling disabled");
+			return;
+		}
+
 		while (running) {
 			long t = new Date().getTime();
+			longPolls(t);
 
-			if (BTCMiner.longPollURL != null && enableLP && t > enableLPTime) {
-				try {
-					//		    msg("info: LP");
-					String req = BTCMiner.bitcoinRequest(this, BTCMiner.longPollURL, BTCMiner.longPollUser, BTCMiner.longPollPassw, "getwork", "");
-					BTCMiner.hexStrToData(BTCMiner.jsonParse(req, "data"), dataBuf);
-					submitOld = true;
-					String so = null;
+			// start requests and check timeouts
+			long next = t + 1000;
+			for (int i = 0; i < polls.size(); i++) {
+				LongPoll lp = polls.elementAt(i);
+				if (lp.channel == null && (lp.nextTime <= t || (lp.resolver != null && lp.resolver.waiting && lp.resolver.done))) {
 					try {
-						so = BTCMiner.jsonParse(req, "submitold");
-						if (so.equalsIgnoreCase("false")) {
-							submitOld = false;
-						}
-					} catch (Exception e) {
-					}
-
-					for (int i = 0; i < 32; i++) {
-						prevBlock[i] = dataBuf[i + 4];
-					}
-					newCount += 1;
-					msg("New block detected by long polling" + (so == null ? "" : " (submitold = " + so + ")"));
-				} catch (MalformedURLException e) {
-					msg("Warning: " + e.getLocalizedMessage() + ": disabling long polling");
-					enableLP = false;
-				} catch (IOException e) {
-					if (new Date().getTime() < t + 500) {
-						msg("Warning: " + e.getLocalizedMessage() + ": disabling long polling fo 60s");
-						enableLPTime = new Date().getTime() + 60000;
+						open(lp, t);
+					} catch (IOException e) {
+						failed(lp, e.getLocalizedMessage(), t);
 					}
-				} catch (Exception e) {
-					if (warnings) {
-						msg("Warning: " + e.getLocalizedMessage());
+				} else if (lp.channel != null && lp.deadline <= t) {
+					if (lp.discover || lp.channel.isConnectionPending()) {
+						failed(lp, "timeout", t);
+					} else {
+						close(lp);	// no new block within longPollTimeout
+						lp.nextTime = t;
 					}
-					warnings = false;
 				}
+				next = Math.min(next, lp.channel == null ? lp.nextTime : lp.deadline);
 			}
 
-			if (BTCMiner.longPollURL == null) {
-				enableLPTime = new Date().getTime() + 2000;
+			try {
+				selector.select(Math.max(next - new Date().getTime(), 1));
+			} catch (IOException e) {
 			}
-			t += minLongPollInterval - new Date().getTime();
-			if (t > 5) {
+
+			t = new Date().getTime();
+			for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+				SelectionKey key = i.next();
+				i.remove();
+				LongPoll lp = (LongPoll) key.attachment();
+				if (lp.channel != key.channel()) {
+					continue;
+				}
 				try {
-					Thread.sleep(t);
-				} catch (InterruptedException e) {
+					if (ready(key, lp, t)) {
+						response(lp, t);
+					}
+				} catch (Exception e) {
+					failed(lp, e.getLocalizedMessage(), t);
 				}
 			}
 		}
+
+		for (int i = 0; i < polls.size(); i++) {
+			close(polls.elementAt(i));
+		}
 		// System.out.println("Stopping block monitor");
 	}
 
@@ -586,94 +1144,546 @@ class NewBlockMonitor extends Thread implements MsgObj {
 }
 
 // *****************************************************************************
-// ******* BTCMinerThread ******************************************************
+// ******* Share ***************************************************************
 // *****************************************************************************
-class BTCMinerThread extends Thread {
-	private Vector<BTCMiner> miners = new Vector<BTCMiner>();
-	private String busName;
-	private PollLoop pollLoop = null;
+// A golden nonce waiting for submission
+class Share {
+	public final BTCMiner miner;
+	public final RPC rpc;
+	public final Work work;		// may be null
+	public final int nonce;
+	public final long time;		// time when the share was found
+	private final byte[] header;	// 80 bytes incl. nonce
+
+	int attempts = 0;		// only used by ShareSubmitter
+	long retryTime = 0;
 
 	// ******* Constructor
 	// *************************************************************************
-	public BTCMinerThread(String bn) {
-		busName = bn;
+	public Share(BTCMiner miner, RPC rpc, Work work, byte[] data, int nonce) {
+		this.miner = miner;
+		this.rpc = rpc;
+		this.work = work;
+		this.nonce = nonce;
+		time = new Date().getTime();
+		header = Arrays.copyOf(data, 80);
+		BTCMiner.intToData(nonce, header, 76);
 	}
 
-	// ******* add
+	// ******* data
 	// *************************************************************************
-	public void add(BTCMiner m) {
-		synchronized (miners) {
-			miners.add(m);
-/* xxx
-			m.name = busName + ": " + m.name;
-*/
-		}
-
-		if (pollLoop == null) {
-			BTCMiner.printMsg2("Starting mining thread for bus " + busName);
-			start();
-		}
+	// writes the 128 byte getwork data (header + padding) to buf
+	public void data(byte[] buf) {
+		System.arraycopy(header, 0, buf, 0, 80);
+		System.arraycopy(BTCMiner.sha256_pad1, 0, buf, 80, 48);
 	}
 
-	// ******* size
+	// ******* hex
 	// *************************************************************************
-	public int size() {
-		return miners.size();
+	// hex string of len header bytes
+	public String hex(int offs, int len) {
+		return BTCMiner.dataToHexStr(Arrays.copyOfRange(header, offs, offs + len));
 	}
+}
 
-	// ******* elementAt
+// *****************************************************************************
+// ******* ShareSubmitter ******************************************************
+// *****************************************************************************
+// Submits shares in the background. The poll loops add shares to a bounded
+// queue, the submitter thread passes them to worker threads limited to
+// maxPerPool submissions per pool. Shares that could not be sent (UnsentException)
+// are retried. Other I/O errors, e.g. read timeouts, are not: the pool may have
+// processed the share already and would reject the duplicate.
+// Shares of a getwork pool that wait for a free submission slot are combined
+// into one batch request (up to RPC.maxBatch).
+class ShareSubmitter extends Thread {
+	public static int queueSize = 256;
+	public static int maxPerPool = 2;
+	public static int maxRetries = 3;
+	public static final long retryDelay = 1000;	// in ms, doubled with every retry
+
+	private ConcurrentLinkedQueue<Share> queue = new ConcurrentLinkedQueue<Share>();
+	private AtomicInteger queued = new AtomicInteger(0);
+	private Vector<Share> waiting = new Vector<Share>();	// only used by the submitter thread
+	private ExecutorService workers;
+	private AtomicInteger inFlight = new AtomicInteger(0);
+
+	public volatile boolean running = true;
+	public AtomicInteger submitted = new AtomicInteger(0);
+	public AtomicInteger retried = new AtomicInteger(0);
+	public AtomicInteger dropped = new AtomicInteger(0);
+
+	// ******* Context
 	// *************************************************************************
-	public BTCMiner elementAt(int i) {
-		return miners.elementAt(i);
+	// buffers of a worker thread
+	private static class Context implements MsgObj {
+		JsonRpcRequest request = new JsonRpcRequest();
+		JsonRpcResponse response = new JsonRpcResponse();
+		byte[] dataBuf = new byte[128];
+		byte[][] dataBufs = new byte[0][];	// batch requests
+		JsonRpcResponse[] parts = new JsonRpcResponse[0];
+		Share share;
+		String rejectReason;
+
+		void ensure(int n) {
+			if (parts.length < n) {
+				dataBufs = new byte[n][128];
+				parts = new JsonRpcResponse[n];
+				for (int i = 0; i < n; i++) {
+					parts[i] = new JsonRpcResponse();
+				}
+			}
+		}
+
+		public void msg(String s) {
+			share.miner.msg(s);
+		}
+
+		public void rejectReason(String s) {
+			rejectReason = s;
+		}
 	}
 
-	// ******* find
+	private static ThreadLocal<Context> context = new ThreadLocal<Context>() {
+		protected Context initialValue() {
+			return new Context();
+		}
+	};
+
+	// ******* Constructor
 	// *************************************************************************
-	public BTCMiner find(int dn) {
-		for (int i = 0; i < miners.size(); i++) {
-			if ((miners.elementAt(i).ztex().dev().dev().getDevnum() == dn)) {
-				return miners.elementAt(i);
+	public ShareSubmitter() {
+		super("ShareSubmitter");
+		setDaemon(true);
+		workers = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ShareSubmitter worker");
+				t.setDaemon(true);
+				return t;
 			}
-		}
-		return null;
+		});
+		start();
 	}
 
-	// ******* busName
+	// ******* submit
 	// *************************************************************************
-	public String busName() {
-		return busName;
+	// does not block, returns false if the queue is full
+	public boolean submit(Share share) {
+		if (queued.incrementAndGet() > queueSize) {
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			share.miner.msg("Warning: Share queue full, dropping nonce " + BTCMiner.intToHexStr(share.nonce));
+			return false;
+		}
+		queue.offer(share);
+		LockSupport.unpark(this);
+		return true;
 	}
 
-	// ******* running
+	// ******* pending
 	// *************************************************************************
-	public boolean running() {
-		return pollLoop != null;
+	// number of queued or running submissions
+	public int pending() {
+		return queued.get();
 	}
 
 	// ******* run
 	// *************************************************************************
 	public void run() {
-		pollLoop = new PollLoop(miners);
-		pollLoop.run();
-		pollLoop = null;
+		while (running || queued.get() > 0) {
+			Share share;
+			while ((share = queue.poll()) != null) {
+				waiting.add(share);
+			}
+
+			long t = new Date().getTime();
+			long next = t + 100;
+			for (int i = 0; i < waiting.size(); i++) {
+				share = waiting.elementAt(i);
+				if (share.retryTime > t) {
+					next = Math.min(next, share.retryTime);
+				} else if (acquire(share.rpc)) {
+					waiting.removeElementAt(i);
+					i--;
+					final Vector<Share> shares = new Vector<Share>();
+					shares.add(share);
+					if (RPC.maxBatch > 1 && share.rpc.batch >= 0 && !share.rpc.workSource.submits()) {
+						for (int j = i + 1; j < waiting.size() && shares.size() < RPC.maxBatch; j++) {
+							Share s = waiting.elementAt(j);
+							if (s.rpc == share.rpc && s.retryTime <= t) {
+								waiting.removeElementAt(j);
+								j--;
+								shares.add(s);
+							}
+						}
+					}
+					inFlight.incrementAndGet();
+					workers.execute(new Runnable() {
+						public void run() {
+							if (shares.size() > 1) {
+								submitShares(shares);
+							} else {
+								submitShare(shares.elementAt(0));
+							}
+						}
+					});
+				}
+			}
+
+			LockSupport.parkNanos(Math.max(next - new Date().getTime(), 1) * 1000000L);
+		}
+		workers.shutdown();
 	}
 
-	// ******* printInfo
+	// ******* acquire
 	// *************************************************************************
-	public void printInfo() {
-		if (pollLoop != null) {
-			pollLoop.printInfo(busName);
+	private boolean acquire(RPC rpc) {
+		synchronized (rpc) {
+			if (rpc.submitsInFlight >= maxPerPool) {
+				return false;
+			}
+			rpc.submitsInFlight += 1;
+			return true;
 		}
 	}
 
-	// ******* disconnect
+	// ******* release
 	// *************************************************************************
-	public int disconnect(String ss, Vector<BTCMiner> allMiners) {
+	private void release(RPC rpc) {
+		synchronized (rpc) {
+			rpc.submitsInFlight -= 1;
+		}
+		LockSupport.unpark(this);
+	}
+
+	// ******* submitShare
+	// *************************************************************************
+	private void submitShare(Share share) {
+		long t = new Date().getTime();
+		Context c = context.get();
+		BTCMiner m = share.miner;
+		RPC rpc = share.rpc;
+		boolean done = true;
+
+		c.share = share;
+		c.rejectReason = "";
+		share.attempts += 1;
+		share.data(c.dataBuf);
+
+		try {
+			if (BTCMiner.blkLogFile != null) {
+				BTCMiner.blkLogFile.println(BTCMiner.dateFormat.format(new Date()) + ": " + m.name + ": submitted " + BTCMiner.dataToHexStr(c.dataBuf) + " to " + rpc.name);
+			}
+			boolean accepted;
+			if (rpc.workSource.submits()) {
+				accepted = rpc.workSource.submit(share, c);
+			} else {
+				try {
+					BTCMiner.bitcoinRequest(c, rpc.connections, rpc.host, rpc.usr, rpc.pwd, rpc.authorization(), "getwork", c.dataBuf, c.request, c.response);
+				} catch (ParserException e) {
+					m.msg("Warning: Invalid response to submitted nonce: " + e.getLocalizedMessage());
+				}
+				accepted = accepted(share, c.response);
+			}
+			result(share, accepted, c.rejectReason, t);
+		} catch (IOException e) {
+			m.msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+			done = retry(share, e);
+		} finally {
+			c.share = null;
+			inFlight.decrementAndGet();
+			if (done) {
+				queued.decrementAndGet();
+			}
+			release(rpc);
+		}
+	}
+
+	// ******* submitShares
+	// *************************************************************************
+	// submits several shares of a getwork pool using one batch request
+	private void submitShares(Vector<Share> shares) {
+		long t = new Date().getTime();
+		Context c = context.get();
+		int n = shares.size();
+		BTCMiner m = shares.elementAt(0).miner;
+		RPC rpc = shares.elementAt(0).rpc;
+		int done = n;
+
+		c.share = shares.elementAt(0);
+		c.rejectReason = "";
+		c.ensure(n);
+		for (int i = 0; i < n; i++) {
+			Share share = shares.elementAt(i);
+			share.attempts += 1;
+			share.data(c.dataBufs[i]);
+		}
+
+		try {
+			if (BTCMiner.blkLogFile != null) {
+				for (int i = 0; i < n; i++) {
+					BTCMiner.blkLogFile.println(BTCMiner.dateFormat.format(new Date()) + ": " + shares.elementAt(i).miner.name + ": submitted " + BTCMiner.dataToHexStr(c.dataBufs[i]) + " to " + rpc.name + " (batch)");
+				}
+			}
+			int k = 0;
+			try {
+				k = BTCMiner.bitcoinBatchRequest(c, rpc, "getwork", c.dataBufs, n, c.request, c.response, c.parts);
+			} catch (ParserException e) {
+				m.msg("Warning: Invalid response to submitted nonces: " + e.getLocalizedMessage());
+			}
+			if (k < 0) {
+				// batch requests not supported, the shares are submitted separately
+				for (int i = 0; i < n; i++) {
+					shares.elementAt(i).attempts -= 1;
+					queue.offer(shares.elementAt(i));
+				}
+				done = 0;
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				Share share = shares.elementAt(i);
+				if (i < k) {
+					result(share, accepted(share, c.parts[i]), c.rejectReason, t);
+				} else {
+					result(share, false, "no response", t);
+				}
+			}
+		} catch (IOException e) {
+			m.msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+			done = 0;
+			for (int i = 0; i < n; i++) {
+				if (retry(shares.elementAt(i), e)) {
+					done += 1;
+				}
+			}
+		} finally {
+			c.share = null;
+			inFlight.decrementAndGet();
+			queued.addAndGet(-done);
+			release(rpc);
+		}
+	}
+
+	// ******* accepted
+	// *************************************************************************
+	// evaluates the getwork response to a submitted share
+	private boolean accepted(Share share, JsonRpcResponse response) {
+		BTCMiner m = share.miner;
+		if (m.verbose) {
+			m.dmsg("submitWork returned: " + response);
+		}
+		if (response.valueLength(JsonRpcResponse.ERROR) > 0 && !response.valueEquals(JsonRpcResponse.ERROR, "null")) {
+			m.msg("Error attempting to submit new nonce: " + response.value(JsonRpcResponse.ERROR));
+		}
+		return response.valueEquals(JsonRpcResponse.RESULT, "true");
+	}
+
+	// ******* result
+	// *************************************************************************
+	// t: time when the submission was started
+	private void result(Share share, boolean accepted, String rejectReason, long t) {
+		if (accepted) {
+			share.rpc.shareResult(true);
+		} else {
+			share.miner.msg("Warning: Rejected block: " + rejectReason);
+			share.rpc.shareResult(false);
+		}
+		submitted.incrementAndGet();
+		share.miner.submitTime(new Date().getTime() - t);
+	}
+
+	// ******* retry
+	// *************************************************************************
+	// schedules a share for another attempt if it has not been sent, returns true if the share is dropped
+	private boolean retry(Share share, IOException e) {
+		if (!(e instanceof UnsentException)) {
+			share.miner.msg("Error: Result of submitted nonce " + BTCMiner.intToHexStr(share.nonce) + " unknown, not resubmitted");
+			dropped.incrementAndGet();
+			return true;
+		}
+		if (share.attempts <= maxRetries) {
+			share.retryTime = new Date().getTime() + (retryDelay << (share.attempts - 1));
+			retried.incrementAndGet();
+			queue.offer(share);
+			return false;
+		}
+		share.miner.msg("Error: Unable to submit nonce " + BTCMiner.intToHexStr(share.nonce) + " after " + share.attempts + " attempts");
+		dropped.incrementAndGet();
+		return true;
+	}
+
+	// ******* shutdown
+	// *************************************************************************
+	// waits until all shares are submitted or the timeout (in ms) is reached
+	public void shutdown(long timeout) {
+		running = false;
+		LockSupport.unpark(this);
+		try {
+			join(timeout);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	// ******* stats
+	// *************************************************************************
+	public String stats() {
+		return queued.get() + " queued (" + inFlight.get() + " in flight), " + submitted.get() + " submitted, " + retried.get() + " retries, " + dropped.get() + " dropped";
+	}
+}
+
+// *****************************************************************************
+// ******* BTCMinerThread ******************************************************
+// *****************************************************************************
+class BTCMinerThread extends Thread {
+	private Vector<BTCMiner> miners = new Vector<BTCMiner>();
+	private String busName;
+	private PollLoop pollLoop = null;
+	private boolean started = false;	// guarded by miners
+	private boolean stopped = false;	// no miners left, miners cannot be added anymore, guarded by miners
+	public double load = 0.0;		// fraction of the time spent polling, see BTCMinerCluster.rebalance
+
+	// ******* Constructor
+	// *************************************************************************
+	public BTCMinerThread(String bn) {
+		busName = bn;
+		pollLoop = new PollLoop(miners);
+	}
+
+	// ******* add
+	// *************************************************************************
+	// returns false if the thread has stopped, see stopIfEmpty
+	public boolean add(BTCMiner m) {
+		boolean s;
+		synchronized (miners) {
+			if (stopped) {
+				return false;
+			}
+			miners.add(m);
+/* xxx
+			m.name = busName + ": " + m.name;
+*/
+			s = !started;
+			started = true;
+		}
+
+		if (s) {
+			BTCMiner.printMsg2("Starting mining thread for bus " + busName);
+			start();
+		}
+		return true;
+	}
+
+	// ******* remove
+	// *************************************************************************
+	// removes m without suspending it, waits until the current pass of the loop is finished
+	public void remove(BTCMiner m) {
+		synchronized (miners) {
+			miners.removeElement(m);
+		}
+	}
+
+	// ******* size
+	// *************************************************************************
+	public int size() {
+		return miners.size();
+	}
+
+	// ******* bus
+	// *************************************************************************
+	// bus name without the thread number
+	public String bus() {
+		return busName.substring(0, busName.lastIndexOf('-'));
+	}
+
+	// ******* loopTime
+	// *************************************************************************
+	public long loopTime() {
+		PollLoop l = pollLoop;
+		return l != null ? l.loopTime() : 0;
+	}
+
+	// ******* elementAt
+	// *************************************************************************
+	public BTCMiner elementAt(int i) {
+		return miners.elementAt(i);
+	}
+
+	// ******* find
+	// *************************************************************************
+	public BTCMiner find(int dn) {
+		for (int i = 0; i < miners.size(); i++) {
+			if (miners.elementAt(i).device().devNum() == dn) {
+				return miners.elementAt(i);
+			}
+		}
+		return null;
+	}
+
+	// returns true if the thread contains an FPGA of the board
+	public boolean find(MinerDevice dev) {
+		for (int i = 0; i < miners.size(); i++) {
+			if (miners.elementAt(i).device() == dev) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ******* busName
+	// *************************************************************************
+	public String busName() {
+		return busName;
+	}
+
+	// ******* running
+	// *************************************************************************
+	public boolean running() {
+		synchronized (miners) {
+			return !stopped;
+		}
+	}
+
+	// ******* stopIfEmpty
+	// *************************************************************************
+	// stops the thread if it has no miners, returns true if it is stopped
+	public boolean stopIfEmpty() {
+		synchronized (miners) {
+			if (miners.size() == 0) {
+				stopped = true;
+			}
+			return stopped;
+		}
+	}
+
+	// ******* run
+	// *************************************************************************
+	// the poll loop exits if the thread has no miners, it is restarted if
+	// miners were added in the meantime
+	public void run() {
+		while (!stopIfEmpty()) {
+			pollLoop.run();
+		}
+		pollLoop = null;
+	}
+
+	// ******* printInfo
+	// *************************************************************************
+	public void printInfo() {
+		if (pollLoop != null) {
+			pollLoop.printInfo(busName);
+		}
+	}
+
+	// ******* disconnect
+	// *************************************************************************
+	public int disconnect(String ss, Vector<BTCMiner> allMiners) {
 		int i = 0;
 		synchronized (miners) {
 			for (int j = miners.size() - 1; j >= 0; j--) {
 				BTCMiner m = miners.elementAt(j);
-				if (ss.equals(m.ztex().dev().snString())) {
+				if (ss.equals(m.device().snString())) {
 					BTCMiner.printMsg("Disconnecting " + m.name);
 					if (allMiners != null) {
 						allMiners.removeElement(m);
@@ -693,11 +1703,32 @@ class BTCMinerThread extends Thread {
 // *****************************************************************************
 class BTCMinerCluster {
 	public static int maxDevicesPerThread = 10;
+	public static boolean threadPerDevice = false;	// one thread per bus that starts a thread for every miner, see PollLoop
 	public static boolean verbose = false;
 	public static long autoResetInterval = 0;
+	public static long rebalanceInterval = 60000;	// in ms, 0 disables rebalancing
+	public static double maxLoad = 0.5;		// target: maximum fraction of the time a thread spends polling
+
+	public static long hotplugInterval = 60000;	// in ms, 0 disables the periodic scan
+
+	// device registry: USB boards by bus, device number and serial number, see scanBus
+	private ConcurrentHashMap<String, Vector<BTCMiner>> devices = new ConcurrentHashMap<String, Vector<BTCMiner>>();
+	private ConcurrentHashMap<String, Vector<BTCMiner>> disconnected = new ConcurrentHashMap<String, Vector<BTCMiner>>();	// boards disconnected by the `d' command
+	private ConcurrentLinkedQueue<Vector<BTCMiner>> added = new ConcurrentLinkedQueue<Vector<BTCMiner>>();	// boards configured by the scanner
+	private ConcurrentLinkedQueue<Vector<BTCMiner>> removed = new ConcurrentLinkedQueue<Vector<BTCMiner>>();
+	private Thread scanner = null;		// background scan, see rescan
+	private boolean scanReport = false;
+	private int scanAdded = 0;
+	private int scanRemoved = 0;
+
+	private long lastRebalanceTime = new Date().getTime();
+	private int migrationCount = 0;
+	private Vector<String> migrations = new Vector<String>();	// log of the recent migrations in JSON format
 
 	private Vector<BTCMinerThread> threads = new Vector<BTCMinerThread>();
 	private Vector<BTCMiner> allMiners = new Vector<BTCMiner>();
+	private BTCMiner cpuMiner = null;
+	private boolean simAdded = false;
 
 	// ******* totalHashrate
 	// *************************************************************************
@@ -744,6 +1775,8 @@ class BTCMinerCluster {
 
 		long nextInfoTime = new Date().getTime() + 60000;
 		long nextResetTime = new Date().getTime() + (3 * 60 * 1000); // first auto reset after 3 minutes
+		long nextRebalanceTime = new Date().getTime() + rebalanceInterval;
+		long nextScanTime = new Date().getTime() + hotplugInterval;
 
 		boolean quit = false;
 		while (threads.size() > 0 && !quit) {
@@ -771,6 +1804,25 @@ class BTCMinerCluster {
 				for ( int i=0; i<threads.size(); i++ ) {
 					threads.elementAt(i).printInfo();
 				}
+				if (BTCMiner.shareSubmitter != null) {
+					BTCMiner.printMsg2("Shares: " + BTCMiner.shareSubmitter.stats());
+				}
+				BTCMiner.printMsg2("New blocks: " + BTCMiner.newBlockMonitor.stats());
+				for (int i = 0; i < BTCMiner.rpcCount; i++) {
+					String lps = BTCMiner.newBlockMonitor.stats(BTCMiner.rpc[i]);
+					if (lps != null) {
+						BTCMiner.printMsg2(BTCMiner.rpc[i].name + ": " + lps);
+					}
+					if (BTCMiner.rpc[i].connections.created > 0) {
+						BTCMiner.printMsg2(BTCMiner.rpc[i].name + ": HTTP: " + BTCMiner.rpc[i].connections.stats());
+					}
+					if (BTCMiner.rpc[i].noncesStale + BTCMiner.rpc[i].noncesDropped + BTCMiner.rpc[i].noncesRecovered > 0) {
+						BTCMiner.printMsg2(BTCMiner.rpc[i].name + ": " + BTCMiner.rpc[i].nonceStats());
+					}
+					if (BTCMiner.rpc[i].workSource.takes + BTCMiner.rpc[i].workSource.misses + BTCMiner.rpc[i].workSource.fetched > 0) {
+						BTCMiner.printMsg2(BTCMiner.rpc[i].name + ": " + BTCMiner.rpc[i].workSource.stats());
+					}
+				}
 				BTCMiner.printMsg2("Total hash rate: " + String.format("%.1f", e) + " MH/s");
 				BTCMiner.printMsg2("Total submitted hash rate: " + String.format("%.1f", d) + " MH/s");
 				BTCMiner.printMsg2(" -------- ");
@@ -785,14 +1837,28 @@ class BTCMinerCluster {
 				nextResetTime = new Date().getTime() + autoResetInterval;
 			}
 
-			for (int i = threads.size() - 1; i >= 0; i--) {
-				BTCMinerThread t = threads.elementAt(i);
-				if (!t.running()) {
-					BTCMiner.printMsg2("Stopped thread for bus " + t.busName());
-					threads.removeElementAt(i);
+			// hot-plug: results of background scans
+			applyScan();
+			if (scanner != null && !scanner.isAlive()) {
+				scanner = null;
+				applyScan();
+				if (scanReport || scanAdded + scanRemoved > 0) {
+					summary();
 				}
+				scanReport = false;
+			}
+			if (!BTCMiner.noUsb && hotplugInterval > 0 && new Date().getTime() > nextScanTime) {
+				rescan(false);
+				nextScanTime = new Date().getTime() + hotplugInterval;
 			}
 
+			if (rebalanceInterval > 0 && new Date().getTime() > nextRebalanceTime) {
+				rebalance();
+				nextRebalanceTime = new Date().getTime() + rebalanceInterval;
+			}
+
+			retire();
+
 			try {
 				StringBuffer sb = new StringBuffer();
 				while (System.in.available() > 0) {
@@ -824,7 +1890,7 @@ class BTCMinerCluster {
 					}
 					quit = true;
 				} else if (cmd.equalsIgnoreCase("r") || cmd.equalsIgnoreCase("rescan")) {
-					scan(verbose);
+					rescan(true);
 				} else if (cmd.equalsIgnoreCase("s") || cmd.equalsIgnoreCase("suspend")) {
 					long t = new Date().getTime();
 					int j = 0;
@@ -861,6 +1927,7 @@ class BTCMinerCluster {
 						for (i = threads.size() - 1; i >= 0; i--)  {
 							j += threads.elementAt(i).disconnect(ss, allMiners);
 						}
+						disconnect(ss);
 						System.out.println("Disconnected " + j + " miners");
 					} else {
 						System.out.println("No serial number specified");
@@ -885,113 +1952,475 @@ class BTCMinerCluster {
 	// ******* add
 	// *************************************************************************
 	private void add(BTCMiner m) {
-		int i = 0, j = 0;
-		String bn = m.ztex().dev().dev().getBus().getDirname() + "-" + j;
-		while (i < threads.size()) {
-			BTCMinerThread t = threads.elementAt(i);
-			if (bn.equalsIgnoreCase(threads.elementAt(i).busName())) {
-				if (t.size() < maxDevicesPerThread) {
-					break;
+		do {
+			retire();
+			int i = 0, j = 0;
+			String bn = m.busName() + "-" + j;
+			while (i < threads.size()) {
+				BTCMinerThread t = threads.elementAt(i);
+				if (bn.equalsIgnoreCase(threads.elementAt(i).busName())) {
+					if (t.size() < maxDevicesPerThread || threadPerDevice) {
+						break;
+					}
+					j++;
+					i = 0;
+					bn = m.busName() + "-" + j;
+				} else {
+					i++;
 				}
-				j++;
-				i = 0;
-				bn = m.ztex().dev().dev().getBus().getDirname() + "-" + j;
-			} else {
-				i++;
 			}
-		}
 
-		if (i >= threads.size()) {
-			threads.add(new BTCMinerThread(bn));
-		}
-		threads.elementAt(i).add(m);
+			if (i >= threads.size()) {
+				threads.add(new BTCMinerThread(bn));
+			}
+			if (threads.elementAt(i).add(m)) {
+				return;
+			}
+		} while (true);	// the thread has stopped in the meantime
 	}
 
-	// ******* find
+	// ******* retire
 	// *************************************************************************
-	private BTCMiner find(ZtexDevice1 dev) {
-		int dn = dev.dev().getDevnum();
-		String bn = dev.dev().getBus().getDirname();
+	// removes threads that have stopped because they have no miners left
+	private void retire() {
 		for (int i = threads.size() - 1; i >= 0; i--) {
-			BTCMiner m = threads.elementAt(i).find(dn);
-			if (m != null && bn.equals(m.ztex().dev().dev().getBus().getDirname())) {
-				return m;
+			BTCMinerThread t = threads.elementAt(i);
+			if (!t.running()) {
+				BTCMiner.printMsg2("Stopped thread for bus " + t.busName());
+				threads.removeElementAt(i);
 			}
 		}
-		return null;
-	}
-
-	// ******* insertIntoAllMiners
-	// *************************************************************************
-	private void insertIntoAllMiners(BTCMiner m) {
-		int j = 0;
-		while (j < allMiners.size() && m.name.compareTo(allMiners.elementAt(j).name) >= 0) {
-			j++;
-		}
-		allMiners.insertElementAt(m, j);
 	}
 
-	// ******* scan
+	// ******* rebalance
 	// *************************************************************************
-	private void scan(boolean verbose) {
+	// Moves boards from overloaded threads to other threads of the same bus,
+	// starts a new thread if no thread can take the board and merges lightly
+	// loaded threads. The load of a miner is the fraction of the time spent
+	// polling it since the last call. A thread is overloaded if the sum of the
+	// loads exceeds maxLoad, or half of it in case of overflows. The FPGAs of
+	// a board are moved together. At most one board per thread is moved per call.
+	private void rebalance() {
 		long t = new Date().getTime();
+		long dt = t - lastRebalanceTime;
+		lastRebalanceTime = t;
+		if (threadPerDevice || dt <= 0) {
+			return;
+		}
 
-		allMiners.clear();
-		for (int i = threads.size() - 1; i >= 0; i--) {
+		Vector<BTCMinerThread> ts = new Vector<BTCMinerThread>();
+		HashMap<BTCMinerThread, Integer> overflows = new HashMap<BTCMinerThread, Integer>();
+		for (int i = 0; i < threads.size(); i++) {
 			BTCMinerThread mt = threads.elementAt(i);
-			for (int j = mt.size() - 1; j >= 0; j--) {
+			if (!mt.running() || mt.size() == 0) {
+				continue;
+			}
+			double l = 0.0;
+			int o = 0;
+			for (int j = 0; j < mt.size(); j++) {
 				BTCMiner m = mt.elementAt(j);
-				insertIntoAllMiners(m);
-				if (m.suspended) {
-					m.suspended = false;
-					m.isRunning = false;
-					try {
-						Thread.sleep(20);
-					} catch (InterruptedException e) {
+				long b = m.busyTime;
+				int of = m.overflowTotal;
+				m.load = (double) (b - m.busyMark) / dt;
+				o += of - m.overflowMark;
+				m.busyMark = b;
+				m.overflowMark = of;
+				l += m.load;
+			}
+			mt.load = l;
+			ts.add(mt);
+			overflows.put(mt, o);
+		}
+
+		// overloaded threads
+		for (int i = 0; i < ts.size(); i++) {
+			BTCMinerThread src = ts.elementAt(i);
+			if (src.load <= maxLoad && (overflows.get(src) == 0 || src.load <= maxLoad / 2)) {
+				continue;
+			}
+			Vector<Vector<BTCMiner>> boards = boards(src);
+			if (boards.size() < 2) {
+				continue;
+			}
+			String reason = src.load > maxLoad ? "load" : "overflows";
+			boolean moved = false;
+			for (int j = 0; j < boards.size() && !moved; j++) {
+				Vector<BTCMiner> b = boards.elementAt(j);
+				double bl = load(b);
+				BTCMinerThread dst = null;
+				for (int k = 0; k < ts.size(); k++) {
+					BTCMinerThread mt = ts.elementAt(k);
+					if (mt != src && mt.bus().equals(src.bus()) && mt.size() + b.size() <= maxDevicesPerThread && mt.load + bl <= maxLoad
+						&& (dst == null || mt.find(b.elementAt(0).device()) || (!dst.find(b.elementAt(0).device()) && mt.load < dst.load))) {
+						dst = mt;
 					}
-					BTCMiner.printMsg2(m.name + ": resuming");
-				} else {
-					m.startTimeAdjust = t;
-					BTCMiner.printMsg2(m.name + ": already running");
+				}
+				if (dst != null) {
+					moved = migrate(b, src, dst, reason);
 				}
 			}
+			if (!moved) {
+				// heaviest board to a new thread
+				Vector<BTCMiner> b = boards.elementAt(0);
+				BTCMinerThread dst = new BTCMinerThread(threadName(src.bus()));
+				threads.add(dst);
+				migrate(b, src, dst, reason);
+				ts.add(dst);
+				overflows.put(dst, 0);
+			}
 		}
 
-		BTCMiner.printMsg2("\n(Re)Scanning bus ... ");
-
-		PollLoop.scanMode = true;
-
-		ZtexScanBus1 bus = new ZtexScanBus1(ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, false, false, 1, null, 10, 0, 1, 0);
-		int k = 0;
-		int l = 0;
-		for (int i = 0; i < bus.numberOfDevices(); i++) {
-			try {
-				ZtexDevice1 dev = bus.device(i);
-				if (dev.productId(0) != 10 || dev.productId(2) > 1) {
-					break;
+		// merge the two least loaded threads of a bus
+		for (int i = 0; i < ts.size(); i++) {
+			BTCMinerThread a = ts.elementAt(i);
+			for (int j = 0; j < ts.size(); j++) {
+				BTCMinerThread b = ts.elementAt(j);
+				if (a != b && a.size() > 0 && b.size() > 0 && a.bus().equals(b.bus()) && a.size() <= b.size() && a.size() + b.size() <= maxDevicesPerThread && a.load + b.load <= maxLoad / 2) {
+					Vector<Vector<BTCMiner>> boards = boards(a);
+					for (int k = 0; k < boards.size(); k++) {
+						migrate(boards.elementAt(k), a, b, "merge");
+					}
+					if (a.stopIfEmpty()) {
+						BTCMiner.printMsg2("Stopped thread for bus " + a.busName());
+						threads.removeElement(a);
+					}
+					return;
 				}
-				if (BTCMiner.filterSN == null || dev.snString().substring(0, BTCMiner.filterSN.length()).equals(BTCMiner.filterSN)) {
-					k += 1;
-					BTCMiner m = find(dev);
-					if (m == null) {
-						l += 1;
-						m = new BTCMiner(dev, null, verbose);
-						m.clusterMode = true;
-						add(m);
-						BTCMiner.printMsg(m.name + ": added");
-						insertIntoAllMiners(m);
+			}
+		}
+	}
 
-						for (int j = 1; j < m.numberOfFpgas(); j++) {
-							BTCMiner n = new BTCMiner(m.ztex(), m.fpgaNum(j), verbose);
-							n.clusterMode = true;
+	// ******* boards
+	// *************************************************************************
+	// miners of a thread grouped by board, heaviest board first
+	private static Vector<Vector<BTCMiner>> boards(BTCMinerThread mt) {
+		Vector<Vector<BTCMiner>> boards = new Vector<Vector<BTCMiner>>();
+		for (int i = 0; i < mt.size(); i++) {
+			BTCMiner m = mt.elementAt(i);
+			int j = 0;
+			while (j < boards.size() && boards.elementAt(j).elementAt(0).device() != m.device()) {
+				j++;
+			}
+			if (j >= boards.size()) {
+				boards.add(new Vector<BTCMiner>());
+			}
+			boards.elementAt(j).add(m);
+		}
+		for (int i = 1; i < boards.size(); i++) {
+			for (int j = i; j > 0 && load(boards.elementAt(j)) > load(boards.elementAt(j - 1)); j--) {
+				boards.add(j - 1, boards.remove(j));
+			}
+		}
+		return boards;
+	}
+
+	// ******* load
+	// *************************************************************************
+	private static double load(Vector<BTCMiner> b) {
+		double l = 0.0;
+		for (int i = 0; i < b.size(); i++) {
+			l += b.elementAt(i).load;
+		}
+		return l;
+	}
+
+	// ******* threadName
+	// *************************************************************************
+	// first unused thread name of a bus
+	private String threadName(String bus) {
+		int j = 0;
+		String bn = bus + "-" + j;
+		int i = 0;
+		while (i < threads.size()) {
+			if (bn.equalsIgnoreCase(threads.elementAt(i).busName())) {
+				j++;
+				bn = bus + "-" + j;
+				i = 0;
+			} else {
+				i++;
+			}
+		}
+		return bn;
+	}
+
+	// ******* migrate
+	// *************************************************************************
+	// moves the FPGAs of a board from src to dst, returns false if dst has stopped
+	private boolean migrate(Vector<BTCMiner> b, BTCMinerThread src, BTCMinerThread dst, String reason) {
+		if (!dst.running()) {
+			return false;
+		}
+		double bl = load(b);
+		BTCMiner.printMsg2("Moving " + b.elementAt(0).device().snString() + " (" + b.size() + " FPGA" + (b.size() > 1 ? "s" : "") + ", load " + String.format("%.1f", bl * 100) + "%) from thread " + src.busName() + " (load " + String.format("%.1f", src.load * 100) + "%, " + src.loopTime() + "ms loop time) to " + dst.busName() + " (load " + String.format("%.1f", dst.load * 100) + "%): " + reason);
+		synchronized (migrations) {
+			migrations.add("{\"time\":\"" + BTCMiner.dateFormat.format(new Date()) + "\", \"board\":\"" + b.elementAt(0).device().snString() + "\", \"fpgas\":\"" + b.size() + "\", \"load\":\"" + String.format("%.1f", bl * 100) + "\", \"from\":\"" + src.busName() + "\", \"from_load\":\"" + String.format("%.1f", src.load * 100) + "\", \"to\":\"" + dst.busName() + "\", \"to_load\":\"" + String.format("%.1f", dst.load * 100) + "\", \"reason\":\"" + reason + "\"}");
+			while (migrations.size() > 50) {
+				migrations.removeElementAt(0);
+			}
+			migrationCount += 1;
+		}
+		for (int i = 0; i < b.size(); i++) {
+			src.remove(b.elementAt(i));
+			if (!dst.add(b.elementAt(i))) {
+				add(b.elementAt(i));	// dst has lost its last miner (fatal error) and stopped in the meantime
+			}
+		}
+		src.load -= bl;
+		dst.load += bl;
+		return true;
+	}
+
+	// ******* json
+	// *************************************************************************
+	// threads and migrations
+	public String json() {
+		StringBuffer sb = new StringBuffer("\"thread\":[");
+		for (int i = 0; i < threads.size(); i++) {
+			BTCMinerThread mt = threads.elementAt(i);
+			sb.append((i > 0 ? ", " : "") + "{\"name\":\"" + mt.busName() + "\", \"miners\":\"" + mt.size() + "\", \"load\":\"" + String.format("%.1f", mt.load * 100) + "\", \"loop_time\":\"" + mt.loopTime() + "\"}");
+		}
+		synchronized (migrations) {
+			sb.append("], \"migrations\":\"" + migrationCount + "\", \"migration_log\":[");
+			for (int i = 0; i < migrations.size(); i++) {
+				sb.append((i > 0 ? ", " : "") + migrations.elementAt(i));
+			}
+		}
+		return sb + "]";
+	}
+
+	// ******* insertIntoAllMiners
+	// *************************************************************************
+	private void insertIntoAllMiners(BTCMiner m) {
+		int j = 0;
+		while (j < allMiners.size() && m.name.compareTo(allMiners.elementAt(j).name) >= 0) {
+			j++;
+		}
+		allMiners.insertElementAt(m, j);
+	}
+
+	// ******* key
+	// *************************************************************************
+	// identity of a board in the device registry
+	private static String key(ZtexDevice1 dev) {
+		return dev.dev().getBus().getDirname() + "/" + dev.dev().getDevnum() + "/" + dev.snString();
+	}
+
+	// ******* alive
+	// *************************************************************************
+	// returns true if an FPGA of the board is still mining
+	private static boolean alive(Vector<BTCMiner> b) {
+		for (int i = 0; i < b.size(); i++) {
+			if (b.elementAt(i).fatalError == null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ******* scanBus
+	// *************************************************************************
+	// Enumerates the bus and compares the boards with the device registry. New
+	// boards and boards whose FPGAs all failed are configured, boards that are
+	// no longer connected are removed. Other boards are not touched. The changes
+	// are applied by the cluster thread, see applyScan. Boards disconnected by
+	// the user are only added again if all is true. Returns the number of boards
+	// found.
+	private int scanBus(boolean verbose, boolean all) {
+		ZtexScanBus1 bus = BTCMiner.noUsb ? null : new ZtexScanBus1(ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, false, false, 1, null, 10, 0, 1, 0);
+		HashSet<String> found = new HashSet<String>();
+		int k = 0;
+		for (int i = 0; bus != null && i < bus.numberOfDevices(); i++) {
+			try {
+				ZtexDevice1 dev = bus.device(i);
+				if (dev.productId(0) != 10 || dev.productId(2) > 1) {
+					break;
+				}
+				if (BTCMiner.filterSN == null || dev.snString().substring(0, BTCMiner.filterSN.length()).equals(BTCMiner.filterSN)) {
+					k += 1;
+					String key = key(dev);
+					found.add(key);
+					Vector<BTCMiner> b = devices.get(key);
+					if ((b != null && alive(b)) || (!all && disconnected.containsKey(key))) {
+						continue;
+					}
+					disconnected.remove(key);
+					if (b != null) {
+						devices.remove(key);
+						removed.add(b);
+					}
+
+					b = new Vector<BTCMiner>();
+					BTCMiner m = new BTCMiner(dev, null, verbose);
+					m.clusterMode = true;
+					b.add(m);
+					for (int j = 1; j < m.numberOfFpgas(); j++) {
+						BTCMiner n = new BTCMiner(m.device(), m.fpgaNum(j), verbose);
+						n.clusterMode = true;
+						b.add(n);
+					}
+					devices.put(key, b);
+					added.add(b);
+				}
+			} catch (Exception e) {
+				BTCMiner.printMsg("Error: " + e.getLocalizedMessage());
+			}
+		}
+
+		if (bus != null) {
+			for (Iterator<Map.Entry<String, Vector<BTCMiner>>> it = devices.entrySet().iterator(); it.hasNext(); ) {
+				Map.Entry<String, Vector<BTCMiner>> e = it.next();
+				if (!found.contains(e.getKey())) {
+					removed.add(e.getValue());
+					it.remove();
+				}
+			}
+			disconnected.keySet().retainAll(found);
+		}
+		return k;
+	}
+
+	// ******* applyScan
+	// *************************************************************************
+	// adds the new boards found by scanBus to the threads and removes the
+	// disconnected ones, must be called by the cluster thread
+	private void applyScan() {
+		Vector<BTCMiner> b;
+		boolean c = false;
+		while ((b = removed.poll()) != null) {
+			for (int i = 0; i < b.size(); i++) {
+				BTCMiner m = b.elementAt(i);
+				for (int j = threads.size() - 1; j >= 0; j--) {
+					threads.elementAt(j).remove(m);
+				}
+				if (allMiners.removeElement(m)) {
+					BTCMiner.printMsg(m.name + ": removed");
+				}
+			}
+			scanRemoved += 1;
+			c = true;
+		}
+		while ((b = added.poll()) != null) {
+			long t = new Date().getTime();
+			for (int i = 0; i < b.size(); i++) {
+				BTCMiner m = b.elementAt(i);
+				m.startTime = t;
+				m.startTimeAdjust = t;
+				add(m);
+				BTCMiner.printMsg(m.name + ": added");
+				insertIntoAllMiners(m);
+			}
+			scanAdded += 1;
+			c = true;
+		}
+		if (c) {
+			BTCMiner.connectionEffort = 1.0 + Math.exp((1.0 - Math.sqrt(Math.min(allMiners.size(), threadPerDevice ? 1 : maxDevicesPerThread) * allMiners.size())) / 13.0);
+		}
+	}
+
+	// ******* rescan
+	// *************************************************************************
+	// resumes suspended miners and starts a background scan, mining continues
+	// during the scan. report: print a summary when finished and add boards
+	// disconnected by the user again
+	private void rescan(boolean report) {
+		long t = new Date().getTime();
+		for (int i = allMiners.size() - 1; i >= 0; i--) {
+			BTCMiner m = allMiners.elementAt(i);
+			if (m.suspended && m.fatalError == null) {
+				m.suspended = false;
+				m.isRunning = false;
+				m.startTime += t - m.startTimeAdjust;
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+				}
+				BTCMiner.printMsg2(m.name + ": resuming");
+			}
+		}
+
+		scanReport |= report;
+		if (scanner != null) {
+			if (report) {
+				BTCMiner.printMsg2("Scan already in progress");
+			}
+			return;
+		}
+		if (report) {
+			BTCMiner.printMsg2("Rescanning bus in background ...");
+		}
+		final boolean all = report;
+		scanner = new Thread("Bus scanner") {
+			public void run() {
+				scanBus(verbose, all);
+			}
+		};
+		scanner.setDaemon(true);
+		scanner.start();
+	}
+
+	// ******* disconnect
+	// *************************************************************************
+	// moves boards disconnected by the user out of the device registry, they are
+	// added again by `r'
+	private void disconnect(String ss) {
+		for (Iterator<Map.Entry<String, Vector<BTCMiner>>> it = devices.entrySet().iterator(); it.hasNext(); ) {
+			Map.Entry<String, Vector<BTCMiner>> e = it.next();
+			if (ss.equals(e.getValue().elementAt(0).device().snString())) {
+				disconnected.put(e.getKey(), e.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	// ******* scan
+	// *************************************************************************
+	// initial scan, mining starts when all boards are configured
+	private void scan(boolean verbose) {
+		BTCMiner.printMsg2("\nScanning bus ... ");
+
+		PollLoop.scanMode = true;
+
+		int k = scanBus(verbose, true);
+		applyScan();
+
+		if (BTCMiner.simBoards > 0) {
+			k += BTCMiner.simBoards;
+			if (!simAdded) {
+				simAdded = true;
+				for (int i = 0; i < BTCMiner.simBoards; i++) {
+					try {
+						BTCMiner m = new BTCMiner(new SimulatedMinerDevice(BTCMiner.simFpgas), verbose);
+						m.clusterMode = true;
+						scanAdded += 1;
+						add(m);
+						insertIntoAllMiners(m);
+						for (int j = 1; j < m.numberOfFpgas(); j++) {
+							BTCMiner n = new BTCMiner(m.device(), m.fpgaNum(j), verbose);
+							n.clusterMode = true;
 							add(n);
-							BTCMiner.printMsg(n.name + ": added");
 							insertIntoAllMiners(n);
 						}
+					} catch (Exception e) {
+						BTCMiner.printMsg("Error: " + e.getLocalizedMessage());
 					}
 				}
-			} catch (Exception e) {
-				BTCMiner.printMsg("Error: " + e.getLocalizedMessage());
+				BTCMiner.printMsg(BTCMiner.simBoards + " simulated boards with " + BTCMiner.simFpgas + " FPGA(s) each added");
+			}
+		}
+
+		if (BTCMiner.cpuThreads >= 0) {
+			k += 1;
+			if (cpuMiner == null) {
+				try {
+					cpuMiner = new BTCMiner(new CPUMiner(BTCMiner.cpuThreads), verbose);
+					cpuMiner.clusterMode = true;
+					scanAdded += 1;
+					add(cpuMiner);
+					BTCMiner.printMsg(cpuMiner.name + ": added");
+					insertIntoAllMiners(cpuMiner);
+				} catch (Exception e) {
+					BTCMiner.printMsg("Error: " + e.getLocalizedMessage());
+				}
 			}
 		}
 
@@ -999,22 +2428,31 @@ class BTCMinerCluster {
 			System.err.println("No devices found. At least one device has to be connected.");
 			System.exit(0);
 		}
-		BTCMiner.printMsg2("" + l + " new devices found.");
 
-		t = new Date().getTime();
+		long t = new Date().getTime();
 		for (int i = 0; i < allMiners.size(); i++) {
 			allMiners.elementAt(i).startTime += t - allMiners.elementAt(i).startTimeAdjust;
 		}
 		PollLoop.scanMode = false;
 
+		summary();
+		BTCMiner.connectionEffort = 1.0 + Math.exp((1.0 - Math.sqrt(Math.min(allMiners.size(), threadPerDevice ? 1 : maxDevicesPerThread) * allMiners.size())) / 13.0);
+	}
+
+	// ******* summary
+	// *************************************************************************
+	// prints the result of a scan
+	private void summary() {
+		BTCMiner.printMsg2("" + scanAdded + " new devices found" + (scanRemoved > 0 ? ", " + scanRemoved + " removed" : "") + ".");
+		scanAdded = 0;
+		scanRemoved = 0;
+
 		BTCMiner.printMsg2("\nSummary: ");
 		for (int i = 0; i < threads.size(); i++) {
 			BTCMiner.printMsg2("  Bus " + threads.elementAt(i).busName() + "\t: " + threads.elementAt(i).size() + " miners");
 		}
 		BTCMiner.printMsg2("  Total  \t: " + allMiners.size() + " miners\n");
 		BTCMiner.printMsg2("\nDisconnect all devices or enter `q' for exit. Enter `h' for help.\n");
-
-		BTCMiner.connectionEffort = 1.0 + Math.exp((1.0 - Math.sqrt(Math.min(allMiners.size(), maxDevicesPerThread) * allMiners.size())) / 13.0);
 	}
 }
 
@@ -1036,6 +2474,14 @@ class LogString {
 // *****************************************************************************
 // ******* PollLoop ************************************************************
 // *****************************************************************************
+// Deadline based scheduler of the miners of a thread. Every miner has a poll
+// deadline (read nonces, new work) and an update deadline (frequency,
+// temperature, info). The poll interval is minQueryInterval or less if the
+// nonce counters reach the work refresh threshold earlier (see
+// BTCMiner.pollInterval). New blocks and work for waiting miners wake the
+// loops up (see wakeup). Scheduling lags are recorded in a histogram.
+// In thread per device mode (BTCMinerCluster.threadPerDevice) every miner is
+// polled by its own thread, the thread of the loop only starts these threads.
 class PollLoop {
 	public static boolean scanMode = false;
 
@@ -1043,7 +2489,22 @@ class PollLoop {
 	private double networkTime = 0.0;
 	private double timeW = 1e-6;
 	private Vector<BTCMiner> v;
-	public static final long minQueryInterval = 250;
+	public static final long minQueryInterval = 250;	// default poll interval in ms
+	public static final long minPollInterval = 20;		// shortest poll interval
+	public static final long idleInterval = 1000;		// poll interval of suspended miners
+	public static final long updateInterval = 1000;		// interval of frequency and temperature updates
+
+	public static final long deviceStackSize = 512 * 1024;	// stack size of the threads in thread per device mode
+
+	private static Vector<PollLoop> loops = new Vector<PollLoop>();	// for wakeup
+	private long wakeCount = 0;				// guarded by this
+
+	// scheduling statistics
+	public static final long[] lagBounds = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };	// in ms
+	private long[] lagCount = new long[lagBounds.length + 1];	// last bucket: more than 1000ms
+	private long maxLag = 0;
+	private long polls = 0;
+	private long overdue = 0;					// polls later than the exhaustion time of the miner
 
 	// ******* Constructor
 	// *************************************************************************
@@ -1051,87 +2512,303 @@ class PollLoop {
 		v = pv;
 	}
 
+	// ******* wakeup
+	// *************************************************************************
+	// wakes up all loops, miners that require new work are polled immediately
+	public static void wakeup() {
+		synchronized (loops) {
+			for (int i = 0; i < loops.size(); i++) {
+				PollLoop l = loops.elementAt(i);
+				synchronized (l) {
+					l.wakeCount += 1;
+					l.notifyAll();
+				}
+			}
+		}
+	}
+
 	// ******* run
 	// *************************************************************************
 	public void run() {
+		loops.add(this);
+		if (BTCMinerCluster.threadPerDevice) {
+			runDevices();
+		} else {
+			runShared();
+		}
+		loops.removeElement(this);
+	}
+
+	// ******* runShared
+	// *************************************************************************
+	// polls all miners of the thread
+	private void runShared() {
+		long lastWake = 0;
 		while (v.size() > 0) {
 			long t0 = new Date().getTime();
-			long tu = 0;
+			long next = t0 + minQueryInterval;
+			long wc;
+			synchronized (this) {
+				wc = wakeCount;
+			}
 
 			if (!scanMode) {
+				long tu = 0;
+				boolean active = false;
 				synchronized (v) {
 					for (int i = v.size() - 1; i >= 0; i--) {
 						BTCMiner m = v.elementAt(i);
-						m.usbTime = 0;
-						try {
-							if (!m.suspended) {
-								if (m.checkUpdate() && m.getWork()) { // getwork calls getNonces
-									//m.dmsg("Got new work");
-									m.sendData();
-								} else {
-									m.getNonces();
-								}
-								m.updateFreq();
-								m.printInfo(false);
+						if (poll(m, wc != lastWake)) {
+							active = true;
+							tu += m.usbTime;
+						}
+						next = Math.min(next, Math.min(m.nextPoll, m.nextUpdate));
+					}
+				}
+
+				if (active) {
+					time(new Date().getTime() - t0, tu);
+				}
+			}
+			lastWake = wc;
+
+			synchronized (this) {
+				long t = next - new Date().getTime();
+				if (wakeCount == lastWake && t > 0) {
+					try {
+						wait(t);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+	}
+
+	// ******* runDevices
+	// *************************************************************************
+	// starts a thread for every miner, see runDevice
+	private void runDevices() {
+		HashMap<BTCMiner, Thread> threads = new HashMap<BTCMiner, Thread>();
+		while (v.size() > 0) {
+			synchronized (v) {
+				for (int i = 0; i < v.size(); i++) {
+					final BTCMiner m = v.elementAt(i);
+					Thread t = threads.get(m);
+					if (t == null || !t.isAlive()) {
+						t = new Thread(null, null, m.name, deviceStackSize) {
+							public void run() {
+								runDevice(m);
 							}
-						} catch (IOException e) {
-							RPC rpc = BTCMiner.rpc[m.rpcNum];
-							m.msg("Error: " + e.getLocalizedMessage());
-							rpc.disable();
-						} catch (ParserException e) {
-							RPC rpc = BTCMiner.rpc[m.rpcNum];
-							m.msg("Error: " + e.getLocalizedMessage());
-							rpc.disable();
-						} catch (NumberFormatException e) {
-							RPC rpc = BTCMiner.rpc[m.rpcNum];
-							m.msg("Error: " + e.getLocalizedMessage());
-							rpc.disable();
-						} catch (IndexOutOfBoundsException e) {
-							RPC rpc = BTCMiner.rpc[m.rpcNum];
-							m.msg("Error: " + e.getLocalizedMessage());
-							rpc.disable();
-						} catch (Exception e) {
-							m.msg("Error: " + e.getLocalizedMessage() + ": Disabling device");
-							m.fatalError = "Error: " + e.getLocalizedMessage() + ": Device disabled since " + BTCMiner.dateFormat.format(new Date());
-							v.removeElementAt(i);
-						}
-
-						tu += m.usbTime;
-
-						if (!m.clusterMode) {
-							BTCMiner.newBlockMonitor.print();
-						}
-					}
-				}
-
-				t0 = new Date().getTime() - t0;
-				usbTime = usbTime * 0.9998 + tu;
-				networkTime = networkTime * 0.9998 + t0 - tu;
-				timeW = timeW * 0.9998 + 1;
-			} else {
-				t0 = 0;
+						};
+						t.setDaemon(true);
+						t.start();
+						threads.put(m, t);
+					}
+				}
+				if (threads.size() > v.size()) {
+					threads.keySet().retainAll(v);
+				}
+			}
+			try {
+				Thread.sleep(minQueryInterval);
+			} catch (InterruptedException e) {
 			}
+		}
+	}
 
-			t0 = minQueryInterval - t0;
-			if (t0 > 5) {
-				try {
-					Thread.sleep(t0);
-				} catch (InterruptedException e) {
+	// ******* runDevice
+	// *************************************************************************
+	// polls m until it is removed, the USB transfers of the FPGAs of a board are
+	// serialized by the device
+	private void runDevice(BTCMiner m) {
+		long lastWake;
+		synchronized (this) {
+			lastWake = wakeCount;
+		}
+		while (v.contains(m)) {
+			long wc;
+			synchronized (this) {
+				wc = wakeCount;
+			}
+			if (!scanMode) {
+				long t0 = new Date().getTime();
+				if (poll(m, wc != lastWake)) {
+					time(new Date().getTime() - t0, m.usbTime);
+				}
+			}
+			lastWake = wc;
+
+			synchronized (this) {
+				long now = new Date().getTime();
+				long t = (scanMode ? now + minQueryInterval : Math.min(m.nextPoll, m.nextUpdate)) - now;
+				if (wakeCount == lastWake && t > 0) {
+					try {
+						wait(t);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+	}
+
+	// ******* poll
+	// *************************************************************************
+	// polls and updates m if due, w: wake up. Returns false if nothing was due.
+	// Miners with fatal errors are removed.
+	private boolean poll(BTCMiner m, boolean w) {
+		if (w && !m.suspended && m.checkUpdate()) {
+			m.nextPoll = Math.min(m.nextPoll, new Date().getTime());
+		}
+		long t = new Date().getTime();
+		if (m.nextPoll > t && m.nextUpdate > t) {
+			return false;
+		}
+
+		m.usbTime = 0;
+		try {
+			if (m.nextPoll <= t) {
+				lag(m, t);
+				if (!m.suspended) {
+					if (m.checkUpdate() && (m.rollWork() || m.getWork())) { // rollWork and getwork call getNonces
+						//m.dmsg("Got new work");
+						m.sendData();
+					} else {
+						m.getNonces();
+					}
+				}
+				m.lastPoll = t;
+				m.exhaustion = m.exhaustionTime();
+				m.nextPoll = new Date().getTime() + (m.suspended ? idleInterval : m.pollInterval());
+			}
+			if (m.nextUpdate <= t) {
+				if (!m.suspended) {
+					m.updateFreq();
+					m.printInfo(false);
+				}
+				m.nextUpdate = t + updateInterval;
+			}
+		} catch (IOException e) {
+			RPC rpc = BTCMiner.rpc[m.rpcNum];
+			m.msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+		} catch (ParserException e) {
+			RPC rpc = BTCMiner.rpc[m.rpcNum];
+			m.msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+		} catch (NumberFormatException e) {
+			RPC rpc = BTCMiner.rpc[m.rpcNum];
+			m.msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+		} catch (IndexOutOfBoundsException e) {
+			RPC rpc = BTCMiner.rpc[m.rpcNum];
+			m.msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+		} catch (Exception e) {
+			m.msg("Error: " + e.getLocalizedMessage() + ": Disabling device");
+			m.fatalError = "Error: " + e.getLocalizedMessage() + ": Device disabled since " + BTCMiner.dateFormat.format(new Date());
+			v.removeElement(m);
+		}
+		m.nextPoll = Math.max(m.nextPoll, t + minPollInterval);	// also after errors
+		m.nextUpdate = Math.max(m.nextUpdate, t + minPollInterval);
+		m.busyTime += new Date().getTime() - t;
+
+		if (!m.clusterMode) {
+			BTCMiner.newBlockMonitor.print();
+		}
+		return true;
+	}
+
+	// ******* loopTime
+	// *************************************************************************
+	// average time of a pass (shared mode) or poll (thread per device) in ms
+	public synchronized long loopTime() {
+		return Math.round((usbTime + networkTime) / timeW);
+	}
+
+	// ******* time
+	// *************************************************************************
+	// records the time of a pass (shared mode) or poll (thread per device)
+	private synchronized void time(long t, long tu) {
+		usbTime = usbTime * 0.9998 + tu;
+		networkTime = networkTime * 0.9998 + t - tu;
+		timeW = timeW * 0.9998 + 1;
+	}
+
+	// ******* lag
+	// *************************************************************************
+	// records the scheduling lag of a poll of m at time t
+	private synchronized void lag(BTCMiner m, long t) {
+		if (m.lastPoll == 0) {
+			return;		// first poll
+		}
+		long l = Math.max(t - m.nextPoll, 0);
+		int i = 0;
+		while (i < lagBounds.length && l > lagBounds[i]) {
+			i++;
+		}
+		lagCount[i] += 1;
+		maxLag = Math.max(maxLag, l);
+		polls += 1;
+		long g = t - m.lastPoll;
+		m.maxPollGap = Math.max(m.maxPollGap, g);
+		if (g > m.exhaustion) {
+			overdue += 1;
+		}
+	}
+
+	// ******* lagStats
+	// *************************************************************************
+	private synchronized String lagStats() {
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < lagCount.length; i++) {
+			if (lagCount[i] > 0) {
+				sb.append((i < lagBounds.length ? "<=" + lagBounds[i] : ">" + lagBounds[lagBounds.length - 1]) + "ms: " + String.format("%.1f", lagCount[i] * 100.0 / polls) + "%  ");
+			}
+		}
+		return sb + "max: " + maxLag + "ms,  " + overdue + " of " + polls + " polls after the exhaustion time";
+	}
+
+	// ******* json
+	// *************************************************************************
+	// scheduling lag histogram of all loops
+	public static String json() {
+		long[] c = new long[lagBounds.length + 1];
+		long ml = 0, p = 0, o = 0;
+		synchronized (loops) {
+			for (int j = 0; j < loops.size(); j++) {
+				PollLoop l = loops.elementAt(j);
+				synchronized (l) {
+					for (int i = 0; i < c.length; i++) {
+						c[i] += l.lagCount[i];
+					}
+					ml = Math.max(ml, l.maxLag);
+					p += l.polls;
+					o += l.overdue;
 				}
 			}
 		}
+		StringBuffer sb = new StringBuffer("\"scheduling_lag\":{");
+		for (int i = 0; i < c.length; i++) {
+			sb.append((i > 0 ? ", " : "") + "\"" + (i < lagBounds.length ? "le_" + lagBounds[i] : "gt_" + lagBounds[lagBounds.length - 1]) + "\":\"" + c[i] + "\"");
+		}
+		return sb + "}, \"scheduling_lag_max\":\"" + ml + "\", \"polls\":\"" + p + "\", \"polls_overdue\":\"" + o + "\"";
 	}
 
 	// ******* printInfo
 	// *************************************************************************
 	public void printInfo(String name) {
 		int oc = 0;
+		long wr = 0, wn = 0, it = 0;
 		double gt = 0.0, gtw = 0.0, st = 0.0, stw = 0.0;
 		for (int i = v.size() - 1; i >= 0; i--) {
 			BTCMiner m = v.elementAt(i);
 			oc += m.overflowCount;
 			m.overflowCount = 0;
 
+			wr += m.replacedCount;
+			wn += m.wastedNonces;
+			it += m.idleTime;
+
 			st += m.submitTime;
 			stw += m.submitTimeW;
 
@@ -1140,6 +2817,20 @@ class PollLoop {
 		}
 
 		BTCMiner.printMsg2(name + ": poll loop time: " + Math.round((usbTime + networkTime) / timeW) + "ms (USB: " + Math.round(usbTime / timeW) + "ms network: " + Math.round(networkTime / timeW) + "ms)   getwork time: " + Math.round(gt / gtw) + "ms  submit time: " + Math.round(st / stw) + "ms");
+		BTCMiner.printMsg2(name + ": scheduling lag: " + lagStats());
+		BTCMiner.printMsg2(name + ": work refresh: " + wr + " work units replaced,  wasted nonce space: " + String.format("%.2f", wn * 100.0 / Math.max(wr * 0x100000000L, 1)) + "%,  idle time: " + it + "ms");
+
+		// work units derived by ntime rolling
+		for (int j = 0; j < BTCMiner.rpcCount; j++) {
+			int wc = 0, rc = 0;
+			for (int i = v.size() - 1; i >= 0; i--) {
+				wc += v.elementAt(i).workCount[j];
+				rc += v.elementAt(i).rollCount[j];
+			}
+			if (rc > 0) {
+				BTCMiner.printMsg2(name + ": " + BTCMiner.rpc[j].name + ": " + (wc + rc) + " work units, " + rc + " by ntime rolling: getwork requests reduced by " + String.format("%.1f", rc * 100.0 / (wc + rc)) + "%");
+			}
+		}
 		if (oc > 0) {
 			BTCMiner.printMsg(name + ": Warning: " + oc + " overflows occured. This is usually caused by a slow network connection.");
 		}
@@ -1159,68 +2850,4317 @@ class RPC {
 	public int		sharesGetwork;
 	public int		sharesAccepted;
 	public int		sharesRejected;
+	public int		noncesStale;		// golden nonces of replaced work from before the last new block, not submitted
+	public int		noncesDropped;		// golden nonces that do not belong to any recent work (e.g. hardware errors)
+	public int		noncesRecovered;	// golden nonces of replaced work, submitted against that work
 	public int		poolDisabled;
 	public double		difficulty;
 
-	public int		ioDisableMonitorTime;
-	static final int	ioDisableTime = 10;
-	int[]			ioDisableTimeEffort = { 1, 1, 2, 2, 2, 3, 4, 5, 6, 9, 12, 12, 18, 18, 30, 30, 60, 60, 90, 120, 180, 360 };
-	int			ioDisableCount;
-	long			disableTime;
+	public int		ioDisableMonitorTime;
+	static final int	ioDisableTime = 10;
+	int[]			ioDisableTimeEffort = { 1, 1, 2, 2, 2, 3, 4, 5, 6, 9, 12, 12, 18, 18, 30, 30, 60, 60, 90, 120, 180, 360 };
+	int			ioDisableCount;
+	long			disableTime;
+
+	public HttpConnectionPool	connections = new HttpConnectionPool();
+	public WorkSource		workSource;
+	public String			longPollURL = null;	// from the X-Long-Polling header, null if unknown
+	int			submitsInFlight = 0;	// guarded by this
+
+	public static int	maxBatch = 1;		// maximum number of calls per JSON-RPC batch request, 1 disables batching
+	public volatile int	batch = 0;		// batch requests: 0 not yet used, 1 supported, -1 rejected (single requests are used)
+	public int		batchRequests = 0;	// statistics, guarded by this
+	public int		batchCalls = 0;
+
+	private String		authUsr;
+	private String		authPwd;
+	private String		authorization;
+
+	public RPC(String name, String url, String host, String usr, String pwd, boolean mine) {
+		this.name = name;
+		this.url = url;
+		this.host = host;
+		this.usr = usr;
+		this.pwd = pwd;
+		this.mine = mine;
+		if (StratumWorkSource.isStratumURL(host)) {
+			workSource = new StratumWorkSource(this);
+		} else if (GbtWorkSource.isGbtURL(host)) {
+			workSource = new GbtWorkSource(this);
+		} else {
+			workSource = new WorkSource(this);
+		}
+
+		sharesGetwork = 0;
+		sharesAccepted = 0;
+		sharesRejected = 0;
+		noncesStale = 0;
+		noncesDropped = 0;
+		noncesRecovered = 0;
+		poolDisabled = 0;
+		difficulty = 1.0;
+		disableTime = 0;
+		ioDisableMonitorTime = 20;
+		ioDisableCount = 0;
+	}
+
+	public synchronized void disable() {
+		long t = new Date().getTime();
+
+		if (t > disableTime) {
+			if (t < (disableTime + ioDisableMonitorTime * 1000)) {
+				ioDisableCount += 1;
+			} else if (t > (disableTime + 10 * ioDisableMonitorTime * 1000)) {
+				ioDisableCount = 0;
+			}
+
+			int i = ioDisableCount;
+			if (i > (ioDisableTimeEffort.length - 1)) {
+				i = ioDisableTimeEffort.length - 1;
+			}
+
+			BTCMiner.printMsg("Disabling URL " + host + " for " + (ioDisableTimeEffort[i] * ioDisableTime) + "s");
+			disableTime = t + ioDisableTimeEffort[i] * ioDisableTime * 1000;
+			poolDisabled += 1;
+		}
+	}
+
+	public synchronized void shareResult(boolean accepted) {
+		if (accepted) {
+			sharesAccepted += 1;
+		} else {
+			sharesRejected += 1;
+		}
+	}
+
+	// counts golden nonces that were not found on the current work of an FPGA, see BTCMiner.getNonces
+	public synchronized void nonceResult(int stale, int dropped, int recovered) {
+		noncesStale += stale;
+		noncesDropped += dropped;
+		noncesRecovered += recovered;
+	}
+
+	public String nonceStats() {
+		return noncesStale + " stale, " + noncesDropped + " dropped, " + noncesRecovered + " misattributed nonces";
+	}
+
+	public synchronized void enable() {
+		disableTime = 0;
+		ioDisableCount = 0;
+	}
+
+	public synchronized boolean disabled() {
+		return disableTime > new Date().getTime();
+	}
+
+	// value of the Authorization header, recomputed only if usr or pwd is changed
+	public synchronized String authorization() {
+		if (authorization == null || authUsr != usr || authPwd != pwd) {
+			authUsr = usr;
+			authPwd = pwd;
+			authorization = "Basic " + BTCMiner.encodeBase64(usr + ":" + pwd);
+		}
+		return authorization;
+	}
+
+	public void resetStats() {
+		sharesGetwork = 0;
+		sharesAccepted = 0;
+		sharesRejected = 0;
+		noncesStale = 0;
+		noncesDropped = 0;
+		noncesRecovered = 0;
+		poolDisabled = 0;
+	}
+}
+
+// *****************************************************************************
+// ******* Work ****************************************************************
+// *****************************************************************************
+// A getwork response
+class Work {
+	public final RPC rpc;
+	public final byte[] data = new byte[128];
+	public final byte[] target = new byte[32];
+	public boolean targetValid = false;	// false if the target is not a 64 digit hex string
+	public long time;			// time of the request
+	public int newCount;			// NewBlockMonitor.newCount after the response
+	public boolean checkTarget = false;	// shares have to be checked against the target
+	public int rollNTime = 0;		// time in s during which ntime may be rolled (X-Roll-NTime), 0: no rolling
+	public byte[] midstate = null;		// null if not precomputed
+	public String jobId = null;		// stratum only
+	public String extranonce2 = null;	// stratum and getblocktemplate
+	public Object job = null;		// work source specific data
+	public int generation = 0;		// WorkSource.generation of the pool when the work was created
+
+	// ******* Constructor
+	// *************************************************************************
+	public Work(RPC rpc) {
+		this.rpc = rpc;
+	}
+
+	// ******* cleaned
+	// *************************************************************************
+	// true if the pool has invalidated the work (stratum clean_jobs), shares of it are rejected
+	public boolean cleaned() {
+		return generation < rpc.workSource.generation;
+	}
+}
+
+// *****************************************************************************
+// ******* RecentWork **********************************************************
+// *****************************************************************************
+// Copy of work that was replaced on an FPGA. Golden nonces that are read after
+// the work change are verified against it and submitted to its pool.
+class RecentWork {
+	public final byte[] data = new byte[128];
+	public final byte[] target = new byte[32];
+	public final HashEngine hashEngine = new HashEngine();
+	public boolean checkTarget;
+	public double difficulty;
+	public int rpcNum;
+	public Work work;		// may be null
+	public int newCount;		// NewBlockMonitor.newCount of the work
+	public long time;		// time when the work was replaced
+
+	// ******* set
+	// *************************************************************************
+	public void set(byte[] data, byte[] midstate, byte[] target, boolean checkTarget, double difficulty, int rpcNum, Work work, int newCount) {
+		System.arraycopy(data, 0, this.data, 0, 128);
+		System.arraycopy(target, 0, this.target, 0, 32);
+		hashEngine.setWork(data, midstate);
+		hashEngine.setTarget(target);
+		this.checkTarget = checkTarget;
+		this.difficulty = difficulty;
+		this.rpcNum = rpcNum;
+		this.work = work;
+		this.newCount = newCount;
+		time = new Date().getTime();
+	}
+
+	// ******* check
+	// *************************************************************************
+	// returns true if n is a golden nonce of this work that meets the target (if required)
+	public boolean check(int n) {
+		if (hashEngine.getHash7(n) != 0) {
+			return false;
+		}
+		if (checkTarget) {
+			hashEngine.getHash(n);
+			return hashEngine.compareWithTarget();
+		}
+		return true;
+	}
+}
+
+// *****************************************************************************
+// ******* WorkSource **********************************************************
+// *****************************************************************************
+// Keeps up to depth work units of a pool ready. The queue is refilled by
+// background threads that are started by the first take(). Work older than
+// maxAge or from before the last new block is discarded.
+// Concurrent demand (e.g. of all miners after a new block) is coalesced: the
+// refill target is raised by the number of waiting miners, at most maxInFlight
+// getwork requests are sent at the same time and the work is handed out in
+// the order the miners started waiting.
+class WorkSource extends Thread implements MsgObj {
+	public static int depth = 2;		// 0 disables prefetching
+	public static int maxAge = 20;		// in s
+	public static int maxInFlight = 4;	// concurrent getwork requests per pool
+	public static final long waitExpire = 2000;	// in ms, consumers that did not ask for work for that time are not waiting anymore
+	public static int hedge = 0;		// hedging percentile of the getwork latency, 0 disables hedging, see BTCMiner.getWork
+	public static final long hedgeDefault = 1000;	// hedging delay in ms if no latencies are known
+
+	protected final RPC rpc;
+	public volatile int generation = 0;	// incremented if the pool invalidates all its work, see Work.cleaned
+	private Vector<Work> queue = new Vector<Work>();
+	private boolean started = false;
+	private boolean hedging = false;	// one-shot request of hedge() in flight, guarded by queue
+	private int inFlight = 0;		// getwork requests of the fetch threads, guarded by queue
+	private LinkedHashMap<Object, long[]> waiting = new LinkedHashMap<Object, long[]>();	// consumers without work in the order of their first miss: { time of the first miss, time of the last miss }
+
+	// statistics
+	public int takes = 0;
+	public int misses = 0;
+	public int fetched = 0;
+	public int discarded = 0;
+	public int offered = 0;			// work units from long polling
+	public double fillTime = 0.0;		// exponentially weighted sum of the getwork times
+	public double fillTime2 = 0.0;		// same for the squares, for the deviation
+	public double fillTimeW = 1e-6;
+	public long waitSum = 0;		// time between the first miss and the take, summed over all takes
+	public long waitMax = 0;
+	public int coalesced = 0;		// misses of already waiting consumers, no additional getwork request
+	public int hedged = 0;			// work taken from another pool because this one was late, guarded by queue
+	private long[] latencies = new long[256];	// ring buffer of the recent getwork latencies
+	private long[] sorted = new long[256];		// scratch buffer of percentiles()
+	private int latencyCount = 0;
+	private int sortedCount = 0;			// latencyCount at the last update of the percentiles
+	private long sortedTime = 0;
+	private long p50 = 0, p99 = 0;		// percentiles of the latencies, see percentiles()
+	public static final long percentilesInterval = 1000;	// in ms, minimum interval of the percentile updates
+
+	// buffers of fetch(), per thread because synchronous getwork requests (depth 0) of the miners run concurrently
+	private static ThreadLocal<JsonRpcRequest> request = new ThreadLocal<JsonRpcRequest>() {
+		protected JsonRpcRequest initialValue() {
+			return new JsonRpcRequest();
+		}
+	};
+	private static ThreadLocal<JsonRpcResponse> response = new ThreadLocal<JsonRpcResponse>() {
+		protected JsonRpcResponse initialValue() {
+			return new JsonRpcResponse();
+		}
+	};
+
+	// ******* Constructor
+	// *************************************************************************
+	public WorkSource(RPC rpc) {
+		super("WorkSource " + rpc.name);
+		this.rpc = rpc;
+		setDaemon(true);
+	}
+
+	// ******* msg
+	// *************************************************************************
+	public void msg(String s) {
+		BTCMiner.printMsg(rpc.name + ": " + s);
+	}
+
+	// ******* rejectReason
+	// *************************************************************************
+	public void rejectReason(String s) {
+	}
+
+	// ******* take
+	// *************************************************************************
+	// returns a work unit or null if none is available, does not block
+	// consumer: identifies the requester (miner)
+	public Work take(Object consumer) {
+		synchronized (queue) {
+			prefetch();
+			return poll(consumer);
+		}
+	}
+
+	// ******* poll
+	// *************************************************************************
+	// take without starting the fetch threads, requires lock on queue
+	private Work poll(Object consumer) {
+		purge();
+		long t = new Date().getTime();
+
+		// waiting consumers are served first, in order
+		backlog();
+		int pos = 0;
+		for (Object c : waiting.keySet()) {
+			if (c == consumer) {
+				break;
+			}
+			pos++;
+		}
+		if (pos >= queue.size()) {
+			misses += 1;
+			long[] m = waiting.get(consumer);
+			if (m == null) {
+				waiting.put(consumer, new long[] { t, t });
+			} else {
+				m[1] = t;
+				coalesced += 1;
+			}
+			queue.notifyAll();
+			return null;
+		}
+
+		takes += 1;
+		long[] m = waiting.remove(consumer);
+		if (m != null) {
+			waitSum += t - m[0];
+			waitMax = Math.max(waitMax, t - m[0]);
+		}
+		Work w = queue.remove(0);
+		queue.notifyAll();
+		return w;
+	}
+
+	// ******* prefetch
+	// *************************************************************************
+	// starts the background thread
+	public void prefetch() {
+		synchronized (queue) {
+			if (!started && depth > 0) {
+				started = true;
+				start();
+			}
+		}
+	}
+
+	// ******* backlog
+	// *************************************************************************
+	// number of waiting consumers, requires lock on queue
+	private int backlog() {
+		long t = new Date().getTime() - waitExpire;
+		for (Iterator<long[]> i = waiting.values().iterator(); i.hasNext();) {
+			if (i.next()[1] < t) {
+				i.remove();
+			}
+		}
+		return waiting.size();
+	}
+
+	// ******* size
+	// *************************************************************************
+	public int size() {
+		return queue.size();
+	}
+
+	// ******* purge
+	// *************************************************************************
+	// removes old work, requires lock on queue
+	private void purge() {
+		long t = new Date().getTime() - maxAge * 1000L;
+		int nc = BTCMiner.newBlockMonitor.newCount;
+		for (int i = queue.size() - 1; i >= 0; i--) {
+			Work w = queue.elementAt(i);
+			if (w.time < t || w.newCount < nc) {
+				queue.removeElementAt(i);
+				discarded += 1;
+			}
+		}
+	}
+
+	// ******* fetch
+	// *************************************************************************
+	// requests a work unit from the pool, blocks
+	public Work fetch() throws MalformedURLException, IOException, ParserException {
+		return fetch(request.get(), response.get());
+	}
+
+	private Work fetch(JsonRpcRequest request, JsonRpcResponse response) throws MalformedURLException, IOException, ParserException {
+		long t = new Date().getTime();
+		int nc = BTCMiner.newBlockMonitor.newCount;
+		BTCMiner.bitcoinRequest(this, rpc.connections, rpc.host, rpc.usr, rpc.pwd, rpc.authorization(), "getwork", null, request, response);
+		return work(response, t, nc);
+	}
+
+	// requests up to n work units using one batch request and adds them to ws,
+	// a single request is used if n == 1 or if the pool does not support batch requests
+	private void fetch(int n, JsonRpcRequest request, JsonRpcResponse response, JsonRpcResponse[] parts, Vector<Work> ws) throws MalformedURLException, IOException, ParserException {
+		if (n > 1) {
+			long t = new Date().getTime();
+			int nc = BTCMiner.newBlockMonitor.newCount;
+			int k = BTCMiner.bitcoinBatchRequest(this, rpc, "getwork", null, n, request, response, parts);
+			if (k >= 0) {
+				ParserException pe = new ParserException("Empty batch response");
+				for (int i = 0; i < k; i++) {
+					try {
+						Work w = work(parts[i], t, nc);
+						nc = Math.max(nc, w.newCount);	// a new block is only detected by the first work unit
+						ws.add(w);
+					} catch (ParserException e) {
+						pe = e;
+					}
+				}
+				if (ws.size() == 0) {
+					throw pe;
+				}
+				return;
+			}
+		}
+		ws.add(fetch(request, response));
+	}
+
+	// ******* work
+	// *************************************************************************
+	// creates a work unit from a getwork response
+	// time: time of the request, nc: NewBlockMonitor.newCount at that time
+	private Work work(JsonRpcResponse response, long time, int nc) throws ParserException {
+		Work w = new Work(rpc);
+		w.time = time;
+
+		parse(w, response);
+		if (BTCMiner.newBlockMonitor.newCount == nc) {
+			BTCMiner.newBlockMonitor.checkNew(w.data);
+			w.newCount = BTCMiner.newBlockMonitor.newCount;
+		} else {
+			w.newCount = nc;	// new block detected by long polling during the request, the response may be older
+		}
+
+		long t = new Date().getTime() - w.time;
+		synchronized (queue) {
+			rpc.sharesGetwork += 1;
+			fetched += 1;
+			fillTime = fillTime * 0.99 + t;
+			fillTime2 = fillTime2 * 0.99 + (double) t * t;
+			fillTimeW = fillTimeW * 0.99 + 1;
+			latency(t);
+		}
+		return w;
+	}
+
+	// ******* latency
+	// *************************************************************************
+	// adds a getwork latency, requires lock on queue
+	private void latency(long t) {
+		latencies[latencyCount % latencies.length] = t;
+		latencyCount++;
+	}
+
+	// ******* percentiles
+	// *************************************************************************
+	// updates the percentiles if new latencies were added, at most every
+	// percentilesInterval ms (the first latency is used immediately), requires lock on queue
+	private void percentiles() {
+		if (sortedCount == latencyCount) {
+			return;
+		}
+		long t = new Date().getTime();
+		if (sortedCount > 0 && t - sortedTime < percentilesInterval) {
+			return;
+		}
+		int n = Math.min(latencyCount, latencies.length);
+		System.arraycopy(latencies, 0, sorted, 0, n);
+		Arrays.sort(sorted, 0, n);
+		p50 = sorted[(n - 1) * 50 / 100];
+		p99 = sorted[(n - 1) * 99 / 100];
+		sortedCount = latencyCount;
+		sortedTime = t;
+	}
+
+	// ******* expectedLatency
+	// *************************************************************************
+	// time in ms a consumer has to expect until it gets work: the 99th percentile of the
+	// getwork latencies, queued work is not taken into account because other consumers may take it
+	public long expectedLatency() {
+		synchronized (queue) {
+			percentiles();
+			return latencyCount > 0 ? p99 : hedgeDefault;
+		}
+	}
+
+	// ******* hedgeDelay
+	// *************************************************************************
+	// time in ms after which a waiting consumer also requests work from another pool:
+	// the hedge percentile of a normal distribution with mean and deviation of the
+	// exponentially weighted getwork times
+	public long hedgeDelay() {
+		synchronized (queue) {
+			if (fetched == 0) {
+				return hedgeDefault;
+			}
+			double m = fillTime / fillTimeW;
+			double sd = Math.sqrt(Math.max(fillTime2 / fillTimeW - m * m, 0));
+			double p = Math.max(hedge, 1) / 100.0;
+			double z = 4.91 * (Math.pow(p, 0.14) - Math.pow(1 - p, 0.14));	// approximation of the normal quantile
+			return Math.max(Math.round(m + z * sd), 1);
+		}
+	}
+
+	// ******* hedged
+	// *************************************************************************
+	// the consumer got work from another pool: it is not waiting here anymore
+	public void hedged(Object consumer) {
+		synchronized (queue) {
+			waiting.remove(consumer);
+			hedged += 1;
+		}
+	}
+
+	// ******* cancel
+	// *************************************************************************
+	// the consumer does not need work from this pool anymore
+	public void cancel(Object consumer) {
+		synchronized (queue) {
+			waiting.remove(consumer);
+		}
+	}
+
+	// ******* hedge
+	// *************************************************************************
+	// take for hedged demand (see BTCMiner.getWork). Does not start the fetch threads:
+	// if the pool does not prefetch anyway, the work of the waiting consumers is
+	// requested by a single (batch) request, further demand waits until it is answered
+	public Work hedge(Object consumer) {
+		synchronized (queue) {
+			Work w = poll(consumer);
+			int n = backlog() - queue.size();
+			if (w == null && !started && !hedging && n > 0 && !rpc.disabled()) {
+				n = rpc.batch < 0 ? 1 : Math.min(n, RPC.maxBatch);
+				hedging = true;
+				inFlight += n;
+				final int k = n;
+				Thread t = new Thread("WorkSource " + rpc.name + " hedge") {
+					public void run() {
+						fetchOnce(k);
+					}
+				};
+				t.setDaemon(true);
+				t.start();
+			}
+			return w;
+		}
+	}
+
+	// ******* fetchOnce
+	// *************************************************************************
+	// requests n work units for hedge()
+	private void fetchOnce(int n) {
+		JsonRpcResponse[] parts = new JsonRpcResponse[n];
+		for (int i = 0; i < n; i++) {
+			parts[i] = new JsonRpcResponse();
+		}
+		Vector<Work> ws = new Vector<Work>();
+		try {
+			fetch(n, request.get(), response.get(), parts, ws);
+		} catch (Exception e) {
+			msg("Error: " + e.getLocalizedMessage());
+			rpc.disable();
+		}
+		synchronized (queue) {
+			hedging = false;
+			inFlight -= n;
+			queue.addAll(ws);
+			purge();
+			queue.notifyAll();
+			if (queue.size() > 0 && waiting.size() > 0) {
+				PollLoop.wakeup();
+			}
+		}
+	}
+
+	// ******* parse
+	// *************************************************************************
+	// reads data, target and X-Roll-NTime of a getwork response
+	public static void parse(Work w, JsonRpcResponse response) throws ParserException {
+		try {
+			response.hexToData(JsonRpcResponse.DATA, w.data);
+			if (!response.has(JsonRpcResponse.TARGET)) {
+				throw new ParserException("Parameter `target' not found");
+			}
+			if (response.valueLength(JsonRpcResponse.TARGET) == 64) {
+				try {
+					response.hexToData(JsonRpcResponse.TARGET, w.target);
+					w.targetValid = true;
+				} catch (NumberFormatException e) {
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new ParserException(e.getLocalizedMessage());
+		}
+		w.rollNTime = rollNTime(response.rollNTime);
+	}
+
+	// ******* offer
+	// *************************************************************************
+	// puts work of a new block (from long polling) in front of the queue, older work is discarded
+	public void offer(Work w) {
+		synchronized (queue) {
+			for (int i = queue.size() - 1; i >= 0; i--) {
+				if (queue.elementAt(i).newCount < w.newCount) {
+					queue.removeElementAt(i);
+					discarded += 1;
+				}
+			}
+			queue.add(0, w);
+			offered += 1;
+			queue.notifyAll();	// refill immediately
+			PollLoop.wakeup();
+		}
+	}
+
+	// ******* rollNTime
+	// *************************************************************************
+	// evaluates the X-Roll-NTime header: "Y" (no limit given, maxAge is used), "expire=<seconds>", "N" or null
+	public static int rollNTime(String s) {
+		if (s == null) {
+			return 0;
+		}
+		s = s.trim();
+		if (s.equalsIgnoreCase("y")) {
+			return maxAge;
+		}
+		if (s.regionMatches(true, 0, "expire=", 0, 7)) {
+			try {
+				return Math.max(Integer.parseInt(s.substring(7).trim()), 0);
+			} catch (NumberFormatException e) {
+			}
+		}
+		return 0;
+	}
+
+	// ******* run
+	// *************************************************************************
+	// starts maxInFlight-1 additional fetch threads
+	public void run() {
+		for (int i = 1; i < maxInFlight; i++) {
+			Thread t = new Thread("WorkSource " + rpc.name + " " + i) {
+				public void run() {
+					fetchLoop();
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+		}
+		fetchLoop();
+	}
+
+	// ******* fetchLoop
+	// *************************************************************************
+	// refills the queue, requests that are in flight count as queued work
+	// missing work units are requested using batch requests of up to RPC.maxBatch calls
+	private void fetchLoop() {
+		JsonRpcRequest request = new JsonRpcRequest();
+		JsonRpcResponse response = new JsonRpcResponse();
+		JsonRpcResponse[] parts = new JsonRpcResponse[RPC.maxBatch];
+		for (int i = 0; i < parts.length; i++) {
+			parts[i] = new JsonRpcResponse();
+		}
+		Vector<Work> ws = new Vector<Work>();
+		while (true) {
+			int n;
+			synchronized (queue) {
+				purge();
+				n = depth + backlog() - queue.size() - inFlight;
+				if (n <= 0 || rpc.disabled()) {
+					try {
+						queue.wait(100);
+					} catch (InterruptedException e) {
+					}
+					continue;
+				}
+				n = rpc.batch < 0 ? 1 : Math.min(n, RPC.maxBatch);
+				inFlight += n;
+			}
+
+			ws.clear();
+			try {
+				fetch(n, request, response, parts, ws);
+			} catch (Exception e) {
+				msg("Error: " + e.getLocalizedMessage());
+				rpc.disable();
+			}
+			synchronized (queue) {
+				inFlight -= n;
+				queue.addAll(ws);
+				purge();	// a new block may have been detected
+				queue.notifyAll();
+				if (queue.size() > 0 && waiting.size() > 0) {
+					PollLoop.wakeup();
+				}
+			}
+		}
+	}
+
+	// ******* submits
+	// *************************************************************************
+	// true if shares are submitted by submit(), otherwise getwork is used
+	public boolean submits() {
+		return false;
+	}
+
+	// ******* submit
+	// *************************************************************************
+	// submits a share, returns true if it was accepted
+	public boolean submit(Share share, MsgObj msgObj) throws IOException {
+		throw new IOException("Shares of " + rpc.name + " are submitted using getwork");
+	}
+
+	// ******* stats
+	// *************************************************************************
+	public String stats() {
+		synchronized (queue) {
+			percentiles();
+		}
+		return "work queue: " + queue.size() + " (" + inFlight + " in flight),  fill time: " + Math.round(fillTime / fillTimeW) + "ms,  no work available: " + String.format("%.1f", misses * 100.0 / Math.max(takes + misses, 1)) + "%,  wait time: " + waitSum / Math.max(takes, 1) + "ms avg / " + waitMax + "ms max,  " + coalesced + " requests avoided,  " + discarded + " discarded" + (offered > 0 ? ",  " + offered + " from long polling" : "") + (rpc.batchRequests > 0 ? ",  " + rpc.batchCalls + " calls in " + rpc.batchRequests + " batch requests" : "") + (rpc.batch < 0 ? ",  no batch support" : "") + ",  getwork latency p50/p99: " + p50 + "/" + p99 + "ms" + (hedge > 0 ? ",  hedged: " + String.format("%.1f", hedged * 100.0 / Math.max(takes + hedged, 1)) + "%" : "");
+	}
+
+	// ******* json
+	// *************************************************************************
+	public String json() {
+		synchronized (queue) {
+			percentiles();
+		}
+		return "\"work_queue\":\"" + queue.size() + "\", \"work_fill_time\":\"" + Math.round(fillTime / fillTimeW) + "\", \"work_empty_rate\":\"" + String.format("%.1f", misses * 100.0 / Math.max(takes + misses, 1)) + "\", \"work_discarded\":\"" + discarded + "\", \"work_long_polling\":\"" + offered + "\", \"work_in_flight\":\"" + inFlight + "\", \"work_wait_avg\":\"" + waitSum / Math.max(takes, 1) + "\", \"work_wait_max\":\"" + waitMax + "\", \"work_requests_avoided\":\"" + coalesced + "\", \"batch_requests\":\"" + rpc.batchRequests + "\", \"batch_calls\":\"" + rpc.batchCalls + "\", \"batch_supported\":\"" + (rpc.batch > 0 ? "yes" : rpc.batch < 0 ? "no" : "unknown") + "\", \"getwork_p50\":\"" + p50 + "\", \"getwork_p99\":\"" + p99 + "\", \"hedged\":\"" + hedged + "\", \"hedge_rate\":\"" + String.format("%.1f", hedged * 100.0 / Math.max(takes + hedged, 1)) + "\"";
+	}
+}
+
+// *****************************************************************************
+// ******* Json ****************************************************************
+// *****************************************************************************
+// Minimal JSON value parser for messages that do not have a fixed layout
+// (stratum, getblocktemplate). getwork responses are handled by JsonRpcResponse.
+class Json {
+	// ******* quote
+	// *************************************************************************
+	public static String quote(String s) {
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\');
+			}
+			sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+
+	// ******* parse
+	// *************************************************************************
+	// returns HashMap, Vector, String, Double, Boolean or null
+	public static Object parse(String s) throws ParserException {
+		int[] pos = { 0 };
+		Object o = parseValue(s, pos);
+		return o;
+	}
+
+	private static void skipSpace(String s, int[] pos) {
+		while (pos[0] < s.length() && s.charAt(pos[0]) <= ' ') {
+			pos[0]++;
+		}
+	}
+
+	private static Object parseValue(String s, int[] pos) throws ParserException {
+		skipSpace(s, pos);
+		if (pos[0] >= s.length()) {
+			throw new ParserException("Json: Unexpected end of input");
+		}
+		char c = s.charAt(pos[0]);
+		if (c == '{') {
+			HashMap<String, Object> m = new HashMap<String, Object>();
+			pos[0]++;
+			skipSpace(s, pos);
+			if (pos[0] < s.length() && s.charAt(pos[0]) == '}') {
+				pos[0]++;
+				return m;
+			}
+			while (true) {
+				skipSpace(s, pos);
+				Object k = parseValue(s, pos);
+				skipSpace(s, pos);
+				if (!(k instanceof String) || pos[0] >= s.length() || s.charAt(pos[0]) != ':') {
+					throw new ParserException("Json: Invalid object");
+				}
+				pos[0]++;
+				m.put((String) k, parseValue(s, pos));
+				skipSpace(s, pos);
+				if (pos[0] < s.length() && s.charAt(pos[0]) == ',') {
+					pos[0]++;
+				} else if (pos[0] < s.length() && s.charAt(pos[0]) == '}') {
+					pos[0]++;
+					return m;
+				} else {
+					throw new ParserException("Json: `,' or `}' expected");
+				}
+			}
+		} else if (c == '[') {
+			Vector<Object> v = new Vector<Object>();
+			pos[0]++;
+			skipSpace(s, pos);
+			if (pos[0] < s.length() && s.charAt(pos[0]) == ']') {
+				pos[0]++;
+				return v;
+			}
+			while (true) {
+				v.add(parseValue(s, pos));
+				skipSpace(s, pos);
+				if (pos[0] < s.length() && s.charAt(pos[0]) == ',') {
+					pos[0]++;
+				} else if (pos[0] < s.length() && s.charAt(pos[0]) == ']') {
+					pos[0]++;
+					return v;
+				} else {
+					throw new ParserException("Json: `,' or `]' expected");
+				}
+			}
+		} else if (c == '"') {
+			StringBuffer sb = new StringBuffer();
+			pos[0]++;
+			while (pos[0] < s.length() && s.charAt(pos[0]) != '"') {
+				c = s.charAt(pos[0]++);
+				if (c == '\\' && pos[0] < s.length()) {
+					c = s.charAt(pos[0]++);
+					if (c == 'n') {
+						c = '\n';
+					} else if (c == 't') {
+						c = '\t';
+					} else if (c == 'r') {
+						c = '\r';
+					} else if (c == 'u' && pos[0] + 4 <= s.length()) {
+						c = (char) Integer.parseInt(s.substring(pos[0], pos[0] + 4), 16);
+						pos[0] += 4;
+					}
+				}
+				sb.append(c);
+			}
+			if (pos[0] >= s.length()) {
+				throw new ParserException("Json: No closing `\"' found");
+			}
+			pos[0]++;
+			return sb.toString();
+		} else {
+			int i = pos[0];
+			while (pos[0] < s.length() && ",]} \t\r\n".indexOf(s.charAt(pos[0])) < 0) {
+				pos[0]++;
+			}
+			String t = s.substring(i, pos[0]);
+			if (t.equals("true")) {
+				return Boolean.TRUE;
+			} else if (t.equals("false")) {
+				return Boolean.FALSE;
+			} else if (t.equals("null")) {
+				return null;
+			}
+			try {
+				return Double.valueOf(t);
+			} catch (NumberFormatException e) {
+				throw new ParserException("Json: Invalid value: " + t);
+			}
+		}
+	}
+}
+
+// *****************************************************************************
+// ******* StratumWorkSource ***************************************************
+// *****************************************************************************
+// Work source for stratum+tcp:// pools. Jobs are received via mining.notify
+// over one persistent connection, work units are generated locally by
+// incrementing extranonce2, shares are submitted using mining.submit.
+class StratumWorkSource extends WorkSource {
+	public static final long requestTimeout = 10000;	// in ms
+
+	private String host = null;		// null if the URL is invalid
+	private int port;
+
+	private Socket socket = null;
+	private Writer out = null;
+	private int requestId = 0;
+	private HashMap<Integer, Request> requests = new HashMap<Integer, Request>();
+
+	// session, guarded by this
+	private byte[] extranonce1 = null;
+	private int extranonce2Size = 4;
+	private long extranonce2 = 0;
+	private Job job = null;
+	private double difficulty = 1.0;
+	private byte[] target = new byte[32];
+
+	public int notifies = 0;
+	public int generated = 0;
+
+	// ******* Job
+	// *************************************************************************
+	private static class Job {
+		String id;
+		byte[] coinb1, coinb2;
+		byte[][] merkleBranch;
+		byte[] header = new byte[128];		// getwork data without merkle root
+	}
+
+	// ******* Request
+	// *************************************************************************
+	private static class Request {
+		boolean done = false;
+		Object result = null;
+		Object error = null;
+	}
+
+	// ******* Constructor
+	// *************************************************************************
+	public StratumWorkSource(RPC rpc) {
+		super(rpc);
+		try {
+			URI u = new URI(rpc.host);
+			if (u.getHost() != null && u.getPort() >= 0) {
+				host = u.getHost();
+				port = u.getPort();
+			}
+		} catch (URISyntaxException e) {
+		}
+		setTarget(1.0);
+	}
+
+	// ******* isStratumURL
+	// *************************************************************************
+	public static boolean isStratumURL(String url) {
+		return url.regionMatches(true, 0, "stratum+tcp://", 0, 14);
+	}
+
+	// ******* prefetch
+	// *************************************************************************
+	// starts the connection thread
+	public void prefetch() {
+		synchronized (this) {
+			if (getState() == Thread.State.NEW) {
+				start();
+			}
+		}
+	}
+
+	// ******* hedge
+	// *************************************************************************
+	// hedged demand is only served if the pool is connected already
+	public Work hedge(Object consumer) {
+		return getState() == Thread.State.NEW ? null : take(consumer);
+	}
+
+	// ******* take
+	// *************************************************************************
+	// generates a work unit from the current job, returns null if there is none
+	public Work take(Object consumer) {
+		prefetch();
+		Work w = generate();
+		synchronized (this) {
+			if (w == null) {
+				misses += 1;
+			} else {
+				takes += 1;
+			}
+		}
+		return w;
+	}
+
+	// ******* fetch
+	// *************************************************************************
+	public Work fetch() throws IOException {
+		Work w = take(null);
+		if (w == null) {
+			throw new IOException("No stratum job from " + rpc.name);
+		}
+		return w;
+	}
+
+	// ******* generate
+	// *************************************************************************
+	private Work generate() {
+		long t = new Date().getTime();
+		Job j;
+		byte[] en1;
+		long en2;
+		Work w = new Work(rpc);
+		synchronized (this) {
+			j = job;
+			en1 = extranonce1;
+			if (j == null || en1 == null) {
+				return null;
+			}
+			en2 = extranonce2++;
+			System.arraycopy(target, 0, w.target, 0, 32);
+			w.generation = generation;
+		}
+
+		byte[] en2Buf = new byte[extranonce2Size];
+		for (int i = 0; i < extranonce2Size; i++) {
+			en2Buf[i] = (byte) (en2 >> (8 * (extranonce2Size - 1 - i)));
+		}
+
+		// coinbase and merkle root
+		byte[] coinbase = new byte[j.coinb1.length + en1.length + en2Buf.length + j.coinb2.length];
+		System.arraycopy(j.coinb1, 0, coinbase, 0, j.coinb1.length);
+		System.arraycopy(en1, 0, coinbase, j.coinb1.length, en1.length);
+		System.arraycopy(en2Buf, 0, coinbase, j.coinb1.length + en1.length, en2Buf.length);
+		System.arraycopy(j.coinb2, 0, coinbase, j.coinb1.length + en1.length + en2Buf.length, j.coinb2.length);
+		byte[] root = sha256d(coinbase, null);
+		for (int i = 0; i < j.merkleBranch.length; i++) {
+			root = sha256d(root, j.merkleBranch[i]);
+		}
+
+		// getwork data: header with byte swapped 32 bit words
+		System.arraycopy(j.header, 0, w.data, 0, 128);
+		for (int i = 0; i < 32; i += 4) {
+			for (int k = 0; k < 4; k++) {
+				w.data[36 + i + k] = root[i + 3 - k];
+			}
+		}
+
+		w.targetValid = true;
+		w.checkTarget = true;
+		w.time = t;
+		w.newCount = BTCMiner.newBlockMonitor.newCount;
+		w.jobId = j.id;
+		w.extranonce2 = BTCMiner.dataToHexStr(en2Buf);
+
+		t = new Date().getTime() - t;
+		synchronized (this) {
+			generated += 1;
+			fillTime = fillTime * 0.99 + t;
+			fillTimeW = fillTimeW * 0.99 + 1;
+		}
+		return w;
+	}
+
+	// ******* sha256d
+	// *************************************************************************
+	// double SHA-256 of a (and b if not null)
+	static byte[] sha256d(byte[] a, byte[] b) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(a);
+			if (b != null) {
+				md.update(b);
+			}
+			return md.digest(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// ******* setTarget
+	// *************************************************************************
+	// requires lock on this
+	private void setTarget(double d) {
+		difficulty = d > 0 ? d : 1.0;
+		java.math.BigInteger t = new java.math.BigDecimal(BTCMiner.DIFFEXACTONE).divide(new java.math.BigDecimal(difficulty), 0, java.math.RoundingMode.DOWN).toBigInteger();
+		if (t.bitLength() > 256) {
+			t = java.math.BigInteger.ONE.shiftLeft(256).subtract(java.math.BigInteger.ONE);
+		}
+		byte[] b = t.toByteArray();	// big endian, may have a leading sign byte
+		for (int i = 0; i < 32; i++) {
+			target[i] = i < b.length ? b[b.length - 1 - i] : 0;
+		}
+	}
+
+	// ******* run
+	// *************************************************************************
+	public void run() {
+		while (true) {
+			try {
+				session();
+			} catch (Exception e) {
+				msg("Error: " + e.getLocalizedMessage());
+			}
+			close();
+			rpc.disable();
+			while (rpc.disabled()) {
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	// ******* close
+	// *************************************************************************
+	private void close() {
+		synchronized (this) {
+			job = null;
+			extranonce1 = null;
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+			socket = null;
+			out = null;
+		}
+		synchronized (requests) {
+			for (Request r : requests.values()) {
+				synchronized (r) {
+					r.done = true;
+					r.error = "connection closed";
+					r.notifyAll();
+				}
+			}
+			requests.clear();
+		}
+	}
+
+	// ******* session
+	// *************************************************************************
+	private void session() throws IOException, ParserException {
+		if (host == null) {
+			throw new MalformedURLException("Invalid stratum URL: " + rpc.host);
+		}
+		Socket s = new Socket();
+		s.setTcpNoDelay(true);
+		s.setKeepAlive(true);
+		s.connect(new InetSocketAddress(host, port), (int) Math.round(2000.0 * BTCMiner.connectionEffort));
+		BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+		synchronized (this) {
+			socket = s;
+			out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"));
+			extranonce2 = 0;
+		}
+
+		// subscribe and authorize; the responses are evaluated by handle()
+		int subscribeId = send("mining.subscribe", "\"ztexBTCMiner\"");
+		int authorizeId = send("mining.authorize", Json.quote(rpc.usr) + "," + Json.quote(rpc.pwd));
+		String line;
+		while ((line = in.readLine()) != null) {
+			Object o = Json.parse(line);
+			if (!(o instanceof HashMap)) {
+				throw new ParserException("Invalid stratum message: " + line);
+			}
+			HashMap<?, ?> msg = (HashMap<?, ?>) o;
+			Object id = msg.get("id");
+			int i = id instanceof Double ? ((Double) id).intValue() : -1;
+			if (i == subscribeId) {
+				subscribed(msg);
+			} else if (i == authorizeId) {
+				if (!Boolean.TRUE.equals(msg.get("result"))) {
+					throw new IOException("Stratum authorization failed: " + msg.get("error"));
+				}
+				rpc.enable();
+				msg("Connected to stratum server " + host + ":" + port);
+			} else if (msg.get("method") != null) {
+				notification(msg);
+			} else {
+				Request r;
+				synchronized (requests) {
+					r = requests.remove(i);
+				}
+				if (r != null) {
+					synchronized (r) {
+						r.result = msg.get("result");
+						r.error = msg.get("error");
+						r.done = true;
+						r.notifyAll();
+					}
+				}
+			}
+		}
+		throw new EOFException("Stratum connection closed by server");
+	}
+
+	// ******* subscribed
+	// *************************************************************************
+	private void subscribed(HashMap<?, ?> msg) throws ParserException {
+		try {
+			Vector<?> result = (Vector<?>) msg.get("result");
+			byte[] en1 = BTCMiner.hexStrToData((String) result.elementAt(1));
+			int size = ((Double) result.elementAt(2)).intValue();
+			if (size < 1 || size > 8) {
+				throw new ParserException("Unsupported extranonce2 size: " + size);
+			}
+			synchronized (this) {
+				extranonce1 = en1;
+				extranonce2Size = size;
+			}
+		} catch (ParserException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ParserException("Invalid mining.subscribe response: " + msg.get("error"));
+		}
+	}
+
+	// ******* notification
+	// *************************************************************************
+	private void notification(HashMap<?, ?> msg) throws ParserException {
+		String method = (String) msg.get("method");
+		Vector<?> params = (Vector<?>) msg.get("params");
+		try {
+			if (method.equals("mining.notify")) {
+				Job j = new Job();
+				j.id = (String) params.elementAt(0);
+				byte[] prevHash = BTCMiner.hexStrToData((String) params.elementAt(1));
+				j.coinb1 = BTCMiner.hexStrToData((String) params.elementAt(2));
+				j.coinb2 = BTCMiner.hexStrToData((String) params.elementAt(3));
+				Vector<?> branch = (Vector<?>) params.elementAt(4);
+				j.merkleBranch = new byte[branch.size()][];
+				for (int i = 0; i < branch.size(); i++) {
+					j.merkleBranch[i] = BTCMiner.hexStrToData((String) branch.elementAt(i));
+				}
+				byte[] version = BTCMiner.hexStrToData((String) params.elementAt(5));
+				byte[] nbits = BTCMiner.hexStrToData((String) params.elementAt(6));
+				byte[] ntime = BTCMiner.hexStrToData((String) params.elementAt(7));
+				boolean clean = params.size() > 8 && Boolean.TRUE.equals(params.elementAt(8));
+				if (prevHash.length != 32 || version.length != 4 || nbits.length != 4 || ntime.length != 4) {
+					throw new ParserException("Invalid mining.notify parameters");
+				}
+				System.arraycopy(version, 0, j.header, 0, 4);
+				System.arraycopy(prevHash, 0, j.header, 4, 32);
+				System.arraycopy(ntime, 0, j.header, 68, 4);
+				System.arraycopy(nbits, 0, j.header, 72, 4);
+				System.arraycopy(BTCMiner.sha256_pad1, 0, j.header, 80, 48);
+				synchronized (this) {
+					job = j;
+					notifies += 1;
+					if (clean) {
+						generation += 1;	// clean_jobs: the work of the previous jobs is invalid
+					}
+				}
+				BTCMiner.newBlockMonitor.checkNew(j.header);
+				if (clean) {
+					PollLoop.wakeup();
+				}
+			} else if (method.equals("mining.set_difficulty")) {
+				synchronized (this) {
+					setTarget(((Double) params.elementAt(0)).doubleValue());
+				}
+			} else if (method.equals("client.get_version")) {
+				reply(msg.get("id"), "\"ztexBTCMiner\"");
+			}
+		} catch (ParserException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ParserException("Invalid " + method + " parameters: " + e.getLocalizedMessage());
+		}
+	}
+
+	// ******* send
+	// *************************************************************************
+	// sends a request and returns its id
+	private int send(String method, String params) throws IOException {
+		synchronized (this) {
+			if (out == null) {
+				throw new UnsentException("Not connected to stratum server " + host + ":" + port);
+			}
+			requestId += 1;
+			try {
+				out.write("{\"id\":" + requestId + ",\"method\":\"" + method + "\",\"params\":[" + params + "]}\n");
+				out.flush();
+			} catch (IOException e) {
+				throw new UnsentException(e);
+			}
+			return requestId;
+		}
+	}
+
+	// ******* reply
+	// *************************************************************************
+	private void reply(Object id, String result) throws IOException {
+		synchronized (this) {
+			if (out != null) {
+				out.write("{\"id\":" + (id instanceof Double ? "" + ((Double) id).intValue() : "null") + ",\"result\":" + result + ",\"error\":null}\n");
+				out.flush();
+			}
+		}
+	}
+
+	// ******* submits
+	// *************************************************************************
+	public boolean submits() {
+		return true;
+	}
+
+	// ******* submit
+	// *************************************************************************
+	// submits a share using mining.submit and waits for the result
+	public boolean submit(Share share, MsgObj msgObj) throws IOException {
+		if (share.work == null || share.work.jobId == null) {
+			throw new IOException("Share without stratum job");
+		}
+		Request r = new Request();
+		synchronized (requests) {
+			int id = send("mining.submit", Json.quote(rpc.usr) + "," + Json.quote(share.work.jobId) + "," + Json.quote(share.work.extranonce2) + ",\"" + share.hex(68, 4) + "\",\"" + share.hex(76, 4) + "\"");
+			requests.put(id, r);
+		}
+		long t = new Date().getTime() + requestTimeout;
+		synchronized (r) {
+			while (!r.done && new Date().getTime() < t) {
+				try {
+					r.wait(Math.max(t - new Date().getTime(), 1));
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+		if (!r.done) {
+			throw new IOException("No response to mining.submit from " + rpc.name);
+		}
+		if ("connection closed".equals(r.error)) {
+			throw new IOException("Stratum connection closed");
+		}
+		if (r.error != null) {
+			msgObj.rejectReason(r.error.toString());
+		}
+		return Boolean.TRUE.equals(r.result);
+	}
+
+	// ******* stats
+	// *************************************************************************
+	public synchronized String stats() {
+		return "stratum: " + (job == null ? "no job" : "job " + job.id) + ",  difficulty: " + difficulty + ",  " + notifies + " notifies,  " + generated + " work units generated,  no work available: " + String.format("%.1f", misses * 100.0 / Math.max(takes + misses, 1)) + "%";
+	}
+
+	// ******* json
+	// *************************************************************************
+	public synchronized String json() {
+		return "\"stratum_job\":\"" + (job == null ? "" : job.id) + "\", \"stratum_difficulty\":\"" + difficulty + "\", \"work_generated\":\"" + generated + "\", \"work_empty_rate\":\"" + String.format("%.1f", misses * 100.0 / Math.max(takes + misses, 1)) + "\"";
+	}
+}
+
+// *****************************************************************************
+// ******* GbtWorkSource *******************************************************
+// *****************************************************************************
+// Work source for solo mining using getblocktemplate (BIP 22/23), selected by
+// gbt+http:// URLs. Coinbase transaction and merkle root are built locally,
+// every work unit gets its own extranonce. New blocks are detected by long
+// polling with the longpollid of the template, blocks are submitted using
+// submitblock.
+class GbtWorkSource extends WorkSource {
+	public static byte[] payoutScript = null;	// coinbase output script, see -coinbase
+
+	private String url;
+	private JsonRpcRequest request = new JsonRpcRequest();
+	private JsonRpcResponse response = new JsonRpcResponse();
+	private HttpConnectionPool longPollConnection = new HttpConnectionPool(0);	// not kept: a timed out request must not be retried
+	private int requestId = 0;
+
+	// guarded by this
+	private Template template = null;
+	private long extranonce = 0;
+
+	public int templates = 0;
+	public int longPolls = 0;
+	public int generated = 0;
+	public int blocks = 0;
+
+	// ******* Template
+	// *************************************************************************
+	private static class Template {
+		long time;			// local time of the request
+		long height;
+		long coinbaseValue;
+		String longPollId = null;
+		String workId = null;
+		byte[] aux;			// coinbaseaux flags
+		byte[] witnessCommitment = null;	// output script
+		byte[] header = new byte[128];	// getwork data without merkle root
+		byte[] target = new byte[32];
+		byte[][] merkleBranch;
+		byte[][] transactions;
+	}
+
+	// ******* Constructor
+	// *************************************************************************
+	public GbtWorkSource(RPC rpc) {
+		super(rpc);
+		url = rpc.host.substring(4);
+	}
+
+	// ******* isGbtURL
+	// *************************************************************************
+	public static boolean isGbtURL(String url) {
+		return url.regionMatches(true, 0, "gbt+http://", 0, 11);
+	}
+
+	// ******* prefetch
+	// *************************************************************************
+	// starts the template thread
+	public void prefetch() {
+		synchronized (this) {
+			if (getState() == Thread.State.NEW) {
+				start();
+			}
+		}
+	}
+
+	// ******* hedge
+	// *************************************************************************
+	// hedged demand is only served if templates are requested already
+	public Work hedge(Object consumer) {
+		return getState() == Thread.State.NEW ? null : take(consumer);
+	}
+
+	// ******* take
+	// *************************************************************************
+	// generates a work unit from the current template, returns null if there is none
+	public Work take(Object consumer) {
+		prefetch();
+		Work w = generate();
+		synchronized (this) {
+			if (w == null) {
+				misses += 1;
+			} else {
+				takes += 1;
+			}
+		}
+		return w;
+	}
+
+	// ******* fetch
+	// *************************************************************************
+	public Work fetch() throws IOException {
+		Work w = take(null);
+		if (w == null) {
+			throw new IOException("No block template from " + rpc.name);
+		}
+		return w;
+	}
+
+	// ******* generate
+	// *************************************************************************
+	private Work generate() {
+		long t = new Date().getTime();
+		Template tp;
+		byte[] en = new byte[8];
+		synchronized (this) {
+			tp = template;
+			if (tp == null) {
+				return null;
+			}
+			long e = extranonce++;
+			for (int i = 0; i < 8; i++) {
+				en[i] = (byte) (e >> (8 * i));
+			}
+		}
+
+		byte[] root = StratumWorkSource.sha256d(coinbase(tp, en, false), null);
+		for (int i = 0; i < tp.merkleBranch.length; i++) {
+			root = StratumWorkSource.sha256d(root, tp.merkleBranch[i]);
+		}
+
+		Work w = new Work(rpc);
+		System.arraycopy(tp.header, 0, w.data, 0, 128);
+		for (int i = 0; i < 32; i += 4) {
+			for (int k = 0; k < 4; k++) {
+				w.data[36 + i + k] = root[i + 3 - k];
+			}
+		}
+		System.arraycopy(tp.target, 0, w.target, 0, 32);
+		w.targetValid = true;
+		w.checkTarget = true;	// only blocks are submitted
+		w.time = t;
+		w.newCount = BTCMiner.newBlockMonitor.newCount;
+		w.job = tp;
+		w.extranonce2 = BTCMiner.dataToHexStr(en);
+
+		t = new Date().getTime() - t;
+		synchronized (this) {
+			generated += 1;
+			fillTime = fillTime * 0.99 + t;
+			fillTimeW = fillTimeW * 0.99 + 1;
+		}
+		return w;
+	}
+
+	// ******* coinbase
+	// *************************************************************************
+	// serializes the coinbase transaction, witness: with the witness reserved value
+	private static byte[] coinbase(Template tp, byte[] extranonce, boolean witness) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(128 + payoutScript.length);
+		witness = witness && tp.witnessCommitment != null;
+
+		// script: height (BIP 34), extranonce, coinbaseaux flags
+		ByteArrayOutputStream script = new ByteArrayOutputStream(64);
+		if (tp.height >= 1 && tp.height <= 16) {
+			script.write(0x50 + (int) tp.height);
+		} else {
+			byte[] h = new byte[9];
+			int l = 0;
+			for (long v = tp.height; v > 0; v >>= 8) {
+				h[l++] = (byte) v;
+			}
+			if (l > 0 && (h[l - 1] & 128) != 0) {
+				l++;	// sign byte
+			}
+			script.write(l);
+			script.write(h, 0, l);
+		}
+		script.write(extranonce.length);
+		script.write(extranonce, 0, extranonce.length);
+		script.write(tp.aux, 0, Math.min(tp.aux.length, 100 - script.size()));
+
+		putInt(os, 1, 4);				// version
+		if (witness) {
+			os.write(0);				// marker
+			os.write(1);				// flag
+		}
+		os.write(1);					// inputs
+		os.write(new byte[32], 0, 32);			// previous output
+		putInt(os, 0xffffffffL, 4);
+		putVarInt(os, script.size());
+		os.write(script.toByteArray(), 0, script.size());
+		putInt(os, 0xffffffffL, 4);			// sequence
+		os.write(tp.witnessCommitment != null ? 2 : 1);	// outputs
+		putInt(os, tp.coinbaseValue, 8);
+		putVarInt(os, payoutScript.length);
+		os.write(payoutScript, 0, payoutScript.length);
+		if (tp.witnessCommitment != null) {
+			putInt(os, 0, 8);
+			putVarInt(os, tp.witnessCommitment.length);
+			os.write(tp.witnessCommitment, 0, tp.witnessCommitment.length);
+		}
+		if (witness) {
+			os.write(1);				// witness stack items
+			os.write(32);
+			os.write(new byte[32], 0, 32);		// witness reserved value
+		}
+		putInt(os, 0, 4);				// lock time
+		return os.toByteArray();
+	}
+
+	// ******* putInt
+	// *************************************************************************
+	// little endian
+	private static void putInt(ByteArrayOutputStream os, long v, int bytes) {
+		for (int i = 0; i < bytes; i++) {
+			os.write((int) (v >> (8 * i)));
+		}
+	}
+
+	// ******* putVarInt
+	// *************************************************************************
+	private static void putVarInt(ByteArrayOutputStream os, long v) {
+		if (v < 0xfd) {
+			os.write((int) v);
+		} else if (v <= 0xffff) {
+			os.write(0xfd);
+			putInt(os, v, 2);
+		} else {
+			os.write(0xfe);
+			putInt(os, v, 4);
+		}
+	}
+
+	// ******* request
+	// *************************************************************************
+	// sends a JSON-RPC request and returns the result; JSON-RPC errors are thrown as IOException
+	private Object request(HttpConnectionPool connections, JsonRpcRequest req, JsonRpcResponse resp, String method, String params, int readTimeout) throws IOException, ParserException {
+		int id;
+		synchronized (this) {
+			id = ++requestId;
+		}
+		synchronized (req) {
+			req.encode(id, method, params);
+			resp.set(new byte[0], 0);
+			HttpConnection con = connections.get(url, Math.round(2000.0 * BTCMiner.connectionEffort));
+			boolean ok = false;
+			IOException ioe = null;
+			try {
+				con.post(rpc.authorization(), req, resp, (int) Math.round(2000.0 * BTCMiner.connectionEffort), readTimeout);
+				ok = true;
+			} catch (IOException e) {
+				ioe = e;	// bitcoind reports errors with HTTP status 500
+			} finally {
+				connections.release(con, ok);
+			}
+
+			Object o = null;
+			try {
+				o = Json.parse(resp.toString());
+			} catch (ParserException e) {
+				if (ioe != null) {
+					throw ioe;
+				}
+				throw e;
+			}
+			if (!(o instanceof HashMap)) {
+				throw new ParserException("Invalid " + method + " response");
+			}
+			HashMap<?, ?> m = (HashMap<?, ?>) o;
+			Object error = m.get("error");
+			if (error instanceof HashMap) {
+				throw new IOException(method + ": " + ((HashMap<?, ?>) error).get("message"));
+			} else if (error != null) {
+				throw new IOException(method + ": " + error);
+			} else if (ioe != null) {
+				throw ioe;
+			}
+			return m.get("result");
+		}
+	}
+
+	// ******* getTemplate
+	// *************************************************************************
+	// longPollId != null: long polling request
+	private Template getTemplate(HttpConnectionPool connections, String longPollId, int readTimeout) throws IOException, ParserException {
+		long t = new Date().getTime();
+		Object o = request(connections, request, response, "getblocktemplate", "{\"rules\":[\"segwit\"],\"capabilities\":[\"coinbasevalue\",\"longpoll\",\"workid\"]" + (longPollId == null ? "" : ",\"longpollid\":" + Json.quote(longPollId)) + "}", readTimeout);
+		if (!(o instanceof HashMap)) {
+			throw new ParserException("Invalid getblocktemplate result");
+		}
+		HashMap<?, ?> m = (HashMap<?, ?>) o;
+		Template tp = new Template();
+		tp.time = t;
+		try {
+			tp.height = ((Double) m.get("height")).longValue();
+			if (m.get("coinbasevalue") == null) {
+				throw new ParserException("getblocktemplate: coinbasevalue missing");
+			}
+			tp.coinbaseValue = ((Double) m.get("coinbasevalue")).longValue();
+			tp.longPollId = (String) m.get("longpollid");
+			tp.workId = (String) m.get("workid");
+			Object aux = m.get("coinbaseaux");
+			tp.aux = aux instanceof HashMap && ((HashMap<?, ?>) aux).get("flags") != null ? BTCMiner.hexStrToData((String) ((HashMap<?, ?>) aux).get("flags")) : new byte[0];
+			if (m.get("default_witness_commitment") != null) {
+				tp.witnessCommitment = BTCMiner.hexStrToData((String) m.get("default_witness_commitment"));
+			}
+
+			// header in getwork format, i.e. with byte swapped 32 bit words
+			int version = ((Double) m.get("version")).intValue();
+			byte[] prevHash = BTCMiner.hexStrToData((String) m.get("previousblockhash"));
+			byte[] bits = BTCMiner.hexStrToData((String) m.get("bits"));
+			int time = ((Double) m.get("curtime")).intValue();
+			byte[] target = BTCMiner.hexStrToData((String) m.get("target"));
+			if (prevHash.length != 32 || bits.length != 4 || target.length != 32) {
+				throw new ParserException("Invalid getblocktemplate result");
+			}
+			for (int i = 0; i < 4; i++) {
+				tp.header[i] = (byte) (version >> (24 - 8 * i));
+				tp.header[68 + i] = (byte) (time >> (24 - 8 * i));
+			}
+			for (int i = 0; i < 8; i++) {
+				System.arraycopy(prevHash, 28 - 4 * i, tp.header, 4 + 4 * i, 4);
+			}
+			System.arraycopy(bits, 0, tp.header, 72, 4);
+			System.arraycopy(BTCMiner.sha256_pad1, 0, tp.header, 80, 48);
+			for (int i = 0; i < 32; i++) {
+				tp.target[i] = target[31 - i];
+			}
+
+			// transactions and merkle branch of the coinbase transaction
+			Vector<?> txs = (Vector<?>) m.get("transactions");
+			tp.transactions = new byte[txs.size()][];
+			Vector<byte[]> level = new Vector<byte[]>();
+			level.add(null);
+			for (int i = 0; i < txs.size(); i++) {
+				HashMap<?, ?> tx = (HashMap<?, ?>) txs.elementAt(i);
+				tp.transactions[i] = BTCMiner.hexStrToData((String) tx.get("data"));
+				String txid = (String) (tx.get("txid") != null ? tx.get("txid") : tx.get("hash"));
+				level.add(BTCMiner.reverse(BTCMiner.hexStrToData(txid)));
+			}
+			Vector<byte[]> branch = new Vector<byte[]>();
+			while (level.size() > 1) {
+				branch.add(level.elementAt(1));
+				if ((level.size() & 1) != 0) {
+					level.add(level.lastElement());
+				}
+				Vector<byte[]> next = new Vector<byte[]>();
+				next.add(null);
+				for (int i = 2; i < level.size(); i += 2) {
+					next.add(StratumWorkSource.sha256d(level.elementAt(i), level.elementAt(i + 1)));
+				}
+				level = next;
+			}
+			tp.merkleBranch = branch.toArray(new byte[branch.size()][]);
+		} catch (ParserException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ParserException("Invalid getblocktemplate result: " + e.getLocalizedMessage());
+		}
+		return tp;
+	}
+
+	// ******* update
+	// *************************************************************************
+	private void update(Template tp) {
+		synchronized (this) {
+			template = tp;
+			templates += 1;
+		}
+		BTCMiner.newBlockMonitor.checkNew(tp.header);
+	}
+
+	// ******* run
+	// *************************************************************************
+	// Requests a new template with the longpollid of the current one. If the
+	// server does not support long polling or does not answer within maxAge,
+	// the template is refreshed by an ordinary request.
+	public void run() {
+		while (true) {
+			try {
+				if (payoutScript == null) {
+					throw new IOException("No coinbase address specified (-coinbase)");
+				}
+				Template tp;
+				synchronized (this) {
+					tp = template;
+				}
+				Template tn = null;
+				if (tp != null && tp.longPollId != null) {
+					try {
+						tn = getTemplate(longPollConnection, tp.longPollId, maxAge * 1000);
+						synchronized (this) {
+							longPolls += 1;
+						}
+					} catch (SocketTimeoutException e) {
+					}
+				} else if (tp != null) {
+					long t = tp.time + maxAge * 1000L - new Date().getTime();
+					if (t > 0) {
+						try {
+							Thread.sleep(t);
+						} catch (InterruptedException e) {
+						}
+					}
+				}
+				if (tn == null) {
+					tn = getTemplate(rpc.connections, null, (int) Math.round(2000.0 * BTCMiner.connectionEffort));
+				}
+				update(tn);
+				rpc.enable();
+			} catch (Exception e) {
+				msg("Error: " + e.getLocalizedMessage());
+				synchronized (this) {
+					template = null;
+				}
+				rpc.disable();
+				while (rpc.disabled()) {
+					try {
+						Thread.sleep(1000);
+					} catch (InterruptedException e2) {
+					}
+				}
+			}
+		}
+	}
+
+	// ******* submits
+	// *************************************************************************
+	public boolean submits() {
+		return true;
+	}
+
+	// ******* submit
+	// *************************************************************************
+	// assembles the block and submits it using submitblock
+	public boolean submit(Share share, MsgObj msgObj) throws IOException {
+		if (share.work == null || !(share.work.job instanceof Template)) {
+			throw new IOException("Share without block template");
+		}
+		Template tp = (Template) share.work.job;
+
+		ByteArrayOutputStream os = new ByteArrayOutputStream(4096);
+		byte[] data = new byte[128];
+		share.data(data);
+		for (int i = 0; i < 80; i++) {
+			os.write(data[(i & ~3) + 3 - (i & 3)]);
+		}
+		putVarInt(os, tp.transactions.length + 1);
+		byte[] cb = coinbase(tp, BTCMiner.hexStrToData(share.work.extranonce2), true);
+		os.write(cb, 0, cb.length);
+		for (int i = 0; i < tp.transactions.length; i++) {
+			os.write(tp.transactions[i], 0, tp.transactions[i].length);
+		}
+
+		Object result;
+		try {
+			result = request(rpc.connections, new JsonRpcRequest(), new JsonRpcResponse(), "submitblock", "\"" + BTCMiner.dataToHexStr(os.toByteArray()) + "\"" + (tp.workId == null ? "" : ",{\"workid\":" + Json.quote(tp.workId) + "}"), (int) Math.round(10000.0 * BTCMiner.connectionEffort));
+		} catch (ParserException e) {
+			throw new IOException(e.getLocalizedMessage());
+		}
+		if (result == null || "inconclusive".equals(result)) {
+			synchronized (this) {
+				blocks += 1;
+			}
+			msgObj.msg("Block " + tp.height + " submitted to " + rpc.name);
+			return true;
+		}
+		msgObj.rejectReason(result.toString());
+		return false;
+	}
+
+	// ******* addressToScript
+	// *************************************************************************
+	// output script of a base58 (P2PKH, P2SH) or bech32/bech32m (segwit) address
+	public static byte[] addressToScript(String address) throws NumberFormatException {
+		int sep = address.lastIndexOf('1');
+		if (sep > 0 && address.toLowerCase().matches("(bc|tb|bcrt)1[qpzry9x8gf2tvdw0s3jn54khce6mua7l]{6,}")) {
+			return bech32ToScript(address.toLowerCase(), sep);
+		}
+
+		// base58check: version byte, 20 bytes hash, 4 bytes checksum
+		java.math.BigInteger n = java.math.BigInteger.ZERO;
+		for (int i = 0; i < address.length(); i++) {
+			int d = base58Chars.indexOf(address.charAt(i));
+			if (d < 0) {
+				throw new NumberFormatException("Invalid address: " + address);
+			}
+			n = n.multiply(java.math.BigInteger.valueOf(58)).add(java.math.BigInteger.valueOf(d));
+		}
+		byte[] b = n.toByteArray();
+		byte[] a = new byte[25];
+		int l = Math.min(b.length, 25);
+		System.arraycopy(b, b.length - l, a, 25 - l, l);
+		byte[] h = StratumWorkSource.sha256d(Arrays.copyOf(a, 21), null);
+		if (b.length > 26 || (b.length == 26 && b[0] != 0) || !Arrays.equals(Arrays.copyOf(h, 4), Arrays.copyOfRange(a, 21, 25))) {
+			throw new NumberFormatException("Invalid address: " + address);
+		}
+		byte[] s;
+		if (a[0] == 0 || a[0] == 0x6f) {		// P2PKH: OP_DUP OP_HASH160 <hash> OP_EQUALVERIFY OP_CHECKSIG
+			s = BTCMiner.hexStrToData("76a914000000000000000000000000000000000000000088ac");
+			System.arraycopy(a, 1, s, 3, 20);
+		} else if (a[0] == 5 || a[0] == (byte) 0xc4) {	// P2SH: OP_HASH160 <hash> OP_EQUAL
+			s = BTCMiner.hexStrToData("a914000000000000000000000000000000000000000087");
+			System.arraycopy(a, 1, s, 2, 20);
+		} else {
+			throw new NumberFormatException("Unsupported address type: " + address);
+		}
+		return s;
+	}
+
+	private static final String base58Chars = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz";
+	private static final String bech32Chars = "qpzry9x8gf2tvdw0s3jn54khce6mua7l";
+
+	private static int bech32Polymod(byte[] v) {
+		final int[] gen = { 0x3b6a57b2, 0x26508e6d, 0x1ea119fa, 0x3d4233dd, 0x2a1462b3 };
+		int chk = 1;
+		for (int i = 0; i < v.length; i++) {
+			int b = chk >>> 25;
+			chk = ((chk & 0x1ffffff) << 5) ^ v[i];
+			for (int j = 0; j < 5; j++) {
+				if (((b >> j) & 1) != 0) {
+					chk ^= gen[j];
+				}
+			}
+		}
+		return chk;
+	}
+
+	private static byte[] bech32ToScript(String address, int sep) throws NumberFormatException {
+		int hl = sep;
+		int dl = address.length() - sep - 1;
+		byte[] v = new byte[hl * 2 + 1 + dl];
+		for (int i = 0; i < hl; i++) {
+			v[i] = (byte) (address.charAt(i) >> 5);
+			v[hl + 1 + i] = (byte) (address.charAt(i) & 31);
+		}
+		for (int i = 0; i < dl; i++) {
+			v[hl * 2 + 1 + i] = (byte) bech32Chars.indexOf(address.charAt(sep + 1 + i));
+		}
+		int version = v[hl * 2 + 1];
+		int chk = bech32Polymod(v);
+		if (version > 16 || chk != (version == 0 ? 1 : 0x2bc830a3)) {
+			throw new NumberFormatException("Invalid address checksum: " + address);
+		}
+
+		// witness program: 5 bit groups to bytes
+		ByteArrayOutputStream p = new ByteArrayOutputStream(40);
+		int acc = 0, bits = 0;
+		for (int i = hl * 2 + 2; i < v.length - 6; i++) {
+			acc = (acc << 5) | v[i];
+			bits += 5;
+			if (bits >= 8) {
+				bits -= 8;
+				p.write(acc >> bits);
+				acc &= (1 << bits) - 1;
+			}
+		}
+		if (bits >= 5 || acc != 0 || p.size() < 2 || p.size() > 40 || (version == 0 && p.size() != 20 && p.size() != 32)) {
+			throw new NumberFormatException("Invalid witness program: " + address);
+		}
+		byte[] s = new byte[p.size() + 2];
+		s[0] = (byte) (version == 0 ? 0 : 0x50 + version);
+		s[1] = (byte) p.size();
+		System.arraycopy(p.toByteArray(), 0, s, 2, p.size());
+		return s;
+	}
+
+	// ******* stats
+	// *************************************************************************
+	public synchronized String stats() {
+		return "getblocktemplate: " + (template == null ? "no template" : "height " + template.height + ", " + template.transactions.length + " transactions") + ",  " + templates + " templates (" + longPolls + " by long polling),  " + generated + " work units generated,  " + blocks + " blocks submitted,  no work available: " + String.format("%.1f", misses * 100.0 / Math.max(takes + misses, 1)) + "%";
+	}
+
+	// ******* json
+	// *************************************************************************
+	public synchronized String json() {
+		return "\"gbt_height\":\"" + (template == null ? "" : "" + template.height) + "\", \"gbt_templates\":\"" + templates + "\", \"gbt_long_polls\":\"" + longPolls + "\", \"gbt_blocks\":\"" + blocks + "\", \"work_generated\":\"" + generated + "\", \"work_empty_rate\":\"" + String.format("%.1f", misses * 100.0 / Math.max(takes + misses, 1)) + "\"";
+	}
+}
+
+// *****************************************************************************
+// ******* JsonRpcRequest ******************************************************
+// *****************************************************************************
+// Reusable buffer for JSON-RPC requests. Binary parameters are rendered as hex
+// strings directly into the buffer.
+class JsonRpcRequest {
+	private static final byte[] hexDigits = "0123456789abcdef".getBytes();
+	private static final byte[] head = "{\"jsonrpc\":\"1.0\",\"id\":".getBytes();
+	private static final byte[] method = ",\"method\":\"".getBytes();
+	private static final byte[] params = "\",\"params\":[".getBytes();
+	private static final byte[] tail = "]}".getBytes();
+
+	public byte[] buf = new byte[512];
+	public int length = 0;
+	public boolean idempotent = false;	// nothing is submitted, i.e. the request may be sent twice
+
+	// ******* encode
+	// *************************************************************************
+	// data == null: no parameters
+	public void encode(int id, String methodName, byte[] data) {
+		length = 0;
+		idempotent = data == null;
+		append(id, methodName, data);
+	}
+
+	// batch request of n calls with the ids id .. id+n-1, data == null or data[i] == null: no parameters
+	public void encode(int id, String methodName, byte[][] data, int n) {
+		length = 0;
+		idempotent = true;
+		for (int i = 0; data != null && i < n; i++) {
+			idempotent = idempotent && data[i] == null;
+		}
+		ensure(1);
+		buf[length++] = '[';
+		for (int i = 0; i < n; i++) {
+			if (i > 0) {
+				ensure(1);
+				buf[length++] = ',';
+			}
+			append(id + i, methodName, data == null ? null : data[i]);
+		}
+		ensure(1);
+		buf[length++] = ']';
+	}
+
+	// ******* append
+	// *************************************************************************
+	private void append(int id, String methodName, byte[] data) {
+		put(head);
+		putInt(id);
+		put(method);
+		put(methodName);
+		put(params);
+		if (data != null) {
+			ensure(data.length * 2 + 2);
+			buf[length++] = '"';
+			for (int i = 0; i < data.length; i++) {
+				buf[length++] = hexDigits[(data[i] & 255) >> 4];
+				buf[length++] = hexDigits[data[i] & 15];
+			}
+			buf[length++] = '"';
+		}
+		put(tail);
+	}
+
+	// params: JSON encoded parameters without brackets
+	public void encode(int id, String methodName, String jsonParams) {
+		length = 0;
+		idempotent = !methodName.startsWith("submit");
+		put(head);
+		putInt(id);
+		put(method);
+		put(methodName);
+		put(params);
+		put(jsonParams);
+		put(tail);
+	}
+
+	// ******* set
+	// *************************************************************************
+	// a complete request, e.g. from the String based httpGet
+	public void set(String request) {
+		length = 0;
+		idempotent = false;
+		put(request);
+	}
+
+	// ******* ensure
+	// *************************************************************************
+	private void ensure(int n) {
+		if (length + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+		}
+	}
+
+	// ******* put
+	// *************************************************************************
+	private void put(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, length, b.length);
+		length += b.length;
+	}
+
+	// characters are truncated to 8 bit, the JSON-RPC requests are ASCII only
+	private void put(String s) {
+		ensure(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf[length++] = (byte) s.charAt(i);
+		}
+	}
+
+	// ******* putInt
+	// *************************************************************************
+	private void putInt(int n) {
+		ensure(11);
+		if (n < 0) {
+			buf[length++] = '-';
+		}
+		int i = length;
+		do {
+			buf[length++] = (byte) ('0' + Math.abs(n % 10));
+			n /= 10;
+		} while (n != 0);
+		for (int j = length - 1; i < j; i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+	}
+
+	// ******* toString
+	// *************************************************************************
+	public String toString() {
+		return new String(buf, 0, length);
+	}
+}
+
+// *****************************************************************************
+// ******* JsonRpcResponse *****************************************************
+// *****************************************************************************
+// Reusable buffer for JSON-RPC responses. parse() finds the fields required by
+// getwork in one pass over the bytes. Only keys are matched (case insensitive),
+// result, error and id at the top level, data, target and submitold at any level.
+// Batch responses are split into single responses by split().
+class JsonRpcResponse {
+	public static final int RESULT = 0;
+	public static final int ERROR = 1;
+	public static final int ID = 2;
+	public static final int DATA = 3;
+	public static final int TARGET = 4;
+	public static final int SUBMITOLD = 5;
+
+	private static final String[] names = { "result", "error", "id", "data", "target", "submitold" };
+	private static final byte[][] keys = new byte[names.length][];
+	private static final byte[] hexValue = new byte[256];
+	private static final int maxDepth = 64;
+
+	static {
+		for (int i = 0; i < names.length; i++) {
+			keys[i] = names[i].getBytes();
+		}
+		for (int i = 0; i < 256; i++) {
+			hexValue[i] = -1;
+		}
+		for (int i = 0; i < 10; i++) {
+			hexValue['0' + i] = (byte) i;
+		}
+		for (int i = 0; i < 6; i++) {
+			hexValue['a' + i] = (byte) (10 + i);
+			hexValue['A' + i] = (byte) (10 + i);
+		}
+	}
+
+	public byte[] buf = new byte[4096];
+	public int length = 0;
+	public String rollNTime = null;		// X-Roll-NTime response header, set by httpGet
+
+	private int[] start = new int[names.length];	// start of the value, < 0 if not found
+	private int[] end = new int[names.length];
+	private int[] valueKey = new int[maxDepth];	// field of the object or array of the given depth, < 0 if none
+
+	// ******* read
+	// *************************************************************************
+	// reads the whole stream into the buffer
+	public void read(InputStream is) throws IOException {
+		length = 0;
+		int len;
+		while ((len = is.read(buf, length, buf.length - length)) > 0) {
+			length += len;
+			if (length == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+		}
+	}
+
+	// ******* set
+	// *************************************************************************
+	public void set(byte[] data, int len) {
+		set(data, 0, len);
+	}
+
+	public void set(byte[] data, int offs, int len) {
+		if (buf.length < len) {
+			buf = new byte[len];
+		}
+		System.arraycopy(data, offs, buf, 0, len);
+		length = len;
+	}
+
+	// ******* split
+	// *************************************************************************
+	// splits a batch response (array of response objects) into parts and parses them,
+	// returns the number of parts or -1 if the response is not an array
+	public int split(JsonRpcResponse[] parts) throws ParserException {
+		int i = 0;
+		while (i < length && (buf[i] & 255) <= 32) {
+			i++;
+		}
+		if (i >= length || buf[i] != '[') {
+			return -1;
+		}
+		int n = 0;
+		int depth = 0;
+		int s = 0;
+		for (i++; i < length; i++) {
+			int c = buf[i];
+			if (c == '"') {
+				i++;
+				while (i < length && buf[i] != '"') {
+					if (buf[i] == '\\') {
+						i++;
+					}
+					i++;
+				}
+				if (i >= length) {
+					throw new ParserException("JsonRpcResponse: No closing `\"' found");
+				}
+			} else if (c == '{' || c == '[') {
+				if (depth == 0) {
+					s = i;
+				}
+				depth++;
+			} else if (c == '}' || c == ']') {
+				if (depth == 0) {
+					break;
+				}
+				depth--;
+				if (depth == 0) {
+					if (n >= parts.length) {
+						throw new ParserException("JsonRpcResponse: Too many responses in batch");
+					}
+					parts[n].set(buf, s, i + 1 - s);
+					parts[n].rollNTime = rollNTime;
+					parts[n].parse();
+					n++;
+				}
+			}
+		}
+		return n;
+	}
+
+	// ******* parse
+	// *************************************************************************
+	public void parse() throws ParserException {
+		for (int f = 0; f < names.length; f++) {
+			start[f] = -1;
+		}
+		int depth = 0;
+		long isObject = 0;		// bit d is set if depth d is an object
+		boolean expectKey = false;
+		int key = -1;			// field of the next value, < 0 if the value is not required
+		int i = 0;
+
+		while (i < length) {
+			int c = buf[i];
+			if (c == '{' || c == '[') {
+				if (depth + 1 >= maxDepth) {
+					throw new ParserException("JsonRpcResponse: Nesting too deep");
+				}
+				if (key >= 0 && start[key] < 0) {
+					start[key] = i;
+					end[key] = length;
+				} else {
+					key = -1;
+				}
+				depth++;
+				valueKey[depth] = key;
+				isObject = c == '{' ? isObject | (1L << depth) : isObject & ~(1L << depth);
+				expectKey = c == '{';
+				key = -1;
+				i++;
+			} else if (c == '}' || c == ']') {
+				if (depth > 0) {
+					if (valueKey[depth] >= 0) {
+						end[valueKey[depth]] = i + 1;
+					}
+					depth--;
+				}
+				expectKey = false;
+				key = -1;
+				i++;
+			} else if (c == ',') {
+				expectKey = (isObject & (1L << depth)) != 0;
+				key = -1;
+				i++;
+			} else if (c == ':' || (c & 255) <= 32) {
+				i++;
+			} else if (c == '"') {
+				int j = i + 1;
+				while (j < length && buf[j] != '"') {
+					if (buf[j] == '\\') {
+						j++;
+					}
+					j++;
+				}
+				if (j >= length) {
+					throw new ParserException("JsonRpcResponse: No closing `\"' found");
+				}
+				if (expectKey) {
+					key = matchKey(i + 1, j, depth);
+					expectKey = false;
+				} else {
+					if (key >= 0 && start[key] < 0) {
+						start[key] = i + 1;
+						end[key] = j;
+					}
+					key = -1;
+				}
+				i = j + 1;
+			} else {
+				int j = i;
+				while (j < length && buf[j] != ',' && buf[j] != '}' && buf[j] != ']' && (buf[j] & 255) > 32) {
+					j++;
+				}
+				if (key >= 0 && start[key] < 0) {
+					start[key] = i;
+					end[key] = j;
+				}
+				key = -1;
+				i = j;
+			}
+		}
+	}
+
+	// ******* matchKey
+	// *************************************************************************
+	private int matchKey(int s, int e, int depth) {
+		for (int f = 0; f < names.length; f++) {
+			byte[] k = keys[f];
+			if ((depth == 1 || f >= DATA) && e - s == k.length) {
+				int j = 0;
+				while (j < k.length && (buf[s + j] | 0x20) == k[j]) {
+					j++;
+				}
+				if (j >= k.length) {
+					return f;
+				}
+			}
+		}
+		return -1;
+	}
+
+	// ******* has
+	// *************************************************************************
+	public boolean has(int f) {
+		return start[f] >= 0;
+	}
+
+	// ******* value
+	// *************************************************************************
+	// returns null if not found
+	public String value(int f) {
+		return start[f] < 0 ? null : new String(buf, start[f], end[f] - start[f]);
+	}
+
+	// ******* valueEquals
+	// *************************************************************************
+	public boolean valueEquals(int f, String s) {
+		if (start[f] < 0 || end[f] - start[f] != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.toLowerCase((char) buf[start[f] + i]) != Character.toLowerCase(s.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ******* valueLength
+	// *************************************************************************
+	public int valueLength(int f) {
+		return start[f] < 0 ? -1 : end[f] - start[f];
+	}
+
+	// ******* intValue
+	// *************************************************************************
+	// returns def if not found or not a number
+	public int intValue(int f, int def) {
+		if (start[f] < 0) {
+			return def;
+		}
+		try {
+			return Integer.parseInt(value(f).trim());
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	// ******* hexToData
+	// *************************************************************************
+	// decodes the hex string value of field f into out
+	public void hexToData(int f, byte[] out) throws ParserException, NumberFormatException {
+		if (start[f] < 0) {
+			throw new ParserException("JsonRpcResponse: Parameter `" + names[f] + "' not found");
+		}
+		if (end[f] - start[f] < out.length * 2) {
+			throw new NumberFormatException("Invalid length of string");
+		}
+		int j = start[f];
+		for (int i = 0; i < out.length; i++) {
+			int h = hexValue[buf[j] & 255];
+			int l = hexValue[buf[j + 1] & 255];
+			if (h < 0 || l < 0) {
+				throw new NumberFormatException("Invalid hex string");
+			}
+			out[i] = (byte) ((h << 4) | l);
+			j += 2;
+		}
+	}
+
+	// ******* toString
+	// *************************************************************************
+	public String toString() {
+		return new String(buf, 0, length);
+	}
+}
+
+// *****************************************************************************
+// ******* HttpConnection ******************************************************
+// *****************************************************************************
+// Persistent HTTP/1.1 connection used for JSON-RPC POST requests. Supports
+// fixed length, chunked and unterminated responses, gzip and deflate. Like
+// HttpURLConnection it uses the proxy of the Java system properties
+// (http.proxyHost, socksProxyHost, ...), but without proxy authentication.
+class HttpConnection {
+	private static final byte[] headers = ("\r\nAccept-Encoding: gzip,deflate\r\n" +
+		"Content-Type: application/json\r\n" +
+		"Cache-Control: no-cache\r\n" +
+		"User-Agent: ztexBTCMiner\r\n" +
+		"X-Mining-Extensions: longpoll midstate rollntime submitold\r\n" +
+		"Connection: keep-alive\r\n" +
+		"Content-Length: ").getBytes();
+
+	public final String url;
+	private final String host;
+	private final int port;
+	private final Proxy proxy;
+	private final byte[] requestLine;	// "POST <path> HTTP/1.1\r\nHost: <host>\r\nAuthorization: "
+
+	private Socket socket = null;
+	private InputStream in;
+	private OutputStream out;
+	private boolean keepAlive = false;
+	private boolean responseStarted;
+	private byte[] line = new byte[256];
+	private Body body = new Body();
+
+	public long lastUsed = 0;
+	public int requests = 0;
+
+	// response headers, null if not present
+	public String rejectReason;
+	public String longPolling;
+	public String rollNTime;
+
+	// ******* Body
+	// *************************************************************************
+	// response body, consumes exactly the bytes of the response from the connection
+	private class Body extends InputStream {
+		private long remaining;		// < 0: read until connection is closed
+		private boolean chunked;
+		private boolean firstChunk;
+		private boolean eof;
+		private byte[] oneByte = new byte[1];
+
+		void reset(long length, boolean chunked) {
+			this.remaining = chunked ? 0 : length;
+			this.chunked = chunked;
+			firstChunk = true;
+			eof = !chunked && length == 0;
+		}
+
+		public int read() throws IOException {
+			return read(oneByte, 0, 1) < 1 ? -1 : oneByte[0] & 255;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (eof || len <= 0) {
+				return eof ? -1 : 0;
+			}
+			if (chunked && remaining == 0) {
+				if (!firstChunk && readLine() != 0) {
+					throw new IOException("HttpConnection: Invalid chunk");
+				}
+				firstChunk = false;
+				int l = readLine();
+				remaining = 0;
+				for (int i = 0; i < l && line[i] != ';' && line[i] > ' '; i++) {
+					int d = Character.digit((char) line[i], 16);
+					if (d < 0) {
+						throw new IOException("HttpConnection: Invalid chunk size");
+					}
+					remaining = remaining * 16 + d;
+				}
+				if (remaining == 0) {
+					while (readLine() > 0) {	// trailers
+					}
+					eof = true;
+					return -1;
+				}
+			}
+			int n = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+			if (n < 0) {
+				if (remaining >= 0) {
+					throw new EOFException("HttpConnection: Unexpected end of response");
+				}
+				eof = true;
+				return -1;
+			}
+			if (remaining > 0) {
+				remaining -= n;
+				if (remaining == 0 && !chunked) {
+					eof = true;
+				}
+			}
+			return n;
+		}
+
+		void drain() throws IOException {
+			while (read(line, 0, line.length) >= 0) {
+			}
+		}
+	}
+
+	// ******* Constructor
+	// *************************************************************************
+	// does not connect
+	public HttpConnection(String url) throws MalformedURLException {
+		this.url = url;
+		URL u = new URL(url);
+		if (!u.getProtocol().equalsIgnoreCase("http")) {
+			throw new MalformedURLException("HttpConnection: Unsupported protocol: " + u.getProtocol());
+		}
+		host = u.getHost();
+		port = u.getPort() < 0 ? 80 : u.getPort();
+		proxy = proxy(url);
+		String path = u.getFile().equals("") ? "/" : u.getFile();
+		if (proxy.type() == Proxy.Type.HTTP) {
+			path = "http://" + host + ":" + port + path;
+		}
+		requestLine = ("POST " + path + " HTTP/1.1\r\nHost: " + host + (port == 80 ? "" : ":" + port) + "\r\nAuthorization: ").getBytes();
+	}
+
+	// ******* proxy
+	// *************************************************************************
+	// proxy selected by the Java system properties, Proxy.NO_PROXY if none
+	public static Proxy proxy(String url) {
+		try {
+			List<Proxy> l = ProxySelector.getDefault().select(new URI(url));
+			if (l != null && l.size() > 0 && l.get(0).type() != Proxy.Type.DIRECT && l.get(0).address() instanceof InetSocketAddress) {
+				return l.get(0);
+			}
+		} catch (Exception e) {
+		}
+		return Proxy.NO_PROXY;
+	}
+
+	// ******* proxyAddress
+	// *************************************************************************
+	// address of an HTTP proxy, resolves the host name
+	public static InetSocketAddress proxyAddress(Proxy proxy) {
+		InetSocketAddress a = (InetSocketAddress) proxy.address();
+		return a.isUnresolved() ? new InetSocketAddress(a.getHostString(), a.getPort()) : a;
+	}
+
+	// ******* healthy
+	// *************************************************************************
+	// true if the connection can be reused, i.e. it is open and no unexpected data has arrived
+	public boolean healthy() {
+		try {
+			return socket != null && keepAlive && !socket.isClosed() && !socket.isInputShutdown() && in.available() == 0;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// ******* close
+	// *************************************************************************
+	public void close() {
+		if (socket != null) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+		socket = null;
+		keepAlive = false;
+	}
+
+	// ******* connect
+	// *************************************************************************
+	// throws UnsentException on errors
+	private void connect(int connectTimeout) throws UnsentException {
+		close();
+		try {
+			socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			if (proxy.type() == Proxy.Type.HTTP) {
+				socket.connect(proxyAddress(proxy), connectTimeout);
+			} else if (proxy.type() == Proxy.Type.SOCKS) {
+				socket.connect(InetSocketAddress.createUnresolved(host, port), connectTimeout);	// resolved by the proxy
+			} else {
+				socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			}
+			in = new BufferedInputStream(socket.getInputStream(), 4096);
+			out = new BufferedOutputStream(socket.getOutputStream(), 1024);
+		} catch (IOException e) {
+			close();
+			throw new UnsentException(e);
+		}
+		requests = 0;
+	}
+
+	// ******* post
+	// *************************************************************************
+	// sends the request and reads the response body into response. If a reused
+	// connection fails before the response starts, e.g. because the server has
+	// closed it, an idempotent request is repeated once on a new connection.
+	// Other requests, e.g. share submissions, may have been processed already
+	// and are not repeated. UnsentException is thrown if the request has not
+	// been sent (connect or write error).
+	public void post(String authorization, JsonRpcRequest request, JsonRpcResponse response, int connectTimeout, int readTimeout) throws IOException {
+		boolean reused = socket != null;
+		if (!reused) {
+			connect(connectTimeout);
+		}
+		try {
+			exchange(authorization, request, response, readTimeout);
+		} catch (IOException e) {
+			close();
+			if (!reused || responseStarted || !request.idempotent) {
+				throw e;
+			}
+			connect(connectTimeout);
+			try {
+				exchange(authorization, request, response, readTimeout);
+			} catch (IOException e2) {
+				close();
+				throw e2;
+			}
+		}
+		requests += 1;
+		lastUsed = new Date().getTime();
+		if (!keepAlive) {
+			close();
+		}
+	}
+
+	// ******* exchange
+	// *************************************************************************
+	private void exchange(String authorization, JsonRpcRequest request, JsonRpcResponse response, int readTimeout) throws IOException {
+		responseStarted = false;
+		rejectReason = null;
+		longPolling = null;
+		rollNTime = null;
+		socket.setSoTimeout(readTimeout);
+
+		// send request, the server does not process it if it is incomplete
+		int l = request.length;
+		try {
+			out.write(requestLine);
+			for (int i = 0; i < authorization.length(); i++) {
+				out.write(authorization.charAt(i));
+			}
+			out.write(headers);
+			int d = 1;
+			while (d * 10 <= l) {
+				d *= 10;
+			}
+			for (; d > 0; d /= 10) {
+				out.write('0' + (l / d) % 10);
+			}
+			out.write('\r');
+			out.write('\n');
+			out.write('\r');
+			out.write('\n');
+			out.write(request.buf, 0, request.length);
+			out.flush();
+		} catch (IOException e) {
+			throw new UnsentException(e);
+		}
+
+		// status line
+		l = readLine();
+		if (l < 12 || !startsWith(l, "http/1.")) {
+			throw new IOException("HttpConnection: Invalid response");
+		}
+		int status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+		keepAlive = line[7] != '0';
+
+		// headers
+		long contentLength = -1;
+		boolean chunked = false;
+		String contentEncoding = null;
+		while ((l = readLine()) > 0) {
+			if (startsWith(l, "content-length:")) {
+				contentLength = 0;
+				for (int i = 15; i < l; i++) {
+					if (line[i] >= '0' && line[i] <= '9') {
+						contentLength = contentLength * 10 + line[i] - '0';
+					}
+				}
+			} else if (startsWith(l, "transfer-encoding:")) {
+				chunked = contains(18, l, "chunked");
+			} else if (startsWith(l, "connection:")) {
+				if (contains(11, l, "close")) {
+					keepAlive = false;
+				} else if (contains(11, l, "keep-alive")) {
+					keepAlive = true;
+				}
+			} else if (startsWith(l, "content-encoding:")) {
+				contentEncoding = value(17, l);
+			} else if (startsWith(l, "x-reject-reason:")) {
+				rejectReason = value(16, l);
+			} else if (startsWith(l, "x-long-polling:")) {
+				longPolling = value(15, l);
+			} else if (startsWith(l, "x-roll-ntime:")) {
+				rollNTime = value(13, l);
+			}
+		}
+		if (l < 0) {
+			throw new EOFException("HttpConnection: Unexpected end of response header");
+		}
+		if (!chunked && contentLength < 0) {
+			keepAlive = false;
+		}
+
+		// body
+		body.reset(contentLength, chunked);
+		InputStream is;
+		if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity")) {
+			is = body;
+		} else if (contentEncoding.equalsIgnoreCase("gzip")) {
+			is = new GZIPInputStream(body);
+		} else if (contentEncoding.equalsIgnoreCase("deflate")) {
+			is = new InflaterInputStream(body);
+		} else {
+			keepAlive = false;
+			throw new IOException("httpGet: Unknown encoding: " + contentEncoding);
+		}
+		response.read(is);
+		body.drain();
+
+		if (status >= 400) {
+			throw new IOException("Server returned HTTP response code: " + status + " for URL: " + url);
+		}
+	}
+
+	// ******* readLine
+	// *************************************************************************
+	// reads a line into line without CR LF, returns its length or -1 at end of stream
+	private int readLine() throws IOException {
+		int l = 0;
+		int b;
+		while ((b = in.read()) >= 0 && b != '\n') {
+			responseStarted = true;
+			if (l >= line.length) {
+				line = Arrays.copyOf(line, line.length * 2);
+			}
+			line[l++] = (byte) b;
+		}
+		if (b < 0 && l == 0) {
+			return -1;
+		}
+		responseStarted = true;
+		return l > 0 && line[l - 1] == '\r' ? l - 1 : l;
+	}
+
+	// ******* startsWith
+	// *************************************************************************
+	// case insensitive, s must be lower case
+	private boolean startsWith(int l, String s) {
+		if (l < s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (Character.toLowerCase((char) line[i]) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ******* contains
+	// *************************************************************************
+	// case insensitive, s must be lower case
+	private boolean contains(int from, int l, String s) {
+		for (int i = from; i + s.length() <= l; i++) {
+			int j = 0;
+			while (j < s.length() && Character.toLowerCase((char) line[i + j]) == s.charAt(j)) {
+				j++;
+			}
+			if (j >= s.length()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// ******* value
+	// *************************************************************************
+	private String value(int from, int l) {
+		return new String(line, from, l - from).trim();
+	}
+}
+
+// *****************************************************************************
+// ******* HttpConnectionPool **************************************************
+// *****************************************************************************
+// Persistent connections of a mining pool, shared by all miners that use it.
+// At most maxConnections are in use at once, further requests wait for one.
+class HttpConnectionPool {
+	public static int maxIdle = 4;			// maximum number of idle connections per pool, 0 disables connection reuse
+	public static int idleTimeout = 30;		// in s
+	public static int maxConnections = 8;		// maximum number of connections in use per pool
+
+	private Vector<HttpConnection> idle = new Vector<HttpConnection>();
+	private final int size;				// < 0: maxIdle
+	private int active = 0;				// connections in use
+
+	public int created = 0;
+	public int reused = 0;
+	public int evicted = 0;
+	public int waits = 0;				// requests that had to wait for a connection
+
+	// ******* Constructor
+	// *************************************************************************
+	public HttpConnectionPool() {
+		this(-1);
+	}
+
+	public HttpConnectionPool(int size) {
+		this.size = size;
+	}
+
+	// ******* get
+	// *************************************************************************
+	// returns an idle connection to url or a new (not yet connected) one, waits up
+	// to timeout ms if maxConnections are in use. Every connection must be released.
+	public synchronized HttpConnection get(String url, long timeout) throws IOException {
+		long t = new Date().getTime();
+		if (active >= maxConnections) {
+			waits += 1;
+			long deadline = t + timeout;
+			while (active >= maxConnections) {
+				if (t >= deadline) {
+					throw new UnsentException("HttpConnectionPool: No free connection within " + timeout + "ms");
+				}
+				try {
+					wait(deadline - t);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException("HttpConnectionPool: Interrupted");
+				}
+				t = new Date().getTime();
+			}
+		}
+		HttpConnection con = null;
+		while (con == null && idle.size() > 0) {
+			HttpConnection c = idle.remove(idle.size() - 1);
+			if (c.url.equals(url) && t - c.lastUsed < idleTimeout * 1000L && c.healthy()) {
+				reused += 1;
+				con = c;
+			} else {
+				c.close();
+				evicted += 1;
+			}
+		}
+		if (con == null) {
+			con = new HttpConnection(url);
+			created += 1;
+		}
+		active += 1;
+		return con;
+	}
+
+	// ******* release
+	// *************************************************************************
+	// returns a connection to the pool; connections that failed are closed
+	public synchronized void release(HttpConnection con, boolean ok) {
+		active -= 1;
+		notify();
+		long t = new Date().getTime();
+		for (int i = idle.size() - 1; i >= 0; i--) {
+			if (t - idle.elementAt(i).lastUsed >= idleTimeout * 1000L) {
+				idle.remove(i).close();
+				evicted += 1;
+			}
+		}
+		if (ok && con.healthy() && idle.size() < (size < 0 ? maxIdle : size)) {
+			idle.add(con);
+		} else {
+			con.close();
+		}
+	}
+
+	// ******* clear
+	// *************************************************************************
+	public synchronized void clear() {
+		for (int i = 0; i < idle.size(); i++) {
+			idle.elementAt(i).close();
+		}
+		idle.clear();
+	}
+
+	// ******* stats
+	// *************************************************************************
+	public synchronized String stats() {
+		return created + " connections, " + reused + " reused, " + evicted + " evicted, " + idle.size() + " idle, " + active + " in use" + (waits > 0 ? ", " + waits + " waits for a free connection" : "");
+	}
+}
+
+// *****************************************************************************
+// ******* MinerDevice *********************************************************
+// *****************************************************************************
+// A board with one or more FPGAs running the BTCMiner firmware. The methods
+// correspond to the vendor requests and commands of the firmware, the buffers
+// have the same format.
+interface MinerDevice {
+	// serial number string, used in miner names
+	public String snString();
+
+	// name of the bus the device is connected to, devices are grouped by bus in cluster mode
+	public String busName();
+
+	// device number, unique per bus
+	public int devNum();
+
+	public int numberOfFpgas() throws UsbException, FirmwareException;
+
+	// returns the configuration time in ms
+	public long configureFpga(int fpgaNum, String bitFileName) throws Exception;
+
+	// 0x82: BTCMiner descriptor, buf has 64 bytes
+	public void getDescriptor(int fpgaNum, byte[] buf) throws UsbException;
+
+	// 0x80: bytes 64..75 of the data followed by the midstate, 44 bytes
+	public void sendData(int fpgaNum, byte[] buf) throws UsbException;
+
+	// 0x81: golden nonce, nonce, hash7 and extra solutions of every core
+	public void readNonces(int fpgaNum, byte[] buf, int length) throws UsbException;
+
+	// 0x83
+	public void setFreq(int fpgaNum, int m) throws UsbException;
+
+	// 0x84
+	public void suspend(int fpgaNum) throws UsbException;
+
+	public void resetFpga(int fpgaNum) throws Exception;
+
+	// temperature in degree celsius or Double.NaN if the FPGA has no temperature sensor, exceptions are read errors
+	public double tempSensorRead(int fpgaNum) throws Exception;
+}
+
+// *****************************************************************************
+// ******* ZtexMinerDevice *****************************************************
+// *****************************************************************************
+class ZtexMinerDevice implements MinerDevice {
+	private Ztex1v1 ztex;
+
+	// ******* Constructor
+	// *************************************************************************
+	// uploads the firmware if required
+	public ZtexMinerDevice(Ztex1v1 pZtex, String firmwareFile) throws UsbException, FirmwareException {
+		ztex = pZtex;
+		ztex.tempSensorUpdateInterval = 1000;
+		ztex.enableExtraFpgaConfigurationChecks = true;
+
+		String snString = null;
+		if ((ztex.dev().productId(2) == 0) && (firmwareFile == null)) {
+			for (int j = 0; j < BTCMiner.defaultFirmwarePID1.length; j++) {
+				if (BTCMiner.defaultFirmwarePID1[j] == ztex.dev().productId(1) && ztex.dev().productString().equals(BTCMiner.dummyFirmwareNames[j])) {
+					firmwareFile = BTCMiner.firmwareFiles[j];
+				}
+			}
+			if (firmwareFile != null) {
+				BTCMiner.printMsg("Using firmware `" + firmwareFile + "'" + " for `" + ztex.dev().productString() +"'");
+				snString = ztex.dev().snString();
+			}
+		}
+
+		if (firmwareFile != null) {
+			try {
+				ZtexIhxFile1 ihxFile = new ZtexIhxFile1(firmwareFile);
+				if (snString != null) {
+					ihxFile.setSnString(snString);
+				}
+				ztex.uploadFirmware(ihxFile, false);
+			} catch (Exception e) {
+				throw new FirmwareException(e.getLocalizedMessage());
+			}
+		}
+
+		if (!ztex.valid() || ztex.dev().productId(0) != 10 || ztex.dev().productId(2) != 1) {
+			throw new FirmwareException("Wrong or no firmware");
+		}
+	}
+
+	// ******* ztex
+	// *************************************************************************
+	public Ztex1v1 ztex() {
+		return ztex;
+	}
+
+	// ******* snString
+	// *************************************************************************
+	public String snString() {
+		return ztex.dev().snString();
+	}
+
+	// ******* busName
+	// *************************************************************************
+	public String busName() {
+		return ztex.dev().dev().getBus().getDirname();
+	}
+
+	// ******* devNum
+	// *************************************************************************
+	public int devNum() {
+		return ztex.dev().dev().getDevnum();
+	}
+
+	// ******* numberOfFpgas
+	// *************************************************************************
+	public int numberOfFpgas() throws UsbException, FirmwareException {
+		try {
+			return ztex.numberOfFpgas();
+		} catch (InvalidFirmwareException e) {
+			throw new FirmwareException(e.getLocalizedMessage());
+		}
+	}
+
+	// ******* configureFpga
+	// *************************************************************************
+	public long configureFpga(int fpgaNum, String bitFileName) throws Exception {
+		synchronized (ztex) {
+			ztex.selectFpga(fpgaNum);
+			return BTCMiner.forceEP0Config ? ztex.configureFpgaLS(bitFileName, true, 2) : ztex.configureFpga(bitFileName, true, 2);
+		}
+	}
+
+	// ******* selectFpga
+	// *************************************************************************
+	private void selectFpga(int fpgaNum) throws UsbException {
+		try {
+			ztex.selectFpga(fpgaNum);
+		} catch (InvalidFirmwareException e) {
+			// shouldn't occur
+		}
+	}
+
+	// ******* getDescriptor
+	// *************************************************************************
+	public void getDescriptor(int fpgaNum, byte[] buf) throws UsbException {
+		ztex.vendorRequest2(0x82, "Read descriptor", 0, 0, buf, 64);
+	}
+
+	// ******* sendData
+	// *************************************************************************
+	public void sendData(int fpgaNum, byte[] buf) throws UsbException {
+		synchronized (ztex) {
+			selectFpga(fpgaNum);
+			ztex.vendorCommand2(0x80, "Send hash data", 0, 0, buf, 44);
+		}
+	}
+
+	// ******* readNonces
+	// *************************************************************************
+	public void readNonces(int fpgaNum, byte[] buf, int length) throws UsbException {
+		synchronized (ztex) {
+			selectFpga(fpgaNum);
+			ztex.vendorRequest2(0x81, "Read hash data", 0, 0, buf, length);
+		}
+	}
+
+	// ******* setFreq
+	// *************************************************************************
+	public void setFreq(int fpgaNum, int m) throws UsbException {
+		synchronized (ztex) {
+			selectFpga(fpgaNum);
+			ztex.vendorCommand(0x83, "Send hash data", m, 0);
+		}
+	}
+
+	// ******* suspend
+	// *************************************************************************
+	public void suspend(int fpgaNum) throws UsbException {
+		synchronized (ztex) {
+			selectFpga(fpgaNum);
+			ztex.vendorCommand(0x84, "Suspend");
+		}
+	}
+
+	// ******* resetFpga
+	// *************************************************************************
+	public void resetFpga(int fpgaNum) throws Exception {
+		synchronized (ztex) {
+			ztex.selectFpga(fpgaNum);
+			ztex.resetFpga();
+		}
+	}
+
+	// ******* tempSensorRead
+	// *************************************************************************
+	public double tempSensorRead(int fpgaNum) throws Exception {
+		try {
+			return ztex.tempSensorRead(fpgaNum);
+		} catch (CapabilityException e) {
+			return Double.NaN;
+		}
+	}
+}
+
+// *****************************************************************************
+// ******* HashEngine **********************************************************
+// *****************************************************************************
+// int based double SHA-256 used for nonce verification, does not allocate memory per hash
+class HashEngine {
+	public static final int[] k = { 0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+	public static final int[] initState = { 0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 };
+
+	int[] midstate = new int[8];
+	int[] data = new int[16];		// second block of the header including padding, word 3 is the nonce
+	private int[] target = new int[8];
+	private int[] wBuf = new int[64];
+	private int[] hash1 = new int[8];
+
+	int[] preState = new int[8];		// state after the first three rounds of the second block, does not depend on the nonce
+	int w16, w17, w18, w19;			// nonce independent parts of the message schedule words 16..19
+
+	public int[] hash = new int[8];		// result of the last getHash call (not updated by getHash7)
+
+	// ******* setWork
+	// *************************************************************************
+	public void setWork(byte[] dataBuf, byte[] midstateBuf) throws NumberFormatException {
+		for (int i = 0; i < 8; i++) {
+			midstate[i] = BTCMiner.dataToInt(midstateBuf, i * 4);
+		}
+		for (int i = 0; i < 16; i++) {
+			data[i] = BTCMiner.dataToInt(dataBuf, 64 + i * 4);
+		}
+		precalc();
+	}
+
+	// ******* precalc
+	// *************************************************************************
+	// calculates everything of the second block that does not depend on the nonce (word 3)
+	private void precalc() {
+		for (int i = 0; i < 16; i++) {
+			wBuf[i] = data[i];
+		}
+		rounds(midstate, wBuf, 0, 3, preState);
+
+		w16 = s1(data[14]) + data[9] + s0(data[1]) + data[0];
+		w17 = s1(data[15]) + data[10] + s0(data[2]) + data[1];
+		w18 = s1(w16) + data[11] + data[2];		// + s0(nonce)
+		w19 = s1(w17) + data[12] + s0(data[4]);		// + nonce
+	}
+
+	// ******* setTarget
+	// *************************************************************************
+	public void setTarget(byte[] targetBuf) throws NumberFormatException {
+		for (int i = 0; i < 8; i++) {
+			target[i] = BTCMiner.dataToInt(targetBuf, i * 4);
+		}
+	}
+
+	// ******* midstate
+	// *************************************************************************
+	// hashes the first 64 bytes of dataBuf and stores the result in out
+	public void midstate(byte[] dataBuf, byte[] out) throws NumberFormatException {
+		for (int i = 0; i < 16; i++) {
+			wBuf[i] = BTCMiner.dataToInt(dataBuf, i * 4);
+		}
+		transform(initState, wBuf, hash1);
+		for (int i = 0; i < 8; i++) {
+			BTCMiner.intToData(hash1[i], out, i * 4);
+		}
+	}
+
+	// ******* getHash
+	// *************************************************************************
+	// double SHA-256 of the header with nonce n, returns H7
+	public int getHash(int n) {
+		firstHash(n);
+		transform(initState, wBuf, hash);
+		return hash[7];
+	}
+
+	// ******* getHash7
+	// *************************************************************************
+	// same result as getHash but only calculates H7: H7 is E after round 60,
+	// i.e. rounds 61..63 and the feed-forward of the other words are skipped
+	public int getHash7(int n) {
+		firstHash(n);
+		expand(wBuf, 16, 61);
+		rounds(initState, wBuf, 0, 61, hash1);
+		return hash1[4] + initState[7];
+	}
+
+	// ******* firstHash
+	// *************************************************************************
+	// hashes the second block of the header with nonce n and stores the
+	// input block of the second hash in wBuf[0..15]
+	private void firstHash(int n) {
+		for (int i = 0; i < 16; i++) {
+			wBuf[i] = data[i];
+		}
+		wBuf[3] = n;
+		wBuf[16] = w16;
+		wBuf[17] = w17;
+		wBuf[18] = w18 + s0(n);
+		wBuf[19] = w19 + n;
+		expand(wBuf, 20, 64);
+		rounds(preState, wBuf, 3, 64, hash1);
+
+		for (int i = 0; i < 8; i++) {
+			wBuf[i] = hash1[i] + midstate[i];
+		}
+		wBuf[8] = 0x80000000;
+		for (int i = 9; i < 15; i++) {
+			wBuf[i] = 0;
+		}
+		wBuf[15] = 0x100;
+	}
+
+	// ******* compareWithTarget - returns true if the last hash is smaller than or equal to target
+	// *************************************************************************
+	public boolean compareWithTarget() {
+		for (int i = 7; i >= 0; i--) {
+			long h = Integer.reverseBytes(hash[i]) & 0xffffffffL;
+			long t = target[i] & 0xffffffffL;
+			if (h < t) {
+				return true;
+			}
+			if (h > t) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// ******* hashToData
+	// *************************************************************************
+	public void hashToData(byte[] buf) {
+		for (int i = 0; i < 8; i++) {
+			BTCMiner.intToData(hash[i], buf, i * 4);
+		}
+	}
+
+	// ******* s0, s1
+	// *************************************************************************
+	static int s0(int x) {
+		return ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+	}
+
+	static int s1(int x) {
+		return ((x >>> 17) | (x << 15)) ^ ((x >>> 19) | (x << 13)) ^ (x >>> 10);
+	}
+
+	// ******* expand
+	// *************************************************************************
+	// calculates the message schedule words w[from..to-1]
+	private static void expand(int[] w, int from, int to) {
+		for (int i = from; i < to; i++) {
+			w[i] = s1(w[i - 2]) + w[i - 7] + s0(w[i - 15]) + w[i - 16];
+		}
+	}
+
+	// ******* transform
+	// *************************************************************************
+	// w[0..15] contains the input block, w[16..63] is used as scratch buffer
+	public static void transform(int[] state, int[] w, int[] out) {
+		expand(w, 16, 64);
+		rounds(state, w, 0, 64, out);
+		for (int i = 0; i < 8; i++) {
+			out[i] += state[i];
+		}
+	}
+
+	// ******* rounds
+	// *************************************************************************
+	// rounds from..to-1 without the final addition of the initial state, out must not be state
+	private static void rounds(int[] state, int[] w, int from, int to, int[] out) {
+		int A = state[0];
+		int B = state[1];
+		int C = state[2];
+		int D = state[3];
+		int E = state[4];
+		int F = state[5];
+		int G = state[6];
+		int H = state[7];
+		int T, T2;
+
+		for (int i = from; i < to; i++) {
+			T = H + (((E >>> 6) | (E << 26)) ^ ((E >>> 11) | (E << 21)) ^ ((E >>> 25) | (E << 7))) + ((E & F) ^ (~E & G)) + k[i] + w[i];
+			T2 = (((A >>> 2) | (A << 30)) ^ ((A >>> 13) | (A << 19)) ^ ((A >>> 22) | (A << 10))) + ((A & B) ^ (A & C) ^ (B & C));
+			H = G;
+			G = F;
+			F = E;
+			E = D + T;
+			D = C;
+			C = B;
+			B = A;
+			A = T + T2;
+		}
+
+		out[0] = A;
+		out[1] = B;
+		out[2] = C;
+		out[3] = D;
+		out[4] = E;
+		out[5] = F;
+		out[6] = G;
+		out[7] = H;
+	}
+}
+
+// *****************************************************************************
+// ******* CPUMiner ************************************************************
+// *****************************************************************************
+// Hashing backend that runs on the CPU. It behaves like a single FPGA with the
+// BTCMiner firmware: one core per thread of a fork-join pool, each core scans
+// every cores-th nonce of the work and reports its golden nonce, its current
+// nonce and hash7.
+class CPUMiner implements MinerDevice {
+	public static final String bitFileName = "cpu";
+	public static final int chunkSize = 16384;	// hashes between two progress updates
+	public static final int maxCores = 256;		// limit of numNonces in the descriptor
+
+	private ForkJoinPool pool;
+	private int cores;
+	private double hashRate;		// in MH/s, all cores
+
+	private byte[] dataBuf = new byte[128];
+	private byte[] midstateBuf = new byte[32];
+	private volatile int generation = 0;	// incremented on new work
+	private volatile boolean running = false;
+	private volatile boolean stopped = false;
+
+	private int[] goldenNonce, nonce, hash7;
+
+	// ******* Constructor
+	// *************************************************************************
+	// threads < 1: one thread per core (at most maxCores)
+	public CPUMiner(int threads) {
+		cores = threads > 0 ? threads : Math.min(Runtime.getRuntime().availableProcessors(), maxCores);
+		goldenNonce = new int[cores];
+		nonce = new int[cores];
+		hash7 = new int[cores];
+		System.arraycopy(BTCMiner.sha256_pad1, 0, dataBuf, 80, BTCMiner.sha256_pad1.length);
+
+		// estimate the hash rate
+		HashEngine engine = new HashEngine();
+		engine.setWork(dataBuf, midstateBuf);
+		int n = 0;
+		long t0 = System.nanoTime();
+		long t;
+		do {
+			for (int i = 0; i < chunkSize; i++) {
+				engine.getHash7(n++);
+			}
+			t = System.nanoTime() - t0;
+		} while (t < 100000000);
+		hashRate = n * 1e3 / t * cores;
+
+		pool = new ForkJoinPool(cores, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+			public ForkJoinWorkerThread newThread(ForkJoinPool p) {
+				ForkJoinWorkerThread wt = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+				wt.setPriority(Thread.MIN_PRIORITY);	// only use spare CPU time
+				return wt;
+			}
+		}, null, false);
+		for (int i = 0; i < cores; i++) {
+			final int core = i;
+			pool.execute(new Runnable() {
+				public void run() {
+					scan(core);
+				}
+			});
+		}
+	}
+
+	// ******* cores
+	// *************************************************************************
+	public int cores() {
+		return cores;
+	}
+
+	// ******* snString
+	// *************************************************************************
+	public String snString() {
+		return "local";
+	}
+
+	// ******* busName
+	// *************************************************************************
+	public String busName() {
+		return bitFileName;
+	}
+
+	// ******* devNum
+	// *************************************************************************
+	public int devNum() {
+		return 0;
+	}
+
+	// ******* numberOfFpgas
+	// *************************************************************************
+	public int numberOfFpgas() {
+		return 1;
+	}
+
+	// ******* configureFpga
+	// *************************************************************************
+	public long configureFpga(int fpgaNum, String bitFileName) {
+		return 0;
+	}
+
+	// ******* getDescriptor
+	// *************************************************************************
+	// descriptor version 5
+	public void getDescriptor(int fpgaNum, byte[] buf) {
+		int f = (int) Math.max(1, Math.min(65535, Math.round(hashRate * 100)));
+		for (int i = 0; i < buf.length; i++) {
+			buf[i] = 0;
+		}
+		buf[0] = 5;
+		buf[1] = (byte) (cores - 1);
+		buf[2] = (byte) (10000 & 255);		// offsNonces = 0
+		buf[3] = (byte) (10000 >> 8);
+		buf[4] = (byte) (f & 255);		// freqM1 = hash rate in MH/s
+		buf[5] = (byte) (f >> 8);
+		buf[6] = 0;				// freqM
+		buf[7] = 0;				// freqMaxM
+		buf[8] = 127;				// hashesPerClock = 1
+		buf[9] = 0;
+		buf[10] = 0;				// extraSolutions
+		for (int i = 0; i < bitFileName.length(); i++) {
+			buf[11 + i] = (byte) bitFileName.charAt(i);
+		}
+	}
+
+	// ******* sendData
+	// *************************************************************************
+	public synchronized void sendData(int fpgaNum, byte[] buf) {
+		System.arraycopy(buf, 0, dataBuf, 64, 12);
+		System.arraycopy(buf, 12, midstateBuf, 0, 32);
+		for (int i = 0; i < cores; i++) {
+			goldenNonce[i] = 0;
+			nonce[i] = 0;
+			hash7[i] = 0;
+		}
+		generation += 1;
+		running = true;
+	}
+
+	// ******* readNonces
+	// *************************************************************************
+	public synchronized void readNonces(int fpgaNum, byte[] buf, int length) {
+		for (int i = 0; i < cores; i++) {
+			BTCMiner.intToData(goldenNonce[i], buf, i * 12 + 0);
+			BTCMiner.intToData(nonce[i], buf, i * 12 + 4);
+			BTCMiner.intToData(hash7[i], buf, i * 12 + 8);
+		}
+	}
+
+	// ******* setFreq
+	// *************************************************************************
+	// the frequency is fixed
+	public void setFreq(int fpgaNum, int m) {
+	}
+
+	// ******* suspend
+	// *************************************************************************
+	public void suspend(int fpgaNum) {
+		running = false;
+	}
+
+	// ******* resetFpga
+	// *************************************************************************
+	public void resetFpga(int fpgaNum) {
+		running = false;
+	}
+
+	// ******* tempSensorRead
+	// *************************************************************************
+	public double tempSensorRead(int fpgaNum) throws Exception {
+		return Double.NaN;
+	}
+
+	// ******* shutdown
+	// *************************************************************************
+	public void shutdown() {
+		running = false;
+		stopped = true;
+		pool.shutdown();
+	}
+
+	// ******* scan
+	// *************************************************************************
+	private void scan(int core) {
+		HashEngine engine = new HashEngine();
+		int gen = -1;
+		int n = core;
+
+		while (!stopped) {
+			if (!running) {
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+				}
+				continue;
+			}
+
+			if (gen != generation) {
+				synchronized (this) {
+					engine.setWork(dataBuf, midstateBuf);
+					gen = generation;
+				}
+				n = core;
+			}
+
+			int golden = 0;
+			int last = n, h = 0;
+			for (int i = 0; i < chunkSize; i++) {
+				h = engine.getHash7(n);
+				if (h == 0) {
+					golden = n;
+				}
+				last = n;
+				n += cores;
+			}
+
+			synchronized (this) {
+				if (gen == generation) {
+					nonce[core] = last;
+					hash7[core] = h - 0x5be0cd19;
+					if (golden != 0) {
+						goldenNonce[core] = golden;
+					}
+				}
+			}
+		}
+	}
+}
+
+// *****************************************************************************
+// ******* SimulatedMinerDevice ************************************************
+// *****************************************************************************
+// Simulated multi-FPGA board with the BTCMiner firmware for benchmarking
+// without USB hardware. The nonce counters advance with the simulated clock
+// frequency in real time multiplied by timeScale. hash7 is calculated from the
+// loaded work. Golden nonces are real and therefore have to be searched:
+// at most searchHashes nonces of the scanned range are checked per poll
+// (0: no golden nonces). A golden nonce takes about 2^32 hashes on average and
+// the CPU checks about 10^6 per second, so with the default (about 4000 hashes
+// per FPGA and second) shares are rare. Even if a whole CPU core searches
+// (e.g. 1000000 with a single FPGA) a share takes about an hour. Use 0 for
+// benchmarks with many simulated FPGAs.
+// The error rate rises with frequency and temperature.
+class SimulatedMinerDevice implements MinerDevice {
+	// descriptor
+	public static int numNonces = 1;
+	public static double freqM1 = 4.0;		// in MHz
+	public static int freqMDefault = 47;
+	public static int freqMaxM = 59;
+	public static int extraSolutions = 1;
+	public static double hashesPerClock = 1.0;
+
+	// model
+	public static double timeScale = 1.0;		// simulated time per real time
+	public static int searchHashes = 1024;		// golden nonce search effort per poll
+	public static long latency = 1;			// USB latency per request in ms
+	public static double errorRate = 0.001;		// error rate at default frequency
+	public static double errorSlope = 0.5;		// relative error rate increase per frequency step above default
+	public static double ambientTemp = 30;		// in degree celsius
+	public static double tempPerMHz = 0.15;		// temperature increase per MHz
+
+	private static int boards = 0;
+	private static final long t0 = System.nanoTime();
+
+	private int devNum;
+	private Fpga[] fpgas;
+	private Random random = new Random();
+
+	// ******* Fpga
+	// *************************************************************************
+	private static class Fpga {
+		HashEngine engine = new HashEngine();
+		byte[] dataBuf = new byte[128];
+		byte[] midstateBuf = new byte[32];
+		boolean running = false;
+		int freqM = freqMDefault;
+		double time;		// simulated time of the last update in s
+		double hashes;		// hashes since new work
+		long searched;		// hashes checked for golden nonces
+		int[] goldenNonce = new int[numNonces * (1 + extraSolutions)];
+		double temp = ambientTemp;
+	}
+
+	// ******* Constructor
+	// *************************************************************************
+	public SimulatedMinerDevice(int numberOfFpgas) {
+		devNum = boards++;
+		fpgas = new Fpga[numberOfFpgas];
+		for (int i = 0; i < numberOfFpgas; i++) {
+			fpgas[i] = new Fpga();
+			System.arraycopy(BTCMiner.sha256_pad1, 0, fpgas[i].dataBuf, 80, BTCMiner.sha256_pad1.length);
+			fpgas[i].time = time();
+		}
+	}
+
+	// ******* time
+	// *************************************************************************
+	// simulated time in s
+	private static double time() {
+		return (System.nanoTime() - t0) * 1e-9 * timeScale;
+	}
+
+	// ******* usb
+	// *************************************************************************
+	// models the latency of a USB transfer, the board is locked by the caller
+	private void usb() {
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+			}
+		}
+	}
+
+	// ******* fpga
+	// *************************************************************************
+	private Fpga fpga(int fpgaNum) throws UsbException {
+		if (fpgaNum < 0 || fpgaNum >= fpgas.length) {
+			throw new UsbException("Invalid FPGA number: " + fpgaNum);
+		}
+		return fpgas[fpgaNum];
+	}
+
+	// ******* errorRate
+	// *************************************************************************
+	private static double errorRate(Fpga f) {
+		double e = errorRate * Math.exp(Math.max(0, f.freqM - freqMDefault) * errorSlope + Math.max(0, f.temp - 60) * 0.1);
+		return Math.min(1.0, e);
+	}
+
+	// ******* update
+	// *************************************************************************
+	// advances the nonce counters and the temperature to the current simulated time
+	private void update(Fpga f) {
+		double t = time();
+		double dt = t - f.time;
+		f.time = t;
+		double fr = (f.freqM + 1) * freqM1;
+		if (f.running) {
+			f.hashes += dt * fr * 1e6 * hashesPerClock;
+		} else {
+			fr = 0;
+		}
+		f.temp += (ambientTemp + fr * tempPerMHz - f.temp) * (1 - Math.exp(-dt / 30.0));
+	}
+
+	// ******* nonce
+	// *************************************************************************
+	// core i scans every numNonces-th nonce starting at i
+	private static int nonce(long hashes, int core) {
+		return (int) ((hashes / numNonces) * numNonces + core);
+	}
+
+	// ******* snString
+	// *************************************************************************
+	public String snString() {
+		return String.format("%010d", devNum);
+	}
+
+	// ******* busName
+	// *************************************************************************
+	public String busName() {
+		return "sim";
+	}
+
+	// ******* devNum
+	// *************************************************************************
+	public int devNum() {
+		return devNum;
+	}
+
+	// ******* numberOfFpgas
+	// *************************************************************************
+	public int numberOfFpgas() {
+		return fpgas.length;
+	}
+
+	// ******* configureFpga
+	// *************************************************************************
+	public synchronized long configureFpga(int fpgaNum, String bitFileName) throws Exception {
+		fpga(fpgaNum);
+		usb();
+		return latency;
+	}
+
+	// ******* getDescriptor
+	// *************************************************************************
+	public synchronized void getDescriptor(int fpgaNum, byte[] buf) throws UsbException {
+		final String bitFileName = "sim";
+		int f = (int) Math.round(freqM1 * 100);
+		int h = (int) Math.round(hashesPerClock * 128) - 1;
+		usb();
+		for (int i = 0; i < buf.length; i++) {
+			buf[i] = 0;
+		}
+		buf[0] = 5;
+		buf[1] = (byte) (numNonces - 1);
+		buf[2] = (byte) (10000 & 255);		// offsNonces = 0
+		buf[3] = (byte) (10000 >> 8);
+		buf[4] = (byte) (f & 255);
+		buf[5] = (byte) (f >> 8);
+		buf[6] = (byte) freqMDefault;
+		buf[7] = (byte) freqMaxM;
+		buf[8] = (byte) (h & 255);
+		buf[9] = (byte) (h >> 8);
+		buf[10] = (byte) extraSolutions;
+		for (int i = 0; i < bitFileName.length(); i++) {
+			buf[11 + i] = (byte) bitFileName.charAt(i);
+		}
+	}
+
+	// ******* sendData
+	// *************************************************************************
+	public synchronized void sendData(int fpgaNum, byte[] buf) throws UsbException {
+		Fpga f = fpga(fpgaNum);
+		usb();
+		update(f);
+		System.arraycopy(buf, 0, f.dataBuf, 64, 12);
+		System.arraycopy(buf, 12, f.midstateBuf, 0, 32);
+		f.engine.setWork(f.dataBuf, f.midstateBuf);
+		f.hashes = 0;
+		f.searched = 0;
+		for (int i = 0; i < f.goldenNonce.length; i++) {
+			f.goldenNonce[i] = 0;
+		}
+		f.running = true;
+	}
+
+	// ******* readNonces
+	// *************************************************************************
+	public synchronized void readNonces(int fpgaNum, byte[] buf, int length) throws UsbException {
+		Fpga f = fpga(fpgaNum);
+		int bs = 12 + extraSolutions * 4;
+		if (length < numNonces * bs) {
+			throw new UsbException("Invalid length of hash data: " + length);
+		}
+		usb();
+		update(f);
+
+		long hashes = (long) f.hashes;
+		double e = errorRate(f);
+
+		// golden nonce search in the scanned range
+		long n = Math.max(f.searched, hashes - searchHashes);
+		while (n < hashes) {
+			int nonce = (int) n;
+			if (f.engine.getHash7(nonce) == 0) {
+				int core = (int) (n % numNonces);
+				int k = core * (1 + extraSolutions);
+				for (int j = extraSolutions; j > 0; j--) {
+					f.goldenNonce[k + j] = f.goldenNonce[k + j - 1];
+				}
+				f.goldenNonce[k] = random.nextDouble() < e ? nonce ^ (1 << random.nextInt(32)) : nonce;
+			}
+			n++;
+		}
+		f.searched = hashes;
+
+		for (int i = 0; i < numNonces; i++) {
+			int nonce = nonce(hashes, i);
+			int h = f.engine.getHash7(nonce) - 0x5be0cd19;
+			if (random.nextDouble() < e) {
+				h = random.nextInt();
+			}
+			BTCMiner.intToData(f.goldenNonce[i * (1 + extraSolutions)], buf, i * bs + 0);
+			BTCMiner.intToData(nonce, buf, i * bs + 4);
+			BTCMiner.intToData(h, buf, i * bs + 8);
+			for (int j = 0; j < extraSolutions; j++) {
+				BTCMiner.intToData(f.goldenNonce[i * (1 + extraSolutions) + 1 + j], buf, i * bs + 12 + j * 4);
+			}
+		}
+	}
+
+	// ******* setFreq
+	// *************************************************************************
+	public synchronized void setFreq(int fpgaNum, int m) throws UsbException {
+		Fpga f = fpga(fpgaNum);
+		usb();
+		update(f);
+		f.freqM = Math.max(0, Math.min(m, freqMaxM));
+	}
+
+	// ******* suspend
+	// *************************************************************************
+	public synchronized void suspend(int fpgaNum) throws UsbException {
+		Fpga f = fpga(fpgaNum);
+		usb();
+		update(f);
+		f.running = false;
+	}
+
+	// ******* resetFpga
+	// *************************************************************************
+	public synchronized void resetFpga(int fpgaNum) throws Exception {
+		suspend(fpgaNum);
+	}
+
+	// ******* tempSensorRead
+	// *************************************************************************
+	public synchronized double tempSensorRead(int fpgaNum) throws Exception {
+		Fpga f = fpga(fpgaNum);
+		update(f);
+		return f.temp;
+	}
+
+	// ******* setOption
+	// *************************************************************************
+	// option in the format name=value
+	public static void setOption(String s) throws NumberFormatException {
+		int i = s.indexOf('=');
+		if (i < 1) {
+			throw new NumberFormatException("Invalid simulator option: " + s);
+		}
+		String name = s.substring(0, i).toLowerCase();
+		String value = s.substring(i + 1);
+		if (name.equals("nonces")) {
+			numNonces = Integer.parseInt(value);
+		} else if (name.equals("freqm1")) {
+			freqM1 = Double.parseDouble(value);
+		} else if (name.equals("freqm")) {
+			freqMDefault = Integer.parseInt(value);
+		} else if (name.equals("freqmaxm")) {
+			freqMaxM = Integer.parseInt(value);
+		} else if (name.equals("extrasolutions")) {
+			extraSolutions = Integer.parseInt(value);
+		} else if (name.equals("hpc")) {
+			hashesPerClock = Double.parseDouble(value);
+		} else if (name.equals("timescale")) {
+			timeScale = Double.parseDouble(value);
+		} else if (name.equals("search")) {
+			searchHashes = Integer.parseInt(value);
+		} else if (name.equals("latency")) {
+			latency = Long.parseLong(value);
+		} else if (name.equals("errorrate")) {
+			errorRate = Double.parseDouble(value);
+		} else if (name.equals("errorslope")) {
+			errorSlope = Double.parseDouble(value);
+		} else if (name.equals("temp")) {
+			tempPerMHz = Double.parseDouble(value);
+		} else {
+			throw new NumberFormatException("Invalid simulator option: " + name);
+		}
+		if (numNonces < 1 || numNonces > 256 || freqMDefault < 0 || freqMaxM < freqMDefault || freqMaxM > 255 || extraSolutions < 0 || extraSolutions > 15 || freqM1 <= 0 || freqM1 > 655 || hashesPerClock <= 0 || hashesPerClock > 512 || timeScale <= 0 || searchHashes < 0 || latency < 0) {
+			throw new NumberFormatException("Invalid value of simulator option " + name + ": " + value);
+		}
+	}
+}
+
+// *****************************************************************************
+// ******* BTCMinerBenchmark ***************************************************
+// *****************************************************************************
+// CPU benchmarks that do not require hardware, see mode -m b
+class BTCMinerBenchmark {
+	public static final String testData = "0000000122f3e795bb7a55b2b4a580e0dbba9f2a5aedbfc566632984000008de00000000e951667fbba0cfae7719ab2fb4ab8d291a20d387782f4610297f5899cc58b7d64e4056801a08e1e500000000000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000";
+
+	public static int hashCount = 1000000;
+
+	// ******* allocatedBytes
+	// *************************************************************************
+	// bytes allocated by the current thread or -1 if not supported by the JVM
+	public static long allocatedBytes() {
+		try {
+			java.lang.management.ThreadMXBean tb = java.lang.management.ManagementFactory.getThreadMXBean();
+			if (tb instanceof com.sun.management.ThreadMXBean) {
+				return ((com.sun.management.ThreadMXBean) tb).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		} catch (Throwable e) {
+		}
+		return -1;
+	}
+
+	// ******* printResult
+	// *************************************************************************
+	public static void printResult(String name, int count, long time, long alloc) {
+		printResult(name, count, time, alloc, "hash", "hashes");
+	}
+
+	public static void printResult(String name, int count, long time, long alloc, String unit, String units) {
+		BTCMiner.printMsg2("  " + String.format("%-30s", name) + ": " + String.format("%10.0f", count * 1e9 / Math.max(time, 1)) + " " + units + "/s" + (alloc < 0 ? "" : ",  " + String.format("%7.1f", (double) alloc / count) + " bytes/" + unit));
+	}
+
+	// ******* hashByteArrays
+	// *************************************************************************
+	// the byte array based verification BTCMiner.getHash used before HashEngine was introduced
+	private static int hashByteArrays(byte[] midstateBuf, byte[] dataBuf, byte[] hashBuf, int n) {
+		BTCMiner.intToData(n, dataBuf, 76);
+		BTCMiner.sha256_transform(midstateBuf, 0, dataBuf, 64, hashBuf, 0);
+		BTCMiner.sha256_transform(BTCMiner.sha256_init_state, 0, hashBuf, 0, hashBuf, 0);
+		return BTCMiner.dataToInt(hashBuf, 28);
+	}
+
+	// ******* hashTransform
+	// *************************************************************************
+	// two full HashEngine.transform calls, i.e. HashEngine.getHash without the nonce independent precalculations
+	private static int hashTransform(int[] midstate, int[] data, int[] w, int[] h, int n) {
+		for (int i = 0; i < 16; i++) {
+			w[i] = data[i];
+		}
+		w[3] = n;
+		HashEngine.transform(midstate, w, h);
+		for (int i = 0; i < 8; i++) {
+			w[i] = h[i];
+		}
+		w[8] = 0x80000000;
+		for (int i = 9; i < 15; i++) {
+			w[i] = 0;
+		}
+		w[15] = 0x100;
+		HashEngine.transform(HashEngine.initState, w, h);
+		return h[7];
+	}
+
+	// ******* hashEngine
+	// *************************************************************************
+	public static void hashEngine() {
+		byte[] dataBuf = BTCMiner.hexStrToData(testData);
+		byte[] midstateBuf = new byte[32];
+		byte[] hashBuf = BTCMiner.hexStrToData("00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000");
+		HashEngine engine = new HashEngine();
+		engine.midstate(dataBuf, midstateBuf);
+		engine.setWork(dataBuf, midstateBuf);
+
+		int[] midstate = new int[8];
+		int[] data = new int[16];
+		int[] w = new int[64];
+		int[] h = new int[8];
+		for (int i = 0; i < 8; i++) {
+			midstate[i] = BTCMiner.dataToInt(midstateBuf, i * 4);
+		}
+		for (int i = 0; i < 16; i++) {
+			data[i] = BTCMiner.dataToInt(dataBuf, 64 + i * 4);
+		}
+
+		int errors = 0;
+		for (int n = 0; n < 1000; n++) {
+			int h7 = hashByteArrays(midstateBuf, dataBuf, hashBuf, n);
+			if (h7 != engine.getHash(n) || h7 != engine.getHash7(n) || h7 != hashTransform(midstate, data, w, h, n)) {
+				errors++;
+			}
+		}
+		if (errors > 0) {
+			BTCMiner.printMsg2("Error: byte array path and HashEngine disagree in " + errors + " of 1000 hashes");
+		}
+
+		// the variants are run interleaved and the best of several runs is reported
+		// because the differences are only a few percent
+		final String[] names = { "byte arrays (before)", "int arrays without precalc", "HashEngine.getHash", "HashEngine.getHash7" };
+		final int runs = 5;
+		long[] best = new long[names.length];
+		long[] alloc = new long[names.length];
+		int x = 0;
+		for (int pass = 0; pass <= runs; pass++) {	// first pass is warm-up
+			for (int j = 0; j < names.length; j++) {
+				long a = allocatedBytes();
+				long t = System.nanoTime();
+				if (j == 0) {
+					for (int n = 0; n < hashCount; n++) {
+						x ^= hashByteArrays(midstateBuf, dataBuf, hashBuf, n);
+					}
+				} else if (j == 1) {
+					for (int n = 0; n < hashCount; n++) {
+						x ^= hashTransform(midstate, data, w, h, n);
+					}
+				} else if (j == 2) {
+					for (int n = 0; n < hashCount; n++) {
+						x ^= engine.getHash(n);
+					}
+				} else {
+					for (int n = 0; n < hashCount; n++) {
+						x ^= engine.getHash7(n);
+					}
+				}
+				t = System.nanoTime() - t;
+				a = a < 0 ? -1 : allocatedBytes() - a;
+				if (pass == 1 || (pass > 1 && t < best[j])) {
+					best[j] = t;
+					alloc[j] = a;
+				}
+			}
+		}
+		if (x == 42) {
+			System.out.print("");		// prevents dead code elimination
+		}
+		for (int j = 0; j < names.length; j++) {
+			printResult(names[j], hashCount, best[j], alloc[j]);
+		}
+		BTCMiner.printMsg2("  relative to int arrays without precalc: getHash " + String.format("%+.1f", (best[1] * 100.0 / best[2]) - 100) + "%,  getHash7 " + String.format("%+.1f", (best[1] * 100.0 / best[3]) - 100) + "%  (best of " + runs + " runs)");
+	}
+
+	// ******* Lanes
+	// *************************************************************************
+	// Multi-lane variant of BTCMiner.verifyHashes, only used by hashEngineLanes.
+	// The state of several nonces is stored lane by lane (word i of lane l is at
+	// i * lanes + l) so that the inner loops over the lanes can be vectorized by
+	// the JIT compiler (jdk.incubator.vector is not used because it requires
+	// --add-modules at compile and run time).
+	private static class Lanes {
+		private HashEngine engine;
+		private int lanes;
+
+		private int[] w;
+		private int[][] state = new int[8][];
+		private int[] n;
+
+		Lanes(HashEngine engine, int lanes) {
+			this.engine = engine;
+			this.lanes = lanes;
+			w = new int[64 * lanes];
+			for (int i = 0; i < 8; i++) {
+				state[i] = new int[lanes];
+			}
+			n = new int[lanes];
+		}
+
+		// same as BTCMiner.verifyHashes
+		void check(int[] nonces, int[] expected, int count, long[] mask) {
+			for (int i = 0; i < (count + 63) >> 6; i++) {
+				mask[i] = 0;
+			}
+			for (int i0 = 0; i0 < count; i0 += lanes) {
+				for (int l = 0; l < lanes; l++) {
+					n[l] = nonces[Math.min(i0 + l, count - 1)];	// the last group is filled up with the last nonce
+				}
+				hash7();
+				for (int l = 0; l < lanes && i0 + l < count; l++) {
+					if (state[4][l] + HashEngine.initState[7] == expected[i0 + l]) {
+						mask[(i0 + l) >> 6] |= 1L << ((i0 + l) & 63);
+					}
+				}
+			}
+		}
+
+		// same as HashEngine.getHash7 for all lanes, H7 - initState[7] is stored in state[4]
+		private void hash7() {
+			final int L = lanes;
+
+			// second block of the header
+			for (int i = 0; i < 16; i++) {
+				int d = engine.data[i];
+				for (int l = 0; l < L; l++) {
+					w[i * L + l] = d;
+				}
+			}
+			for (int l = 0; l < L; l++) {
+				int x = n[l];
+				w[3 * L + l] = x;
+				w[16 * L + l] = engine.w16;
+				w[17 * L + l] = engine.w17;
+				w[18 * L + l] = engine.w18 + HashEngine.s0(x);
+				w[19 * L + l] = engine.w19 + x;
+			}
+			expand(20, 64);
+			for (int i = 0; i < 8; i++) {
+				int s = engine.preState[i];
+				int[] st = state[i];
+				for (int l = 0; l < L; l++) {
+					st[l] = s;
+				}
+			}
+			rounds(3, 64);
+
+			// second hash
+			for (int i = 0; i < 8; i++) {
+				int s = engine.midstate[i];
+				int[] st = state[i];
+				for (int l = 0; l < L; l++) {
+					w[i * L + l] = st[l] + s;
+				}
+			}
+			for (int i = 8; i < 16; i++) {
+				int d = i == 8 ? 0x80000000 : (i == 15 ? 0x100 : 0);
+				for (int l = 0; l < L; l++) {
+					w[i * L + l] = d;
+				}
+			}
+			expand(16, 61);
+			for (int i = 0; i < 8; i++) {
+				int s = HashEngine.initState[i];
+				int[] st = state[i];
+				for (int l = 0; l < L; l++) {
+					st[l] = s;
+				}
+			}
+			rounds(0, 61);
+		}
+
+		private void expand(int from, int to) {
+			final int L = lanes;
+			for (int i = from; i < to; i++) {
+				for (int l = 0; l < L; l++) {
+					int T = w[(i - 2) * L + l];
+					int T2 = w[(i - 15) * L + l];
+					w[i * L + l] = (((T >>> 17) | (T << 15)) ^ ((T >>> 19) | (T << 13)) ^ (T >>> 10)) + w[(i - 7) * L + l] + (((T2 >>> 7) | (T2 << 25)) ^ ((T2 >>> 18) | (T2 << 14)) ^ (T2 >>> 3)) + w[(i - 16) * L + l];
+				}
+			}
+		}
 
-	public RPC(String name, String url, String host, String usr, String pwd, boolean mine) {
-		this.name = name;
-		this.url = url;
-		this.host = host;
-		this.usr = usr;
-		this.pwd = pwd;
-		this.mine = mine;
+		// rounds from..to-1 without feed-forward, the array references are rotated
+		// instead of shifting the words through the lane arrays
+		private void rounds(int from, int to) {
+			final int L = lanes;
+			final int[] k = HashEngine.k;
+			int[] A = state[0];
+			int[] B = state[1];
+			int[] C = state[2];
+			int[] D = state[3];
+			int[] E = state[4];
+			int[] F = state[5];
+			int[] G = state[6];
+			int[] H = state[7];
+
+			for (int i = from; i < to; i++) {
+				int ki = k[i];
+				int wi = i * L;
+				for (int l = 0; l < L; l++) {
+					int a = A[l];
+					int e = E[l];
+					int T = H[l] + (((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7))) + ((e & F[l]) ^ (~e & G[l])) + ki + w[wi + l];
+					int T2 = (((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10))) + ((a & B[l]) ^ (a & C[l]) ^ (B[l] & C[l]));
+					H[l] = D[l] + T;
+					D[l] = T + T2;
+				}
+				int[] t = H;
+				H = G;
+				G = F;
+				F = E;
+				E = t;
+				t = D;
+				D = C;
+				C = B;
+				B = A;
+				A = t;
+			}
 
-		sharesGetwork = 0;
-		sharesAccepted = 0;
-		sharesRejected = 0;
-		poolDisabled = 0;
-		difficulty = 1.0;
-		disableTime = 0;
-		ioDisableMonitorTime = 20;
-		ioDisableCount = 0;
+			state[0] = A;
+			state[1] = B;
+			state[2] = C;
+			state[3] = D;
+			state[4] = E;
+			state[5] = F;
+			state[6] = G;
+			state[7] = H;
+		}
 	}
 
-	public synchronized void disable() {
-		long t = new Date().getTime();
+	// ******* hashEngineLanes
+	// *************************************************************************
+	// Batched H7 verification of BTCMiner.verifyHashes (scalar getHash7) versus the
+	// multi-lane layout with 4, 8 and 16 lanes. Batches of 80 candidates, e.g. 16
+	// cores x 5 offsets of checkNonces. The miner uses the scalar path because the
+	// lane layout was not faster.
+	public static void hashEngineLanes() {
+		final int batch = 80;
+		byte[] dataBuf = BTCMiner.hexStrToData(testData);
+		byte[] midstateBuf = new byte[32];
+		HashEngine engine = new HashEngine();
+		engine.midstate(dataBuf, midstateBuf);
+		engine.setWork(dataBuf, midstateBuf);
+
+		int[] nonces = new int[batch];
+		int[] expected = new int[batch];
+		long[] mask = new long[(batch + 63) / 64];
+		final int[] laneWidths = { 1, 4, 8, 16 };
+		Lanes[] lanes = new Lanes[laneWidths.length];
+		for (int j = 1; j < laneWidths.length; j++) {
+			lanes[j] = new Lanes(engine, laneWidths[j]);
+		}
+
+		int errors = 0;
+		for (int n0 = 0; n0 < 10000; n0 += batch) {
+			for (int i = 0; i < batch; i++) {
+				nonces[i] = n0 + i;
+				expected[i] = (i & 1) == 0 ? 0 : engine.getHash7(n0 + i);
+			}
+			for (int j = 1; j < laneWidths.length; j++) {
+				lanes[j].check(nonces, expected, batch, mask);
+				for (int i = 0; i < batch; i++) {
+					if (BTCMiner.getBit(mask, i) != (engine.getHash7(nonces[i]) == expected[i])) {
+						errors++;
+					}
+				}
+			}
+		}
+		if (errors > 0) {
+			BTCMiner.printMsg2("Error: multi-lane and scalar verification disagree in " + errors + " hashes");
+		}
 
-		if (t > disableTime) {
-			if (t < (disableTime + ioDisableMonitorTime * 1000)) {
-				ioDisableCount += 1;
-			} else if (t > (disableTime + 10 * ioDisableMonitorTime * 1000)) {
-				ioDisableCount = 0;
+		final int runs = 5;
+		final int count = hashCount / batch * batch;
+		long[] best = new long[laneWidths.length];
+		long[] alloc = new long[laneWidths.length];
+		int x = 0;
+		for (int pass = 0; pass <= runs; pass++) {	// first pass is warm-up
+			for (int j = 0; j < laneWidths.length; j++) {
+				long a = allocatedBytes();
+				long t = System.nanoTime();
+				for (int n0 = 0; n0 < count; n0 += batch) {
+					for (int i = 0; i < batch; i++) {
+						nonces[i] = n0 + i;
+						expected[i] = 0;
+					}
+					if (j == 0) {
+						for (int i = 0; i < (batch + 63) >> 6; i++) {
+							mask[i] = 0;
+						}
+						for (int i = 0; i < batch; i++) {
+							if (engine.getHash7(nonces[i]) == expected[i]) {
+								mask[i >> 6] |= 1L << (i & 63);
+							}
+						}
+					} else {
+						lanes[j].check(nonces, expected, batch, mask);
+					}
+					x ^= (int) mask[0];
+				}
+				t = System.nanoTime() - t;
+				a = a < 0 ? -1 : allocatedBytes() - a;
+				if (pass == 1 || (pass > 1 && t < best[j])) {
+					best[j] = t;
+					alloc[j] = a;
+				}
+			}
+		}
+		if (x == 42) {
+			System.out.print("");		// prevents dead code elimination
+		}
+		StringBuffer sb = new StringBuffer("  relative to scalar:");
+		for (int j = 0; j < laneWidths.length; j++) {
+			printResult(laneWidths[j] == 1 ? "scalar getHash7 (used)" : laneWidths[j] + " lanes", count, best[j], alloc[j]);
+			if (j > 0) {
+				sb.append((j > 1 ? "," : "") + "  " + laneWidths[j] + " lanes " + String.format("%+.1f", (best[0] * 100.0 / best[j]) - 100) + "%");
 			}
+		}
+		BTCMiner.printMsg2(sb + "  (best of " + runs + " runs)");
+	}
 
-			int i = ioDisableCount;
-			if (i > (ioDisableTimeEffort.length - 1)) {
-				i = ioDisableTimeEffort.length - 1;
+	// ******* jsonRpc
+	// *************************************************************************
+	// getwork responses (bitcoind and pool style) and a submit response
+	public static final String[] getworkResponses = {
+		"{\"result\":{\"midstate\":\"28b81bd40a0e1b75d18362cb9a2faa61669d42913f26194f776c349e97559190\",\"data\":\"" + testData + "\",\"hash1\":\"00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000\",\"target\":\"0000000000000000000000000000000000000000000000000000ffff00000000\"},\"error\":null,\"id\":1}\n",
+		"{\"id\": 1, \"error\": null, \"result\": {\"hash1\": \"00000000000000000000000000000000000000000000000000000000000000000000008000000000000000000000000000000000000000000000000000010000\", \"data\": \"" + testData + "\", \"target\": \"ffffffffffffffffffffffffffffffffffffffffffffffffffffffff00000000\", \"submitold\": true, \"midstate\": \"28b81bd40a0e1b75d18362cb9a2faa61669d42913f26194f776c349e97559190\"}}"
+	};
+	public static final String submitResponse = "{\"result\":true,\"error\":null,\"id\":2}\n";
+
+	public static void jsonRpc() throws ParserException {
+		final int count = hashCount / 10;
+		byte[][] payloads = new byte[getworkResponses.length + 1][];
+		for (int i = 0; i < getworkResponses.length; i++) {
+			payloads[i] = getworkResponses[i].getBytes();
+		}
+		payloads[getworkResponses.length] = submitResponse.getBytes();
+		byte[] dataBuf = new byte[128];
+		byte[] targetBuf = new byte[32];
+		JsonRpcResponse response = new JsonRpcResponse();
+
+		for (int i = 0; i < getworkResponses.length; i++) {
+			response.set(payloads[i], payloads[i].length);
+			response.parse();
+			response.hexToData(JsonRpcResponse.DATA, dataBuf);
+			if (!BTCMiner.dataToHexStr(dataBuf).equals(BTCMiner.jsonParse(getworkResponses[i], "data")) || !response.value(JsonRpcResponse.TARGET).equals(BTCMiner.jsonParse(getworkResponses[i], "target"))) {
+				BTCMiner.printMsg2("Error: JsonRpcResponse and jsonParse disagree on getwork response " + i);
 			}
+		}
 
-			BTCMiner.printMsg("Disabling URL " + host + " for " + (ioDisableTimeEffort[i] * ioDisableTime) + "s");
-			disableTime = t + ioDisableTimeEffort[i] * ioDisableTime * 1000;
-			poolDisabled += 1;
+		for (int pass = 0; pass < 2; pass++) {	// first pass is warm-up
+			int x = 0;
+			long a = allocatedBytes();
+			long t = System.nanoTime();
+			for (int n = 0; n < count; n++) {
+				byte[] p = payloads[n % payloads.length];
+				String s = new String(p, 0, p.length);
+				if (n % payloads.length < getworkResponses.length) {
+					BTCMiner.hexStrToData(BTCMiner.jsonParse(s, "data"), dataBuf);
+					BTCMiner.hexStrToData(BTCMiner.jsonParse(s, "target"), targetBuf);
+				} else {
+					x += BTCMiner.jsonParse(s, "error").length() + BTCMiner.jsonParse(s, "result").length();
+				}
+				x += dataBuf[n & 127] + targetBuf[n & 31];
+			}
+			t = System.nanoTime() - t;
+			a = a < 0 ? -1 : allocatedBytes() - a;
+			if (pass > 0) {
+				printResult("Strings + jsonParse (before)", count, t, a, "response", "responses");
+			}
+
+			a = allocatedBytes();
+			t = System.nanoTime();
+			for (int n = 0; n < count; n++) {
+				byte[] p = payloads[n % payloads.length];
+				response.set(p, p.length);
+				response.parse();
+				if (n % payloads.length < getworkResponses.length) {
+					response.hexToData(JsonRpcResponse.DATA, dataBuf);
+					response.hexToData(JsonRpcResponse.TARGET, targetBuf);
+				} else {
+					x += response.valueEquals(JsonRpcResponse.RESULT, "true") ? 1 : 0;
+				}
+				x += dataBuf[n & 127] + targetBuf[n & 31];
+			}
+			t = System.nanoTime() - t;
+			a = a < 0 ? -1 : allocatedBytes() - a;
+			if (pass > 0) {
+				printResult("JsonRpcResponse", count, t, a, "response", "responses");
+			}
+			if (x == 42) {
+				System.out.print("");		// prevents dead code elimination
+			}
 		}
 	}
 
-	public synchronized void enable() {
-		disableTime = 0;
-		ioDisableCount = 0;
-	}
+	// ******* jsonRpcRequest
+	// *************************************************************************
+	// submit requests incl. Authorization header
+	public static void jsonRpcRequest() {
+		final int count = hashCount / 10;
+		byte[] dataBuf = BTCMiner.hexStrToData(testData);
+		RPC rpc = new RPC("bench", "http://127.0.0.1:8332", "http://127.0.0.1:8332", "user", "password", true);
+		JsonRpcRequest request = new JsonRpcRequest();
+
+		request.encode(7, "getwork", dataBuf);
+		if (!request.toString().equals("{\"jsonrpc\":\"1.0\",\"id\":7,\"method\":\"getwork\",\"params\":[\"" + testData + "\"]}")) {
+			BTCMiner.printMsg2("Error: JsonRpcRequest differs from String based request: " + request);
+		}
+
+		for (int pass = 0; pass < 2; pass++) {	// first pass is warm-up
+			int x = 0;
+			long a = allocatedBytes();
+			long t = System.nanoTime();
+			for (int n = 0; n < count; n++) {
+				BTCMiner.intToData(n, dataBuf, 76);
+				String params = BTCMiner.dataToHexStr(dataBuf);
+				String r = "{\"jsonrpc\":\"1.0\",\"id\":" + n + ",\"method\":\"" + "getwork" + "\",\"params\":[" + (params.equals("") ? "" : ("\"" + params + "\"")) + "]}";
+				String auth = "Basic " + BTCMiner.encodeBase64(rpc.usr + ":" + rpc.pwd);
+				String len = "" + r.length();
+				x += r.getBytes().length + auth.length() + len.length();	// OutputStreamWriter encodes the request
+			}
+			t = System.nanoTime() - t;
+			a = a < 0 ? -1 : allocatedBytes() - a;
+			if (pass > 0) {
+				printResult("Strings (before)", count, t, a, "request", "requests");
+			}
 
-	public synchronized boolean disabled() {
-		return disableTime > new Date().getTime();
+			a = allocatedBytes();
+			t = System.nanoTime();
+			for (int n = 0; n < count; n++) {
+				BTCMiner.intToData(n, dataBuf, 76);
+				request.encode(n, "getwork", dataBuf);
+				x += request.length + rpc.authorization().length();
+			}
+			t = System.nanoTime() - t;
+			a = a < 0 ? -1 : allocatedBytes() - a;
+			if (pass > 0) {
+				printResult("JsonRpcRequest", count, t, a, "request", "requests");
+			}
+			if (x == 42) {
+				System.out.print("");		// prevents dead code elimination
+			}
+		}
 	}
 
-	public void resetStats() {
-		sharesGetwork = 0;
-		sharesAccepted = 0;
-		sharesRejected = 0;
-		poolDisabled = 0;
+	// ******* run
+	// *************************************************************************
+	public static void run() throws ParserException {
+		BTCMiner.printMsg2("Nonce verification (" + hashCount + " double SHA-256 hashes per test):");
+		hashEngine();
+		BTCMiner.printMsg2("Batched H7 verification (" + hashCount / 80 * 80 + " nonces per test):");
+		hashEngineLanes();
+		BTCMiner.printMsg2("JSON-RPC response parsing (" + hashCount / 10 + " responses per test):");
+		jsonRpc();
+		BTCMiner.printMsg2("JSON-RPC submit request encoding (" + hashCount / 10 + " requests per test):");
+		jsonRpcRequest();
 	}
 }
 
@@ -1243,7 +7183,6 @@ class BTCMiner implements MsgObj {
 	static String longPollURL = null;
 	static String longPollUser = "";
 	static String longPollPassw = "";
-	static long disableLPTime = 0;
 
 	static int bcid = -1;
 
@@ -1262,6 +7201,7 @@ class BTCMiner implements MsgObj {
 	static double connectionEffort = 2.0;
 
 	static NewBlockMonitor newBlockMonitor = null;
+	static ShareSubmitter shareSubmitter = null;
 
 	static boolean forceEP0Config = false;
 
@@ -1275,6 +7215,12 @@ class BTCMiner implements MsgObj {
 
 	static String filterSN = null;
 
+	static int cpuThreads = -1;	// < 0: CPU backend disabled
+
+	static int simBoards = 0;
+	static int simFpgas = 1;
+	static boolean noUsb = false;
+
 	public static long upTime;
 
 	public static final String[] dummyFirmwareNames = { "USB-FPGA Module 1.15d (default)", "USB-FPGA Module 1.15x (default)", "USB-FPGA Module 1.15y (default)" };
@@ -1560,7 +7506,7 @@ class BTCMiner implements MsgObj {
 			throw new NumberFormatException("Invalid length of out");
 		}
 
-		final int[] k = { 0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3, 0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+		final int[] k = HashEngine.k;
 
 		int A = dataToInt(state, state_offs + 0);
 		int B = dataToInt(state, state_offs + 4);
@@ -1637,6 +7583,7 @@ class BTCMiner implements MsgObj {
 
 	// ******* non-static methods
 	// *************************************************************************
+	private MinerDevice device = null;
 	private Ztex1v1 ztex = null;
 	private int fpgaNum = 0;
 
@@ -1650,7 +7597,6 @@ class BTCMiner implements MsgObj {
 
 	public int id;
 
-	private String lastRejectReason = "";
 
 	public int rpcNum = 0;
 	private int prevRpcNum = 0;
@@ -1668,6 +7614,13 @@ class BTCMiner implements MsgObj {
 	private final String targetDiff1 = "0000000000000000000000000000000000000000000000000000ffff00000000";
 	private String targetString;
 	private byte[] targetBuf;
+	private Work work = null;		// current work, null if set by initWork
+	private RecentWork[] recentWork = new RecentWork[4];	// ring of replaced work, see retireWork
+	private int recentWorkPos = 0;
+	private int rolls = 0;			// ntime increments of the current work
+	public int[] workCount = new int[maxRpcCount];	// work units per pool obtained by getWork
+	public int[] rollCount = new int[maxRpcCount];	// work units per pool derived by rollWork
+	private boolean checkTarget = false;	// targetCheck or required by the work source
 	private double difficulty = 1.0;
 
 	private int newCount = 0;
@@ -1677,6 +7630,10 @@ class BTCMiner implements MsgObj {
 
 	MessageDigest digest = null;
 
+	private HashEngine hashEngine = new HashEngine();
+	private int[] checkNonces, checkHashes, checkIndex;
+	private long[] checkMask, validMask;
+
 	public int[] lastGoldenNonces = { 0, 0, 0, 0, 0, 0, 0, 0 };
 	public int[] goldenNonce, nonce, hash7;
 	public int submittedCount = 0;
@@ -1684,6 +7641,7 @@ class BTCMiner implements MsgObj {
 	public long startTime, startTimeAdjust;
 
 	public int overflowCount = 0;
+	public int overflowTotal = 0;
 	public long usbTime = 0;
 	public double getTime = 0.0;
 	public double getTimeW = 1e-6;
@@ -1694,6 +7652,23 @@ class BTCMiner implements MsgObj {
 	public long infoInterval = 15000;
 
 	public long lastGetWorkTime = 0;
+	public long nextPoll = 0;		// deadlines, see PollLoop
+	public long nextUpdate = 0;
+	public long lastPoll = 0;
+	public long maxPollGap = 0;		// maximum time between two polls
+	public long busyTime = 0;		// time spent polling in ms, see BTCMinerCluster.rebalance
+	public long busyMark = 0;		// busyTime and overflowTotal at the last rebalance
+	public int overflowMark = 0;
+	public double load = 0.0;
+	public long exhaustion = Long.MAX_VALUE;	// exhaustion time at the last poll, see exhaustionTime
+	private double nonceRate = 0.0;		// measured nonce counter speed in 1/ms
+	private long nonceRateTime = 0;
+	private long exhaustedTime = 0;		// estimated time the nonce counters wrapped, 0: not exhausted
+	public long replacedCount = 0;		// work units replaced while still valid
+	public long wastedNonces = 0;		// unsearched nonces of these work units
+	public long idleTime = 0;		// time in ms between exhaustion and new work
+	public long workWaitTime = 0;		// time of the first unsuccessful getWork, 0: not waiting
+	private int hedgeNum = -1;		// pool the work demand was also issued to by hedging, -1: none
 	public long ignoreErrorTime = 0;
 	public long lastInfoTime = 0;
 
@@ -1710,42 +7685,14 @@ class BTCMiner implements MsgObj {
 
 	// ******* Constructor
 	// *************************************************************************
-	public BTCMiner(Ztex1v1 pZtex, String firmwareFile, boolean v) throws UsbException, FirmwareException, NoSuchAlgorithmException {
+	public BTCMiner(MinerDevice pDevice, boolean v) throws UsbException, FirmwareException, NoSuchAlgorithmException {
 
 		digest = MessageDigest.getInstance("SHA-256");
 		verbose = v;
 
-		ztex = pZtex;
-		ztex.tempSensorUpdateInterval = 1000;
-		ztex.enableExtraFpgaConfigurationChecks = true;
-
-		String snString = null;
-		if ((ztex.dev().productId(2) == 0) && (firmwareFile == null)) {
-			for (int j = 0; j < defaultFirmwarePID1.length; j++) {
-				if (defaultFirmwarePID1[j] == ztex.dev().productId(1) && ztex.dev().productString().equals(dummyFirmwareNames[j])) {
-					firmwareFile = firmwareFiles[j];
-				}
-			}
-			if (firmwareFile != null) {
-				msg("Using firmware `" + firmwareFile + "'" + " for `" + ztex.dev().productString() +"'");
-				snString = ztex.dev().snString();
-			}
-		}
-
-		if (firmwareFile != null) {
-			try {
-				ZtexIhxFile1 ihxFile = new ZtexIhxFile1(firmwareFile);
-				if (snString != null) {
-					ihxFile.setSnString(snString);
-				}
-				ztex.uploadFirmware(ihxFile, false);
-			} catch (Exception e) {
-				throw new FirmwareException(e.getLocalizedMessage());
-			}
-		}
-
-		if (!ztex.valid() || ztex.dev().productId(0) != 10 || ztex.dev().productId(2) != 1) {
-			throw new FirmwareException("Wrong or no firmware");
+		device = pDevice;
+		if (device instanceof ZtexMinerDevice) {
+			ztex = ((ZtexMinerDevice) device).ztex();
 		}
 
 		getDescriptor();
@@ -1755,40 +7702,38 @@ class BTCMiner implements MsgObj {
 		hash7 = new int[numNonces];
 		targetString = targetDiff1;
 		targetBuf = hexStrToData(targetDiff1);
+		hashEngine.setTarget(targetBuf);
 
-		name = bitFileName + "-" + ztex.dev().snString();
-		//xxx name = ztex.dev().snString();
+		name = bitFileName + "-" + device.snString();
+		//xxx name = device.snString();
 		msg("New device: " + descriptorInfo());
-		try {
-			byte buf[] = new byte[6];
-			ztex.macRead(buf);
-			msg("MAC address: " + dataToHexStr(buf));
-		} catch (Exception e) {
-			msg("No mac address support");
+		if (ztex != null) {
+			try {
+				byte buf[] = new byte[6];
+				ztex.macRead(buf);
+				msg("MAC address: " + dataToHexStr(buf));
+			} catch (Exception e) {
+				msg("No mac address support");
+			}
 		}
 
 		// long d = Math.round( 2500.0 / (freqM1 * (freqMaxM+1) * numNonces) * 1000.0 );
 		// if ( d < maxPollInterval ) maxPollInterval=d;
 
 		numberOfFpgas = 0;
-		try {
-			fpgaMap = new int[ztex.numberOfFpgas()];
-			for (int i = 0; i < ztex.numberOfFpgas(); i++) {
+		fpgaMap = new int[device.numberOfFpgas()];
+		for (int i = 0; i < device.numberOfFpgas(); i++) {
+			try {
+				msg("FPGA " + (i + 1) + ": configuration time: " + device.configureFpga(i, "fpga/" + bitFileName + ".bit") + " ms");
 				try {
-					ztex.selectFpga(i);
-					msg("FPGA " + (i + 1) + ": configuration time: " + (forceEP0Config ? ztex.configureFpgaLS("fpga/" + bitFileName + ".bit", true, 2) : ztex.configureFpga("fpga/" + bitFileName + ".bit", true, 2)) + " ms");
-					try {
-						Thread.sleep(100);
-					} catch (InterruptedException e) {
-					}
-					fpgaMap[numberOfFpgas] = i;
-					numberOfFpgas += 1;
-				} catch (Exception e) {
-					msg("Error configuring FPGA " + i + ": " + e.getLocalizedMessage());
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
 				}
+				fpgaMap[numberOfFpgas] = i;
+				numberOfFpgas += 1;
+			} catch (Exception e) {
+				msg("Error configuring FPGA " + i + ": " + e.getLocalizedMessage());
 			}
-		} catch (InvalidFirmwareException e) {
-			throw new FirmwareException(e.getLocalizedMessage());
 		}
 
 		if (numberOfFpgas < 1) {
@@ -1818,21 +7763,39 @@ class BTCMiner implements MsgObj {
 		if (newBlockMonitor == null) {
 			newBlockMonitor = new NewBlockMonitor();
 		}
+		synchronized (BTCMiner.class) {
+			if (shareSubmitter == null) {
+				shareSubmitter = new ShareSubmitter();
+				int i = 0;
+				while (i < rpcCount && !rpc[i].mine) {
+					i++;
+				}
+				if (i < rpcCount) {
+					rpc[i].workSource.prefetch();
+				}
+			}
+		}
+	}
+
+	public BTCMiner(Ztex1v1 pZtex, String firmwareFile, boolean v) throws UsbException, FirmwareException, NoSuchAlgorithmException {
+		this (new ZtexMinerDevice (pZtex, firmwareFile), v);
 	}
 
 	public BTCMiner(ZtexDevice1 pDev, String firmwareFile, boolean v) throws UsbException, FirmwareException, NoSuchAlgorithmException {
 		this (new Ztex1v1 (pDev), firmwareFile, v);
 	}
 
-	public BTCMiner(Ztex1v1 pZtex, int pFpgaNum, boolean v) throws UsbException, FirmwareException, NoSuchAlgorithmException {
+	public BTCMiner(MinerDevice pDevice, int pFpgaNum, boolean v) throws UsbException, FirmwareException, NoSuchAlgorithmException {
 		digest = MessageDigest.getInstance("SHA-256");
 		verbose = v;
 
-		ztex = pZtex;
+		device = pDevice;
 		fpgaNum = pFpgaNum;
-
-		if (!ztex.valid() || ztex.dev().productId(0) != 10 || ztex.dev().productId(2) != 1 || (ztex.dev().productId(3) < 1 && ztex.dev().productId(3) > 2)) {
-			throw new FirmwareException("Wrong or no firmware");
+		if (device instanceof ZtexMinerDevice) {
+			ztex = ((ZtexMinerDevice) device).ztex();
+			if (!ztex.valid() || ztex.dev().productId(0) != 10 || ztex.dev().productId(2) != 1 || (ztex.dev().productId(3) < 1 && ztex.dev().productId(3) > 2)) {
+				throw new FirmwareException("Wrong or no firmware");
+			}
 		}
 
 		getDescriptor();
@@ -1842,9 +7805,10 @@ class BTCMiner implements MsgObj {
 		hash7 = new int[numNonces];
 		targetString = targetDiff1;
 		targetBuf = hexStrToData(targetDiff1);
+		hashEngine.setTarget(targetBuf);
 
-		name = bitFileName + "-" + ztex.dev().snString() + "-" + (fpgaNum + 1);
-		//xxx name = ztex.dev().snString() + "-" + (fpgaNum + 1);
+		name = bitFileName + "-" + device.snString() + "-" + (fpgaNum + 1);
+		//xxx name = device.snString() + "-" + (fpgaNum + 1);
 		id = getId();
 		try {
 			msg("New FPGA");
@@ -1868,22 +7832,29 @@ class BTCMiner implements MsgObj {
 		startTimeAdjust = startTime;
 	}
 
+	// ******* device
+	// *************************************************************************
+	public MinerDevice device() {
+		return device;
+	}
+
 	// ******* ztex
 	// *************************************************************************
+	// null if device is not a ZTEX board
 	public Ztex1v1 ztex() {
 		return ztex;
 	}
 
-	// ******* numberofFpgas
+	// ******* busName
 	// *************************************************************************
-	public int numberOfFpgas() {
-		return numberOfFpgas;
+	public String busName() {
+		return device.busName();
 	}
 
-	// ******* selectFpga
+	// ******* numberofFpgas
 	// *************************************************************************
-	public void selectFpga() throws UsbException, InvalidFirmwareException, IndexOutOfBoundsException {
-		ztex.selectFpga(fpgaNum);
+	public int numberOfFpgas() {
+		return numberOfFpgas;
 	}
 
 	// ******* fpgaNum
@@ -1939,55 +7910,66 @@ class BTCMiner implements MsgObj {
 
 	// ******* rejectReason
 	// *************************************************************************
+	// reject reasons of submitted shares are reported by ShareSubmitter
 	public void rejectReason(String s) {
-		lastRejectReason = s;
 	}
 
 	// ******* httpGet
 	// *************************************************************************
 	public static String httpGet(MsgObj msgObj, String url, String user, String passw, String request) throws MalformedURLException, IOException {
+		JsonRpcRequest req = new JsonRpcRequest();
+		JsonRpcResponse response = new JsonRpcResponse();
+		req.set(request);
+		httpGet(msgObj, null, url, user, passw, "Basic " + encodeBase64(user + ":" + passw), req, response);
+		return response.toString();
+	}
+
+	// reads the response bytes into response, does not parse them
+	// connections: pool of persistent connections, null or https URL: a new HttpURLConnection is used
+	public static void httpGet(MsgObj msgObj, HttpConnectionPool connections, String url, String user, String passw, String authorization, JsonRpcRequest request, JsonRpcResponse response) throws MalformedURLException, IOException {
+		if (connections != null && url.regionMatches(true, 0, "http:", 0, 5)) {
+			HttpConnection con = connections.get(url, Math.round(2000.0 * BTCMiner.connectionEffort));
+			boolean ok = false;
+			try {
+				con.post(authorization, request, response, (int) Math.round(2000.0 * BTCMiner.connectionEffort), (int) Math.round(2000.0 * BTCMiner.connectionEffort));
+				ok = true;
+			} finally {
+				connections.release(con, ok);
+			}
+			responseHeaders(msgObj, url, user, passw, con.rejectReason, con.longPolling);
+			response.rollNTime = con.rollNTime;
+			return;
+		}
+
 		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
 		con.setRequestMethod("POST");
 		con.setConnectTimeout((int) Math.round(2000.0 * BTCMiner.connectionEffort));
-		con.setReadTimeout(url == longPollURL ? 1000000 : (int) Math.round(2000.0 * BTCMiner.connectionEffort));
-		con.setRequestProperty("Authorization", "Basic " + encodeBase64(user + ":" + passw));
+		con.setReadTimeout((int) Math.round(2000.0 * BTCMiner.connectionEffort));
+		con.setRequestProperty("Authorization", authorization);
 		con.setRequestProperty("Accept-Encoding", "gzip,deflate");
 		con.setRequestProperty("Content-Type", "application/json");
 		con.setRequestProperty("Cache-Control", "no-cache");
 		con.setRequestProperty("User-Agent", "ztexBTCMiner");
-		con.setRequestProperty("X-Mining-Extensions", "longpoll midstate submitold");
-		con.setRequestProperty("Content-Length", "" + request.length());
+		con.setRequestProperty("X-Mining-Extensions", "longpoll midstate rollntime submitold");
+		con.setFixedLengthStreamingMode(request.length);	// sets Content-Length (in bytes)
 		con.setUseCaches(false);
 		con.setDoInput(true);
 		con.setDoOutput(true);
 
 		//xxxmsgObj.msg("Request: " + request);
 		// Send request
-		OutputStreamWriter wr = new OutputStreamWriter(con.getOutputStream());
-		wr.write(request);
-		wr.flush();
-		wr.close();
-
-		// read response header
-		String str = con.getHeaderField("X-Reject-Reason");
-		if (str != null && !str.equals("")) {
-			msgObj.rejectReason(str);
+		try {
+			OutputStream os = con.getOutputStream();
+			os.write(request.buf, 0, request.length);
+			os.flush();
+			os.close();
+		} catch (IOException e) {
+			throw new UnsentException(e);
 		}
 
 		// read response header
-		str = con.getHeaderField("X-Long-Polling");
-		if (str != null && !str.equals("") && longPollURL == null) {
-			synchronized (BTCMiner.newBlockMonitor) {
-				long t = new Date().getTime();
-
-				if (longPollURL == null && t > disableLPTime) {
-					longPollURL = (str.length() > 7 && str.substring(0, 4).equalsIgnoreCase("http")) ? str : url + str;
-					msgObj.msg("Using LongPolling URL " + longPollURL);
-					longPollUser = user;
-					longPollPassw = passw;
-				}
-			}
-		}
+		responseHeaders(msgObj, url, user, passw, con.getHeaderField("X-Reject-Reason"), con.getHeaderField("X-Long-Polling"));
+		response.rollNTime = con.getHeaderField("X-Roll-NTime");
 
 		// read response
 		InputStream is;
@@ -2001,17 +7983,30 @@ class BTCMiner implements MsgObj {
 			throw new IOException("httpGet: Unknown encoding: " + con.getContentEncoding());
 		}
 
-		byte[] buf = new byte[1024];
-		StringBuffer response = new StringBuffer();
-		int len;
-		while ((len = is.read(buf)) > 0) {
-			response.append(new String(buf, 0, len));
-		}
+		response.read(is);
 		is.close();
 		con.disconnect();
 
 		//xxxmsgObj.msg("Response: " + response.toString());
-		return response.toString();
+	}
+
+	// ******* responseHeaders
+	// *************************************************************************
+	// evaluates the X-Reject-Reason and X-Long-Polling response headers
+	private static void responseHeaders(MsgObj msgObj, String url, String user, String passw, String rejectReason, String longPolling) {
+		if (rejectReason != null && !rejectReason.equals("")) {
+			msgObj.rejectReason(rejectReason);
+		}
+
+		if (longPolling != null && !longPolling.equals("")) {
+			String lp = (longPolling.length() > 7 && longPolling.substring(0, 4).equalsIgnoreCase("http")) ? longPolling : url + longPolling;
+			for (int i = 0; i < rpcCount; i++) {
+				if (rpc[i].longPollURL == null && rpc[i].host.equals(url) && rpc[i].usr.equals(user)) {
+					rpc[i].longPollURL = lp;
+					msgObj.msg("Using LongPolling URL " + lp);
+				}
+			}
+		}
 	}
 
 	// ******* bitcoinRequest
@@ -2021,12 +8016,76 @@ class BTCMiner implements MsgObj {
 		return httpGet(msgObj, url, user, passw, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\"" + request + "\",\"params\":[" + (params.equals("") ? "" : ("\"" + params + "\"")) + "]}");
 	}
 
-	public String bitcoinRequest(String request, String params) throws MalformedURLException, IOException {
+	// encodes the request into req, reads and parses the response into response; params == null: no parameters
+	public static void bitcoinRequest(MsgObj msgObj, HttpConnectionPool connections, String url, String user, String passw, String authorization, String request, byte[] params, JsonRpcRequest req, JsonRpcResponse response) throws MalformedURLException, IOException, ParserException {
 		bcid += 1;
-		RPC rpc = BTCMiner.rpc[rpcNum];
-		String s = httpGet(this, rpc.host, rpc.usr, rpc.pwd, "{\"jsonrpc\":\"1.0\",\"id\":" + bcid + ",\"method\":\"" + request + "\",\"params\":[" + (params.equals("") ? "" : ("\"" + params + "\"")) + "]}");
-		//rpc.enable(false);
-		return s;
+		req.encode(bcid, request, params);
+		httpGet(msgObj, connections, url, user, passw, authorization, req, response);
+		response.parse();
+	}
+
+	// ******* bitcoinBatchRequest
+	// *************************************************************************
+	// Sends n calls of request in one JSON-RPC batch request, params == null or params[i] == null: no parameters.
+	// The responses are stored in parts, in the order of the calls if all calls were answered. The number
+	// of responses is returned.
+	// Returns -1 and sets rpc.batch to -1 if the server does not support batch requests, single requests
+	// have to be used in that case.
+	public static int bitcoinBatchRequest(MsgObj msgObj, RPC rpc, String request, byte[][] params, int n, JsonRpcRequest req, JsonRpcResponse response, JsonRpcResponse[] parts) throws MalformedURLException, IOException, ParserException {
+		bcid += n;
+		int id = bcid - n + 1;
+		req.encode(id, request, params, n);
+		int k;
+		try {
+			httpGet(msgObj, rpc.connections, rpc.host, rpc.usr, rpc.pwd, rpc.authorization(), req, response);
+			k = response.split(parts);
+			if (k < 0) {
+				throw new ParserException("No batch response");
+			}
+		} catch (IOException e) {
+			String m = e.getLocalizedMessage();
+			if (rpc.batch > 0 || m == null || !m.startsWith("Server returned HTTP response code")) {
+				throw e;	// I/O error
+			}
+			return batchRejected(msgObj, rpc, m);
+		} catch (ParserException e) {
+			if (rpc.batch > 0) {
+				throw e;
+			}
+			return batchRejected(msgObj, rpc, e.getLocalizedMessage());
+		}
+		if (rpc.batch == 0) {
+			rpc.batch = 1;
+			msgObj.msg("Using batch requests");
+		}
+		synchronized (rpc) {
+			rpc.batchRequests += 1;
+			rpc.batchCalls += n;
+		}
+
+		// restore the order of the calls
+		for (int i = 0; i < k && k == n; i++) {
+			int j;
+			while ((j = parts[i].intValue(JsonRpcResponse.ID, id - 1) - id) != i) {
+				if (j < 0 || j >= k || parts[j].intValue(JsonRpcResponse.ID, id - 1) - id == j) {
+					throw new ParserException("Unexpected id in batch response");
+				}
+				JsonRpcResponse r = parts[i];
+				parts[i] = parts[j];
+				parts[j] = r;
+			}
+		}
+		return k;
+	}
+
+	private static int batchRejected(MsgObj msgObj, RPC rpc, String reason) {
+		synchronized (rpc) {
+			if (rpc.batch == 0) {
+				msgObj.msg("Batch requests not supported (" + reason + "), using single requests");
+			}
+			rpc.batch = -1;
+		}
+		return -1;
 	}
 
 	// ******* getWork
@@ -2044,37 +8103,79 @@ class BTCMiner implements MsgObj {
 		}
 		rpcNum = i;
 
-		String response = bitcoinRequest("getwork", "");
-		dmsg("getWork returned: " + response);
 		RPC rpc = BTCMiner.rpc[rpcNum];
-		rpc.sharesGetwork += 1;
+		Work w;
+		if (WorkSource.depth > 0) {
+			w = rpc.workSource.take(this);
+			if (w == null && WorkSource.hedge > 0) {
+				// hedging: if the pool is late, the demand is also issued to the next enabled pool (hedge
+				// registers the miner as waiting, without starting prefetching there) and the first work
+				// wins. Late work remains queued.
+				if (workWaitTime == 0) {
+					workWaitTime = t;
+				} else if (t - workWaitTime >= rpc.workSource.hedgeDelay()) {
+					if (hedgeNum < 0) {
+						int j = i + 1;
+						while (j < rpcCount && BTCMiner.rpc[j].disabled()) {
+							j++;
+						}
+						hedgeNum = j < rpcCount ? j : -1;
+					}
+					if (hedgeNum >= 0 && !BTCMiner.rpc[hedgeNum].disabled()) {
+						w = BTCMiner.rpc[hedgeNum].workSource.hedge(this);
+						if (w != null) {
+							rpc.workSource.hedged(this);
+							i = hedgeNum;
+							rpcNum = i;
+							rpc = BTCMiner.rpc[i];
+						}
+					}
+				}
+			} else if (w != null && hedgeNum >= 0 && hedgeNum != i) {
+				BTCMiner.rpc[hedgeNum].workSource.cancel(this);
+			}
+			if (w == null) {
+				return false;
+			}
+			workWaitTime = 0;
+			hedgeNum = -1;
+		} else {
+			w = rpc.workSource.fetch();
+		}
 
 		t = new Date().getTime() - t;
 		getTime = getTime * 0.99 + t;
 		getTimeW = getTimeW * 0.99 + 1;
 
-		String target;
-		try {
-			hexStrToData(jsonParse(response, "data"), dataBuf2);
-			target = jsonParse(response, "target");
-			newBlockMonitor.checkNew(dataBuf2);
-		} catch (NumberFormatException e) {
-			throw new ParserException(e.getLocalizedMessage());
+		// nonces of the old work are submitted before the work is replaced
+		boolean valid = newCount >= newBlockMonitor.newCount && !BTCMiner.rpc[prevRpcNum].disabled() && (work == null || !work.cleaned());
+		if (valid || NewBlockMonitor.submitOld) {
+			while (getNonces()) {}
 		}
+		workReplaced(valid);
+		retireWork();
+		rpcNum = i;
 
-		if (newCount >= newBlockMonitor.newCount || newBlockMonitor.submitOld) {
-			while (getNonces()) {}
+		System.arraycopy(w.data, 0, dataBuf2, 0, dataBuf2.length);
+		work = w;
+		rolls = 0;
+		workCount[rpcNum] += 1;
+		checkTarget = targetCheck || w.checkTarget;
+
+		if (w.newCount > newCount) {
+			newBlockMonitor.newWork(w.newCount);
 		}
 		newCount = newBlockMonitor.newCount;
 
-		if (targetCheck) {
-			if (target.length() != 64) {
+		if (checkTarget) {
+			if (!w.targetValid) {
 				throw new ParserException("Invalid target from " + rpc.name);
 			}
-			if (!target.equals(targetString)) {
-				dmsg("getWork new target: " + target);
-				hexStrToData(target, targetBuf);
-				targetString = target;
+			if (!Arrays.equals(w.target, targetBuf)) {
+				targetString = dataToHexStr(w.target);
+				dmsg("getWork new target: " + targetString);
+				System.arraycopy(w.target, 0, targetBuf, 0, 32);
+				hashEngine.setTarget(targetBuf);
 				double d = 0.0;
 				for (int j=31; j>=0; j--) {
 					d *= 256;
@@ -2106,55 +8207,116 @@ class BTCMiner implements MsgObj {
 			msg("Warning: Invalid data from " + rpc.name);
 		}
 */
-		sha256_transform(sha256_init_state, 0, dataBuf, 0, midstateBuf, 0);
+		if (w.midstate != null) {
+			System.arraycopy(w.midstate, 0, midstateBuf, 0, 32);
+		} else {
+			hashEngine.midstate(dataBuf, midstateBuf);
+		}
+		hashEngine.setWork(dataBuf, midstateBuf);
 
 		lastGetWorkTime = new Date().getTime();
 		prevRpcNum = i;
 		return true;
 	}
 
-	// ******* submitWork
+	// ******* rollWork
 	// *************************************************************************
-	public void submitWork(int n) throws MalformedURLException, IOException {
+	// Derives new work from the current one by incrementing ntime if permitted
+	// by the pool (X-Roll-NTime). The midstate does not change. Returns false if
+	// new work has to be requested.
+	public boolean rollWork() throws UsbException, MalformedURLException, IOException {
 		long t = new Date().getTime();
+		if (!rollable(t)) {
+			return false;
+		}
 
-		RPC rpc = BTCMiner.rpc[rpcNum];
+		while (getNonces()) {}
+		workReplaced(true);
+		retireWork();
 
-		intToData(n, dataBuf, 76);
+		int n = ((dataBuf[68] & 255) << 24) | ((dataBuf[69] & 255) << 16) | ((dataBuf[70] & 255) << 8) | (dataBuf[71] & 255);
+		n += 1;
+		dataBuf[68] = (byte) (n >> 24);
+		dataBuf[69] = (byte) (n >> 16);
+		dataBuf[70] = (byte) (n >> 8);
+		dataBuf[71] = (byte) n;
+		hashEngine.setWork(dataBuf, midstateBuf);
+
+		rolls += 1;
+		rollCount[prevRpcNum] += 1;
+		lastGetWorkTime = t;
+		return true;
+	}
 
-		dmsg("Submitting new nonce " + intToHexStr(n));
-		if (blkLogFile != null) {
-			blkLogFile.println(dateFormat.format(new Date()) + ": " + name + ": submitted " + dataToHexStr(dataBuf) + " to " + rpc.name);
+	// ******* rollable
+	// *************************************************************************
+	// returns true if the current work can be rolled at time t
+	private boolean rollable(long t) {
+		Work w = work;
+		return w != null && isRunning && rolls < w.rollNTime && t < w.time + w.rollNTime * 1000L && newCount >= newBlockMonitor.newCount && !rpc[prevRpcNum].disabled() && !w.cleaned();
+	}
+
+	// ******* submitWork
+	// *************************************************************************
+	// queues the nonce for submission by the share submitter
+	public void submitWork(int n) {
+		if (verbose) {
+			dmsg("Submitting new nonce " + intToHexStr(n));
 		}
-		String response = bitcoinRequest("getwork", dataToHexStr(dataBuf));
-		dmsg("submitWork returned: " + response);
-		String err = null;
-		try {
-			err = jsonParse(response, "error");
-		} catch (ParserException e) {
+		shareSubmitter.submit(new Share(this, BTCMiner.rpc[rpcNum], work, dataBuf, n));
+		rememberNonce(n);
+	}
+
+	// submits a nonce of replaced work
+	private void submitWork(int n, RecentWork r) {
+		if (verbose) {
+			dmsg("Submitting new nonce " + intToHexStr(n) + " of replaced work to " + BTCMiner.rpc[r.rpcNum].name);
 		}
-		if (err != null && !err.equals("null") && !err.equals("")) {
-			msg("Error attempting to submit new nonce: " + err);
+		shareSubmitter.submit(new Share(this, BTCMiner.rpc[r.rpcNum], r.work, r.data, n));
+		rememberNonce(n);
+	}
+
+	// ******* rememberNonce
+	// *************************************************************************
+	// golden nonces are reported until a new one is found, lastGoldenNonces prevents duplicates
+	private void rememberNonce(int n) {
+		for (int i = lastGoldenNonces.length - 1; i > 0; i--) {
+			lastGoldenNonces[i] = lastGoldenNonces[i - 1];
 		}
+		lastGoldenNonces[0] = n;
+	}
 
-		String result = null;
-		try {
-			result = jsonParse(response, "result");
-		} catch (ParserException e) {
+	// ******* retireWork
+	// *************************************************************************
+	// keeps a copy of the current work before it is replaced
+	private void retireWork() {
+		if (lastGetWorkTime == 0) {
+			return;
 		}
-		if (result != null && result.equals("true")) {
-			rpc.sharesAccepted += 1;
-		} else {
-			msg("Warning: Rejected block: " + lastRejectReason);
-			rpc.sharesRejected += 1;
+		recentWorkPos = (recentWorkPos + 1) % recentWork.length;
+		if (recentWork[recentWorkPos] == null) {
+			recentWork[recentWorkPos] = new RecentWork();
 		}
+		recentWork[recentWorkPos].set(dataBuf, midstateBuf, targetBuf, checkTarget, difficulty, prevRpcNum, work, newCount);
+	}
 
-		for (int i = lastGoldenNonces.length - 1; i > 0; i--) {
-			lastGoldenNonces[i] = lastGoldenNonces[i - 1];
+	// ******* recentWork
+	// *************************************************************************
+	// returns the most recently replaced work n is a golden nonce of, or null if not found
+	private RecentWork recentWork(int n) {
+		for (int i = 0; i < recentWork.length; i++) {
+			RecentWork r = recentWork[(recentWorkPos - i + recentWork.length) % recentWork.length];
+			if (r != null && r.check(n)) {
+				return r;
+			}
 		}
-		lastGoldenNonces[0] = n;
+		return null;
+	}
 
-		t = new Date().getTime() - t;
+	// ******* submitTime
+	// *************************************************************************
+	// called by the share submitter
+	public synchronized void submitTime(long t) {
 		submitTime = submitTime * 0.99 + t;
 		submitTimeW = submitTimeW * 0.99 + 1;
 	}
@@ -2168,60 +8330,50 @@ class BTCMiner implements MsgObj {
 		if (midstate.length != 32) {
 			throw new NumberFormatException("Invalid length of midstate");
 		}
+		work = null;
 		for (int i = 0; i < 128; i++) {
 			dataBuf[i] = data[i];
 		}
 		for (int i = 0; i < 32; i++) {
 			midstateBuf[i] = midstate[i];
 		}
+		hashEngine.setWork(dataBuf, midstateBuf);
 	}
 
 	// ******* getHash
 	// *************************************************************************
 	public int getHash(int n) throws NumberFormatException {
 		intToData(n, dataBuf, 76);
-		sha256_transform(midstateBuf, 0, dataBuf, 64, hashBuf, 0);
-		sha256_transform(sha256_init_state, 0, hashBuf, 0, hashBuf, 0);
-		return dataToInt(hashBuf, 28);
+		return hashEngine.getHash(n);
+	}
+
+	// ******* getHash7
+	// *************************************************************************
+	// H7 only (3 rounds less than getHash), does not update hashBuf and the hash used by compareWithTarget
+	public int getHash7(int n) throws NumberFormatException {
+		return hashEngine.getHash7(n);
 	}
 
 	// ******* compareWithTarget - returns true if smaller than or equal to target
 	// *************************************************************************
 	public boolean compareWithTarget(int n, boolean dolog) throws NumberFormatException {
-		/* already done in gethash
-		intToData(n, dataBuf, 76);
-		sha256_transform(midstateBuf, 0, dataBuf, 64, hashBuf, 0);
-		sha256_transform(sha256_init_state, 0, hashBuf, 0, hashBuf, 0);
-		*/
-		for (int i = 0; i < 32; i++) {
-			int j = i + 3 - 2 * (i % 4);
-			if ((hashBuf[31 - j] & 255) < (targetBuf[31 - i] & 255)) {
-				if (dolog) {
-					dmsg("n=" + intToHexStr(n) + " d=" + dataToHexStr(dataBuf));
-					dmsg("n=" + intToHexStr(n) + " t=" + dataToHexStr(targetBuf));
-					dmsg("n=" + intToHexStr(n) + " h=" + dataToHexStr(hashBuf).substring(0, 64) + " -> VALID");
-				}
-				return true;
-			}
-			if ((hashBuf[31 - j] & 255) > (targetBuf[31 - i] & 255)) {
-				if (dolog) {
-					dmsg("n=" + intToHexStr(n) + " t=" + dataToHexStr(targetBuf));
-					dmsg("n=" + intToHexStr(n) + " h=" + dataToHexStr(hashBuf).substring(0, 64) + " -> MISSED");
-				}
-				return false;
-			}
-		}
+		// hash has already been calculated by getHash
+		boolean valid = hashEngine.compareWithTarget();
 		if (dolog) {
+			hashEngine.hashToData(hashBuf);
+			if (valid) {
+				dmsg("n=" + intToHexStr(n) + " d=" + dataToHexStr(dataBuf));
+			}
 			dmsg("n=" + intToHexStr(n) + " t=" + dataToHexStr(targetBuf));
-			dmsg("n=" + intToHexStr(n) + " h=" + dataToHexStr(hashBuf).substring(0, 64) + " -> OK(default)");
+			dmsg("n=" + intToHexStr(n) + " h=" + dataToHexStr(hashBuf).substring(0, 64) + (valid ? " -> VALID" : " -> MISSED"));
 		}
-		return true;
+		return valid;
 	}
 
 	// ******* getMidstate
 	// *************************************************************************
 	public byte[] getMidstate() {
-		sha256_transform(sha256_init_state, 0, dataBuf, 0, hashBuf, 0);
+		hashEngine.midstate(dataBuf, hashBuf);
 		return hashBuf;
 	}
 
@@ -2236,20 +8388,15 @@ class BTCMiner implements MsgObj {
 		}
 
 		long t = new Date().getTime();
-		synchronized (ztex) {
-			try {
-				selectFpga();
-			} catch (InvalidFirmwareException e) {
-				// shouldn't occur
-			}
-			ztex.vendorCommand2(0x80, "Send hash data", 0, 0, sendBuf, 44);
-		}
+		device.sendData(fpgaNum, sendBuf);
 		usbTime += new Date().getTime() - t;
 
 		ignoreErrorTime = new Date().getTime() + 500; // ignore errors for next 1s
 		for (int i = 0; i < numNonces; i++) {
 			nonce[i] = 0;
 		}
+		nonceRateTime = new Date().getTime();
+		exhaustedTime = 0;
 		isRunning = true;
 	}
 
@@ -2261,14 +8408,7 @@ class BTCMiner implements MsgObj {
 		}
 
 		long t = new Date().getTime();
-		synchronized (ztex) {
-			try {
-				selectFpga();
-			} catch (InvalidFirmwareException e) {
-				// shouldn't occur
-			}
-			ztex.vendorCommand(0x83, "Send hash data", m, 0);
-		}
+		device.setFreq(fpgaNum, m);
 		usbTime += new Date().getTime() - t;
 		ignoreErrorTime = new Date().getTime() + 2000; // ignore errors for next 2s
 	}
@@ -2279,10 +8419,7 @@ class BTCMiner implements MsgObj {
 		suspended = true;
 		if (suspendSupported) {
 			try {
-				synchronized (ztex) {
-					selectFpga();
-					ztex.vendorCommand(0x84, "Suspend");
-				}
+				device.suspend(fpgaNum);
 			} catch (Exception e) {
 				msg("Suspend command failed: " + e.getLocalizedMessage());
 				return false;
@@ -2334,10 +8471,7 @@ class BTCMiner implements MsgObj {
 		}
 		if ((bestM + 1 < (1.0 - overheatThreshold) * maxHashRate) && bestM < maxM - 1) {
 			try {
-				synchronized (ztex) {
-					selectFpga();
-					ztex.resetFpga();
-				}
+				device.resetFpga(fpgaNum);
 			} catch (Exception e) {
 			}
 			throw new UsbException("Hash rate drop of " + String.format("%.1f", (1.0 - 1.0 * (bestM + 1) / maxHashRate) * 100) + "% detect. This may be caused by overheating. FPGA is shut down to prevent damage.");
@@ -2345,16 +8479,13 @@ class BTCMiner implements MsgObj {
 
 		double temp;
 		try { 
-			temp = ztex.tempSensorRead(fpgaNum);
+			temp = device.tempSensorRead(fpgaNum);
 		} catch (Exception e) {
 			temp = tempLimit - 1e12;
 		}
-		if (temp > tempLimit) {
+		if (!Double.isNaN(temp) && temp > tempLimit) {
 			try {
-				synchronized (ztex) {
-					selectFpga();
-					ztex.resetFpga();
-				}
+				device.resetFpga(fpgaNum);
 			} catch (Exception e) {}
 			throw new UsbException("Overheating detected: T=" + String.format("%.1f",temp) + "\u00b0C. FPGA is shut down to prevent damage.");
 		}
@@ -2373,8 +8504,9 @@ class BTCMiner implements MsgObj {
 		if (ignoreErrorTime < new Date().getTime()) {
 			errorCount[freqM] *= 0.995;
 			errorWeight[freqM] = errorWeight[freqM] * 0.995 + 1.0;
+			long[] valid = checkNonces();
 			for (int i = 0; i < numNonces; i++) {
-				if (!checkNonce(nonce[i], hash7[i])) {
+				if (!getBit(valid, i)) {
 					errorCount[freqM] += 1.0 / numNonces;
 				}
 			}
@@ -2388,23 +8520,55 @@ class BTCMiner implements MsgObj {
 			}
 		}
 
-		boolean submitted = false;
+		allocCheckBuffers();
+		int k = 0;
 		for (int i = 0; i < numNonces * (1 + extraSolutions); i++) {
-			int n = goldenNonce[i];
-			if (n != -offsNonces) {
-				if (getHash(n) == 0) {
-					int j = 0;
-					while (j < lastGoldenNonces.length && lastGoldenNonces[j] != n) {
-						j++;
-					}
-					if (j >= lastGoldenNonces.length) {
-						if (!targetCheck || compareWithTarget(n, false)) {
-							submitWork(n);
-							submittedCount += 1;
-							totalSubmittedCount += difficulty;
-							submitted = true;
-						}
-					}
+			if (goldenNonce[i] != -offsNonces) {
+				checkNonces[k] = goldenNonce[i];
+				checkHashes[k] = 0;
+				k++;
+			}
+		}
+		verifyHashes(checkNonces, checkHashes, k, checkMask);
+
+		boolean submitted = false;
+		for (int i = 0; i < k; i++) {
+			int n = checkNonces[i];
+			int j = 0;
+			while (j < lastGoldenNonces.length && lastGoldenNonces[j] != n) {
+				j++;
+			}
+			if (j < lastGoldenNonces.length) {
+				continue;
+			}
+			if (getBit(checkMask, i) && work != null && work.cleaned()) {
+				rpc[prevRpcNum].nonceResult(1, 0, 0);	// job invalidated by the pool
+				rememberNonce(n);
+			} else if (getBit(checkMask, i)) {
+				if (checkTarget) {
+					getHash(n);	// full hash required by compareWithTarget
+				}
+				if (!checkTarget || compareWithTarget(n, false)) {
+					submitWork(n);
+					submittedCount += 1;
+					totalSubmittedCount += difficulty;
+					submitted = true;
+				}
+			} else {
+				// nonce of replaced work, e.g. found between the last read and the work change
+				RecentWork r = recentWork(n);
+				if (r == null) {
+					rpc[prevRpcNum].nonceResult(0, 1, 0);
+					rememberNonce(n);
+				} else if ((r.newCount < newBlockMonitor.newCount && !NewBlockMonitor.submitOld) || (r.work != null && r.work.cleaned())) {
+					rpc[r.rpcNum].nonceResult(1, 0, 0);
+					rememberNonce(n);
+				} else {
+					rpc[r.rpcNum].nonceResult(0, 0, 1);
+					submitWork(n, r);
+					submittedCount += 1;
+					totalSubmittedCount += r.difficulty;
+					submitted = true;
 				}
 			}
 		}
@@ -2419,15 +8583,10 @@ class BTCMiner implements MsgObj {
 		boolean overflow = false;
 
 		long t = new Date().getTime();
-		synchronized (ztex) {
-			try {
-				selectFpga();
-			} catch (InvalidFirmwareException e) {
-				// shouldn't occur
-			}
-			ztex.vendorRequest2(0x81, "Read hash data", 0, 0, buf, numNonces * bs);
-		}
+		device.readNonces(fpgaNum, buf, numNonces * bs);
 		usbTime += new Date().getTime() - t;
+		int n0 = nonce[0];
+		long nm = maxNonce();
 
 		//dmsg"getNoncesInt: " + dataToHexStr(buf));
 		for (int i = 0; i < numNonces; i++) {
@@ -2442,20 +8601,171 @@ class BTCMiner implements MsgObj {
 		}
 		if (overflow && !PollLoop.scanMode) {
 			overflowCount += 1;
+			overflowTotal += 1;
+			if (exhaustedTime == 0) {
+				double r = nonceRate();
+				exhaustedTime = nonceRateTime > 0 && r > 0 ? Math.min(nonceRateTime + Math.round((0x100000000L - nm) / r), t) : t;
+			}
+		}
+
+		// nonce counter speed
+		if (!overflow && nonceRateTime > 0 && t > nonceRateTime) {
+			nonceRate = nonceRate * 0.9 + 0.1 * ((nonce[0] & 0xffffffffL) - (n0 & 0xffffffffL)) / (t - nonceRateTime);
 		}
+		nonceRateTime = t;
 	}
 
-	// ******* checkNonce
+	// ******* maxNonce
 	// *************************************************************************
-	public boolean checkNonce(int n, int h) throws UsbException {
-		int offs[] = { 0, 1, -1, 2, -2 };
-		// int offs[] = { 0 };
-		for (int i = 0; i < offs.length; i++) {
-			if (getHash(n + offs[i]) == h + 0x5be0cd19) {
-				return true;
+	// largest nonce counter value as unsigned number
+	private long maxNonce() {
+		long n = 0;
+		for (int i = 0; i < numNonces; i++) {
+			n = Math.max(n, nonce[i] & 0xffffffffL);
+		}
+		return n;
+	}
+
+	// ******* nonceRate
+	// *************************************************************************
+	// nonce counter speed in 1/ms, the hash rate is used if not measured yet
+	private double nonceRate() {
+		return nonceRate > 0 ? nonceRate : totalHashRate() * 1000.0;
+	}
+
+	// ******* pollInterval
+	// *************************************************************************
+	// time in ms until the next poll: minQueryInterval or less if new work has
+	// to be requested earlier, see checkUpdate
+	public long pollInterval() {
+		long t = exhaustionTime();
+		if (t == Long.MAX_VALUE) {
+			return PollLoop.minQueryInterval;
+		}
+		t -= refreshLead();
+		return Math.max(PollLoop.minPollInterval, Math.min(PollLoop.minQueryInterval, t));
+	}
+
+	// ******* exhaustionTime
+	// *************************************************************************
+	// time in ms until the nonce range of the current work is exhausted
+	public long exhaustionTime() {
+		double r = nonceRate();
+		if (!isRunning || r <= 0) {
+			return Long.MAX_VALUE;
+		}
+		if (exhaustedTime > 0) {
+			return 0;
+		}
+		return Math.max(Math.round((0x100000000L - maxNonce()) / r) - (new Date().getTime() - nonceRateTime), 0);
+	}
+
+	// ******* refreshLead
+	// *************************************************************************
+	// time in ms required to obtain new work: the poll granularity plus the
+	// getwork latency of the pool if the work cannot be rolled
+	private long refreshLead() {
+		long l = PollLoop.minPollInterval * 2;
+		if (rollable(new Date().getTime())) {
+			return l;
+		}
+		return l + rpc[rpcNum].workSource.expectedLatency();
+	}
+
+	// ******* workReplaced
+	// *************************************************************************
+	// updates the wasted nonce space and idle time counters before the work is replaced,
+	// valid: the old work is still valid, i.e. no new block
+	private void workReplaced(boolean valid) {
+		if (!isRunning) {
+			return;
+		}
+		if (exhaustedTime > 0) {
+			idleTime += Math.max(new Date().getTime() - exhaustedTime, 0);
+			exhaustedTime = 0;
+		} else if (valid) {
+			wastedNonces += 0x100000000L - maxNonce();
+		}
+		if (valid) {
+			replacedCount += 1;
+		}
+	}
+
+	// ******* wasteStats
+	// *************************************************************************
+	public String wasteStats() {
+		return "wasted nonce space: " + String.format("%.2f", wastedNonces * 100.0 / Math.max(replacedCount * 0x100000000L, 1)) + "%,  idle time: " + idleTime + "ms";
+	}
+
+	// ******* allocCheckBuffers
+	// *************************************************************************
+	private void allocCheckBuffers() {
+		int l = Math.max(numNonces * 4, numNonces * (1 + extraSolutions));
+		if (checkNonces == null || checkNonces.length < l) {
+			checkNonces = new int[l];
+			checkHashes = new int[l];
+			checkIndex = new int[l];
+			checkMask = new long[(l + 63) / 64];
+			validMask = new long[(numNonces + 63) / 64];
+		}
+	}
+
+	// ******* getBit
+	// *************************************************************************
+	public static boolean getBit(long[] mask, int i) {
+		return ((mask[i >> 6] >>> (i & 63)) & 1) != 0;
+	}
+
+	// ******* verifyHashes
+	// *************************************************************************
+	// Sets bit i of mask if H7 of nonces[i] equals expected[i] and clears it otherwise, i = 0..count-1.
+	// mask must have at least (count + 63) / 64 entries. Scalar because a multi-lane layout
+	// was slower, see BTCMinerBenchmark.hashEngineLanes.
+	private void verifyHashes(int[] nonces, int[] expected, int count, long[] mask) {
+		for (int i = 0; i < (count + 63) >> 6; i++) {
+			mask[i] = 0;
+		}
+		for (int i = 0; i < count; i++) {
+			if (hashEngine.getHash7(nonces[i]) == expected[i]) {
+				mask[i >> 6] |= 1L << (i & 63);
 			}
 		}
-		return false;
+	}
+
+	// ******* checkNonces
+	// *************************************************************************
+	// Checks nonce[i] and the neighbours nonce[i]+-1, nonce[i]+-2 against hash7[i] for all cores,
+	// bit i of the result is set if one of them matches. The neighbours are only tried for the
+	// nonces that fail without offset.
+	public long[] checkNonces() {
+		allocCheckBuffers();
+		for (int i = 0; i < numNonces; i++) {
+			checkNonces[i] = nonce[i];
+			checkHashes[i] = hash7[i] + 0x5be0cd19;
+		}
+		verifyHashes(checkNonces, checkHashes, numNonces, validMask);
+
+		final int offs[] = { 1, -1, 2, -2 };
+		int k = 0;
+		for (int i = 0; i < numNonces; i++) {
+			if (!getBit(validMask, i)) {
+				for (int j = 0; j < offs.length; j++) {
+					checkNonces[k] = nonce[i] + offs[j];
+					checkHashes[k] = hash7[i] + 0x5be0cd19;
+					checkIndex[k] = i;
+					k++;
+				}
+			}
+		}
+		if (k > 0) {
+			verifyHashes(checkNonces, checkHashes, k, checkMask);
+			for (int i = 0; i < k; i++) {
+				if (getBit(checkMask, i)) {
+					validMask[checkIndex[i] >> 6] |= 1L << (checkIndex[i] & 63);
+				}
+			}
+		}
+		return validMask;
 	}
 
 	// ******* totalHashRate
@@ -2504,11 +8814,17 @@ class BTCMiner implements MsgObj {
 		}
 
 		try {
-			sb.append(", T=" + String.format("%.1f", ztex.tempSensorRead(fpgaNum)) + "\u00b0C");
+			double temp = device.tempSensorRead(fpgaNum);
+			if (!Double.isNaN(temp)) {
+				sb.append(", T=" + String.format("%.1f", temp) + "\u00b0C");
+			}
 		} catch (Exception e) {}
 
 		sb.append(",  submitted " + submittedCount + " new nonces,  luckFactor=" + String.format("%.2f", submittedHashRate() / hr + 0.0049));
 		submittedCount = 0;
+		if (replacedCount > 0 || idleTime > 0) {
+			sb.append(",  " + wasteStats());
+		}
 
 		printMsg2(name + ": " + sb.toString());
 
@@ -2520,7 +8836,7 @@ class BTCMiner implements MsgObj {
 	private void getDescriptor() throws UsbException, FirmwareException {
 		byte[] buf = new byte[64];
 
-		ztex.vendorRequest2(0x82, "Read descriptor", 0, 0, buf, 64);
+		device.getDescriptor(fpgaNum, buf);
 		if (buf[0] != 5) {
 			if ((buf[0] != 2) && (buf[0] != 4)) {
 				throw new FirmwareException("Invalid BTCMiner descriptor version. Firmware must be updated.");
@@ -2574,12 +8890,21 @@ class BTCMiner implements MsgObj {
 		if (newCount < newBlockMonitor.newCount) {
 			return true;
 		}
+		if (work != null && work.cleaned()) {
+			return true;
+		}
 		if (rpc[prevRpcNum].disabled()) {
 			return true;
 		}
-		if (lastGetWorkTime + maxPollInterval < t) {
+		// new work is requested just in time before the nonce range is exhausted,
+		// maxPollInterval only applies if new blocks are not reported by long polling
+		long e = exhaustionTime();
+		if (lastGetWorkTime + maxPollInterval < t && (e == Long.MAX_VALUE || !newBlockMonitor.longPolling(rpc[prevRpcNum]))) {
 			return true;
 		}
+		if (e != Long.MAX_VALUE) {
+			return e <= refreshLead();
+		}
 		for (int i = 0; i < numNonces; i++) {
 			if (((nonce[i] >> 1) & 0x7fffffff) > (0x38000000 + Math.round(Math.random() * 0x10000000))) {
 				return true;
@@ -2636,9 +8961,6 @@ class BTCMiner implements MsgObj {
 		upTime = new Date().getTime();
 
 		try {
-			// init USB stuff
-			LibusbJava.usb_init();
-
 			// scan the command line arguments
 			for (int i = 0; i < args.length; i++) {
 				if (args[i].equals("-d")) {
@@ -2789,11 +9111,11 @@ class BTCMiner implements MsgObj {
 							throw new Exception();
 						}
 						mode = Character.toLowerCase(args[i].charAt(0));
-						if (mode != 's' && mode != 't' && mode != 'p' && mode != 'c' && mode != 'h') {
+						if (mode != 's' && mode != 't' && mode != 'p' && mode != 'c' && mode != 'h' && mode != 'b') {
 							throw new Exception();
 						}
 					} catch (Exception e) {
-						throw new ParameterException("s|t|p|c|h expected after -m");
+						throw new ParameterException("s|t|p|c|h|b expected after -m");
 					}
 				} else if (args[i].equals("-s")) {
 					i++;
@@ -2825,6 +9147,36 @@ class BTCMiner implements MsgObj {
 					} catch (Exception e) {
 						throw new ParameterException("Number expected after -n");
 					}
+				} else if (args[i].equals("-rb")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						long rebalanceInterval = Long.parseLong(args[i]);
+						if (rebalanceInterval < 0) {
+							throw new Exception();
+						}
+						BTCMinerCluster.rebalanceInterval = rebalanceInterval * 1000; // in milliseconds
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -rb");
+					}
+				} else if (args[i].equals("-hp")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						long hotplugInterval = Long.parseLong(args[i]);
+						if (hotplugInterval < 0) {
+							throw new Exception();
+						}
+						BTCMinerCluster.hotplugInterval = hotplugInterval * 1000; // in milliseconds
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -hp");
+					}
+				} else if (args[i].equals("-tpd")) {
+					BTCMinerCluster.threadPerDevice = true;
 				} else if (args[i].equals("-oh")) {
 					i++;
 					try {
@@ -2861,6 +9213,45 @@ class BTCMiner implements MsgObj {
 					} catch (Exception e) {
 						throw new ParameterException("Number expected after -e");
 					}
+				} else if (args[i].equals("-cpu")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						cpuThreads = Integer.parseInt(args[i]);
+						if (cpuThreads < 0 || cpuThreads > CPUMiner.maxCores) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Number between 0 and " + CPUMiner.maxCores + " expected after -cpu");
+					}
+				} else if (args[i].equals("-sim")) {
+					i += 2;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						simBoards = Integer.parseInt(args[i - 1]);
+						simFpgas = Integer.parseInt(args[i]);
+						if (simBoards < 0 || simFpgas < 1) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("<boards> <fpgas> expected after -sim");
+					}
+				} else if (args[i].equals("-simopt")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception("<name>=<value> expected after -simopt");
+						}
+						SimulatedMinerDevice.setOption(args[i]);
+					} catch (Exception e) {
+						throw new ParameterException(e.getLocalizedMessage());
+					}
+				} else if (args[i].equals("-nousb")) {
+					noUsb = true;
 				} else if (args[i].equals("-ac")) {
 					i++;
 					try {
@@ -2913,6 +9304,112 @@ class BTCMiner implements MsgObj {
 					} catch (Exception e) {
 						throw new ParameterException("Wrong or missing parameter after -iomon");
 					}
+				} else if (args[i].equals("-sub")) {
+					i += 2;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						ShareSubmitter.maxPerPool = Integer.parseInt(args[i - 1]);
+						ShareSubmitter.maxRetries = Integer.parseInt(args[i]);
+						if (ShareSubmitter.maxPerPool < 1 || ShareSubmitter.maxRetries < 0) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -sub");
+					}
+				} else if (args[i].equals("-wq")) {
+					i += 2;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						WorkSource.depth = Integer.parseInt(args[i - 1]);
+						WorkSource.maxAge = Integer.parseInt(args[i]);
+						if (WorkSource.depth < 0 || WorkSource.maxAge <= 0) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -wq");
+					}
+				} else if (args[i].equals("-gw")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						WorkSource.maxInFlight = Integer.parseInt(args[i]);
+						if (WorkSource.maxInFlight < 1) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -gw");
+					}
+				} else if (args[i].equals("-hedge")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						WorkSource.hedge = Integer.parseInt(args[i]);
+						if (WorkSource.hedge < 0 || WorkSource.hedge > 99) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -hedge");
+					}
+				} else if (args[i].equals("-batch")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						RPC.maxBatch = Integer.parseInt(args[i]);
+						if (RPC.maxBatch < 1) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -batch");
+					}
+				} else if (args[i].equals("-hc")) {
+					i += 2;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						HttpConnectionPool.maxIdle = Integer.parseInt(args[i - 1]);
+						HttpConnectionPool.idleTimeout = Integer.parseInt(args[i]);
+						if (HttpConnectionPool.maxIdle < 0 || HttpConnectionPool.idleTimeout <= 0) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Wrong or missing parameter after -hc");
+					}
+				} else if (args[i].equals("-hcmax")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						HttpConnectionPool.maxConnections = Integer.parseInt(args[i]);
+						if (HttpConnectionPool.maxConnections < 1) {
+							throw new Exception();
+						}
+					} catch (Exception e) {
+						throw new ParameterException("Number greater than 0 expected after -hcmax");
+					}
+				} else if (args[i].equals("-coinbase")) {
+					i++;
+					try {
+						if (i >= args.length) {
+							throw new Exception();
+						}
+						GbtWorkSource.payoutScript = GbtWorkSource.addressToScript(args[i]);
+					} catch (NumberFormatException e) {
+						throw new ParameterException(e.getLocalizedMessage());
+					} catch (Exception e) {
+						throw new ParameterException("Address expected after -coinbase");
+					}
 				} else {
 					throw new ParameterException("Invalid Parameter: " + args[i]);
 				}
@@ -2936,6 +9433,12 @@ class BTCMiner implements MsgObj {
 				}
 			}
 
+			for (int i = 0; i < rpcCount; i++) {
+				if (rpc[i].workSource instanceof GbtWorkSource && GbtWorkSource.payoutScript == null) {
+					throw new ParameterException("-coinbase <address> is required by " + rpc[i].host);
+				}
+			}
+
 			if (BTCMinerCluster.maxDevicesPerThread < 1) {
 				BTCMinerCluster.maxDevicesPerThread = 127;
 			}
@@ -2944,28 +9447,45 @@ class BTCMiner implements MsgObj {
 				filterSN = checkSnString(filterSN);
 			}
 
-			if (mode != 't' && mode != 'p') {
+			// init USB stuff
+			if (mode == 's' || mode == 't') {
+				noUsb = cpuThreads >= 0 || simBoards > 0;
+			}
+			if (mode != 'b' && !noUsb) {
+				LibusbJava.usb_init();
+			}
+
+			if (mode != 't' && mode != 'p' && mode != 'b') {
 				if (rpcCount == 0) {
 					throw new ParameterException("Missing rpcpool - Please specify at least one mining pool");
 				}
 			}
 
-			if (mode == 's' || mode == 't') {
+			if (mode == 'b') {
+				BTCMinerBenchmark.run();
+			} else if (mode == 's' || mode == 't') {
 				if (devNum < 0) {
 					devNum = 0;
 				}
 
-				ZtexScanBus1 bus = new ZtexScanBus1(ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, filterSN == null, false, 1, filterSN, 10, 0, 1, 0);
-				if (bus.numberOfDevices() <= 0) {
-					System.err.println("No devices found");
-					System.exit(0);
-				}
-				if (printBus) {
-					printBus(bus);
-					System.exit(0);
-				}
+				BTCMiner miner;
+				if (cpuThreads >= 0) {
+					miner = new BTCMiner(new CPUMiner(cpuThreads), verbose);
+				} else if (simBoards > 0) {
+					miner = new BTCMiner(new SimulatedMinerDevice(simFpgas), verbose);
+				} else {
+					ZtexScanBus1 bus = new ZtexScanBus1(ZtexDevice1.ztexVendorId, ZtexDevice1.ztexProductId, filterSN == null, false, 1, filterSN, 10, 0, 1, 0);
+					if (bus.numberOfDevices() <= 0) {
+						System.err.println("No devices found");
+						System.exit(0);
+					}
+					if (printBus) {
+						printBus(bus);
+						System.exit(0);
+					}
 
-				BTCMiner miner = new BTCMiner(bus.device(devNum), firmwareFile, verbose);
+					miner = new BTCMiner(bus.device(devNum), firmwareFile, verbose);
+				}
 				if (mode == 't') { // single mode
 					miner.initWork(hexStrToData("0000000122f3e795bb7a55b2b4a580e0dbba9f2a5aedbfc566632984000008de00000000e951667fbba0cfae7719ab2fb4ab8d291a20d387782f4610297f5899cc58b7d64e4056801a08e1e500000000000000800000000000000000000000000000000000000000000000000000000000000000000000000000000080020000"), hexStrToData("28b81bd40a0e1b75d18362cb9a2faa61669d42913f26194f776c349e97559190"));
 
@@ -2977,18 +9497,19 @@ class BTCMiner implements MsgObj {
 						}
 						miner.getNoncesInt();
 
+						long[] valid = miner.checkNonces();
 						for (int j = 0; j < miner.numNonces; j++) {
-							System.out.println(i + "-" + j + ":  " + intToHexStr(miner.nonce[j]) + "    " + miner.checkNonce(miner.nonce[j], miner.hash7[j]) + "   " + miner.overflowCount + "    " + intToHexStr(miner.goldenNonce[j * (1 + miner.extraSolutions)]) + "      " + intToHexStr(miner.getHash(miner.goldenNonce[j])));
+							System.out.println(i + "-" + j + ":  " + intToHexStr(miner.nonce[j]) + "    " + getBit(valid, j) + "   " + miner.overflowCount + "    " + intToHexStr(miner.goldenNonce[j * (1 + miner.extraSolutions)]) + "      " + intToHexStr(miner.getHash(miner.goldenNonce[j])));
 						}
 					}
 				} else { // single mode
 					Vector<BTCMiner> v = new Vector<BTCMiner>();
 					v.add(miner);
 					for (int i = 1; i < miner.numberOfFpgas(); i++) {
-						v.add(new BTCMiner(miner.ztex(), miner.fpgaNum(i), verbose));
+						v.add(new BTCMiner(miner.device(), miner.fpgaNum(i), verbose));
 					}
 					System.out.println("");
-					if (miner.ztex().numberOfFpgas() > 1) {
+					if (miner.device().numberOfFpgas() > 1) {
 						System.out.println("A multi-FPGA board is detected. Use the cluster mode for additional statistics.");
 					}
 					System.out.println("Disconnect device or press Ctrl-C for exit\n");
@@ -3068,6 +9589,9 @@ class BTCMiner implements MsgObj {
 			BTCMiner.newBlockMonitor.running = false;
 			BTCMiner.newBlockMonitor.interrupt();
 		}
+		if (BTCMiner.shareSubmitter != null) {
+			BTCMiner.shareSubmitter.shutdown(5000);
+		}
 		System.exit(0);
 	}
 }